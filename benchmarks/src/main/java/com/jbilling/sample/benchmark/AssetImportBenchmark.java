@@ -0,0 +1,98 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.AssetImportPipeline;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Throughput of the client side part of {@link AssetImportPipeline}: parsing, validating, deduplicating and
+ * splitting a generated asset file into chunks. One in a hundred rows is a duplicate.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AssetImportBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"10000", "100000"})
+    public int chunkRows;
+
+    private Path source;
+    private Path workDir;
+
+    @Setup(Level.Trial)
+    public void writeSource() throws IOException {
+
+        source = Files.createTempFile("assets", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(source, StandardCharsets.UTF_8)) {
+            writer.write("Identifier,Notes,Global,Entities\n");
+            for (int i = 0; i < rows; i++) {
+                int identifier = i % 100 == 99 ? i - 1 : i;
+                writer.write("asset-" + identifier + ",\"Imported, batch " + (i / 1000) + "\",TRUE,\n");
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createWorkDir() throws IOException {
+        workDir = Files.createTempDirectory("asset-import");
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteWorkDir() throws IOException {
+        delete(workDir);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteSource() throws IOException {
+        Files.deleteIfExists(source);
+    }
+
+    @Benchmark
+    public AssetImportPipeline.PrepareResult prepare() throws IOException {
+        return new AssetImportPipeline(null, 1, workDir, chunkRows, 1).prepare(source);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = new OptionsBuilder()
+                .include(AssetImportBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    private static void delete(Path dir) throws IOException {
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.Ch11PaymentsAndCollections;
+import com.jbilling.sample.Ch14MetaFields;
+import com.jbilling.sample.Ch3ProductAndPricing;
+import com.jbilling.sample.Ch5Plans;
+import com.jbilling.sample.Ch8PurchaseOrders;
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.item.PlanItemWS;
+import com.sapienter.jbilling.server.metafields.DataType;
+import com.sapienter.jbilling.server.metafields.EntityType;
+import com.sapienter.jbilling.server.metafields.MetaFieldValueWS;
+import com.sapienter.jbilling.server.metafields.MetaFieldWS;
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.payment.PaymentInformationWS;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+import com.sapienter.jbilling.server.util.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the request builders of the samples.
+ *
+ * The order builders are measured with orders between 1k and 50k lines, split over a chain of child orders to
+ * get a deep parent/child hierarchy. Run with the GC profiler to see the allocation rate of every builder:
+ * {@code java -jar target/benchmarks.jar BuilderBenchmark -prof gc}
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuilderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class OrderState {
+
+        @Param({"1000", "10000", "50000"})
+        public int lines;
+
+        @Param({"1", "50"})
+        public int depth;
+
+        public Integer[] productIds;
+        public OrderWS order;
+        public Date activeSince = new GregorianCalendar(2010, 1, 1).getTime();
+
+        @Setup(Level.Trial)
+        public void setUp() {
+
+            productIds = new Integer[lines];
+            for (int i = 0; i < lines; i++) {
+                productIds[i] = Integer.valueOf(i + 1);
+            }
+            order = buildHierarchy(lines, depth, activeSince);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MetaFieldState {
+
+        @Param({"10", "1000"})
+        public int size;
+
+        public MetaFieldValueWS[] values;
+        public MetaFieldWS metaField;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+
+            values = new MetaFieldValueWS[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = Ch14MetaFields.buildMetaFieldValue("field_" + i, false, true, DataType.STRING, i, "value_" + i);
+            }
+            metaField = Ch14MetaFields.buildMetaField(1, "Salary", DataType.INTEGER, EntityType.CUSTOMER,
+                    false, false, 1, true, 100);
+        }
+    }
+
+    @Benchmark
+    public OrderWS buildOrder(OrderState state) {
+
+        return Ch8PurchaseOrders.buildOrder(1, state.activeSince, null, Constants.PERIOD_UNIT_MONTH,
+                Constants.ORDER_BILLING_POST_PAID, true, state.productIds);
+    }
+
+    @Benchmark
+    public OrderChangeWS[] buildChangesFromOrder(OrderState state) {
+        return Ch8PurchaseOrders.buildChangesFromOrder(state.order, 1);
+    }
+
+    @Benchmark
+    public MetaFieldValueWS[] copyMetaFields(MetaFieldState state) {
+        return Ch14MetaFields.copyMetaFields(state.values, true);
+    }
+
+    @Benchmark
+    public MetaFieldWS copyMetaField(MetaFieldState state) {
+        return Ch14MetaFields.copyMetaField(state.metaField);
+    }
+
+    @Benchmark
+    public ItemDTOEx buildItem() {
+
+        return Ch3ProductAndPricing.buildItem(1, "sampleProduct", 1, 0,
+                Ch3ProductAndPricing.withFlatPrice(new Date(0), "10"));
+    }
+
+    @Benchmark
+    public SortedMap<Date, PriceModelWS> withGraduatedPrice() {
+        return Ch3ProductAndPricing.withGraduatedPrice(new Date(0), "10", "100");
+    }
+
+    @Benchmark
+    public PlanItemWS buildPlanItem() {
+        return Ch5Plans.buildPlanItem(1, Ch3ProductAndPricing.flatPriceModel("5"), new Date(0), 2, "5");
+    }
+
+    @Benchmark
+    public PaymentInformationWS buildCreditCard() {
+        return Ch11PaymentsAndCollections.buildCreditCard(new Date(0), 1, "Test User", "4123123419441152");
+    }
+
+    /**
+     * Builds an order with the given number of lines, spread evenly over a chain of {@code depth} orders
+     * where each order is the parent of the next one.
+     */
+    public static OrderWS buildHierarchy(int lines, int depth, Date activeSince) {
+
+        int linesPerOrder = Math.max(1, lines / depth);
+        OrderWS root = null;
+        OrderWS parent = null;
+        int productId = 1;
+        for (int level = 0; level < depth; level++) {
+            int count = level == depth - 1 ? lines - linesPerOrder * (depth - 1) : linesPerOrder;
+            Integer[] productIds = new Integer[Math.max(1, count)];
+            for (int i = 0; i < productIds.length; i++) {
+                productIds[i] = Integer.valueOf(productId++);
+            }
+            OrderWS order = Ch8PurchaseOrders.buildOrder(1, activeSince, null, Constants.PERIOD_UNIT_MONTH,
+                    Constants.ORDER_BILLING_POST_PAID, true, productIds);
+            if (parent == null) {
+                root = order;
+            } else {
+                order.setParentOrder(parent);
+                parent.setChildOrders(new OrderWS[] {order});
+                // Child lines point to the first line of the parent order.
+                for (int i = 0; i < order.getOrderLines().length; i++) {
+                    order.getOrderLines()[i].setParentLine(parent.getOrderLines()[0]);
+                }
+            }
+            parent = order;
+        }
+        return root;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Options options = new OptionsBuilder()
+                .include(BuilderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
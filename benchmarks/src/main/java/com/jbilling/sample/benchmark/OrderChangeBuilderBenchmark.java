@@ -0,0 +1,272 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.Ch8PurchaseOrders;
+import com.jbilling.sample.OrderChangeBuilder;
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.util.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling of {@link OrderChangeBuilder} with the number of lines and child orders, compared with the recursive
+ * builder it replaced. The hierarchy is either wide, all child orders under the root, or a tree where every order has
+ * up to ten children. The legacy builder is only measured up to a thousand child orders, above that a single call
+ * takes minutes. Before the benchmarks run, {@code main} checks that both builders return the same changes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderChangeBuilderBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Hierarchy {
+
+        @Param({"10000", "100000"})
+        public int lines;
+
+        @Param({"10", "1000", "5000"})
+        public int childOrders;
+
+        @Param({"1000", "10"})
+        public int fanOut;
+
+        OrderWS order;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            order = buildTree(lines, childOrders, fanOut, new GregorianCalendar(2010, 1, 1).getTime());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LegacyHierarchy {
+
+        @Param({"10000", "100000"})
+        public int lines;
+
+        @Param({"10", "1000"})
+        public int childOrders;
+
+        @Param({"1000", "10"})
+        public int fanOut;
+
+        OrderWS order;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            order = buildTree(lines, childOrders, fanOut, new GregorianCalendar(2010, 1, 1).getTime());
+        }
+    }
+
+    @Benchmark
+    public OrderChangeWS[] buildChanges(Hierarchy hierarchy) {
+        return OrderChangeBuilder.buildChanges(hierarchy.order, 1);
+    }
+
+    @Benchmark
+    public OrderChangeWS[] buildChangesLegacy(LegacyHierarchy hierarchy) {
+        return buildChangesLegacy(hierarchy.order, 1);
+    }
+
+    /**
+     * Builds a root order with {@code childOrders} orders below it, every order having up to {@code fanOut}
+     * children, and the lines spread evenly over all of them. The lines of a child order point to the first line of
+     * its parent order.
+     */
+    public static OrderWS buildTree(int lines, int childOrders, int fanOut, Date activeSince) {
+
+        int orders = childOrders + 1;
+        List<OrderWS> all = new ArrayList<>(orders);
+        int productId = 1;
+        for (int i = 0; i < orders; i++) {
+            int count = Math.max(1, lines / orders + (i < lines % orders ? 1 : 0));
+            Integer[] productIds = new Integer[count];
+            for (int j = 0; j < count; j++) {
+                productIds[j] = Integer.valueOf(productId++);
+            }
+            OrderWS order = Ch8PurchaseOrders.buildOrder(1, activeSince, null, Constants.PERIOD_UNIT_MONTH,
+                    Constants.ORDER_BILLING_POST_PAID, true, productIds);
+            if (i > 0) {
+                OrderWS parent = all.get((i - 1) / fanOut);
+                order.setParentOrder(parent);
+                OrderWS[] children = parent.getChildOrders() != null ? parent.getChildOrders() : new OrderWS[0];
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = order;
+                parent.setChildOrders(children);
+                for (OrderLineWS line : order.getOrderLines()) {
+                    line.setParentLine(parent.getOrderLines()[0]);
+                }
+            }
+            all.add(order);
+        }
+        return all.get(0);
+    }
+
+    // The recursive builder Ch8PurchaseOrders used before OrderChangeBuilder.
+    private static OrderChangeWS[] buildChangesLegacy(OrderWS orderWS, Integer statusId) {
+
+        Date startDate = orderWS.getActiveSince();
+        List<OrderChangeWS> orderChanges = new ArrayList<>();
+        Map<OrderLineWS, OrderChangeWS> lineToChangeMap = new HashMap<>();
+        OrderWS rootOrder = orderWS;
+        while (rootOrder.getParentOrder() != null && !rootOrder.getParentOrder().equals(orderWS)) {
+            rootOrder = rootOrder.getParentOrder();
+        }
+        for (OrderLineWS orderLine : rootOrder.getOrderLines()) {
+            OrderChangeWS orderChange = Ch8PurchaseOrders.buildChangeFromLine(orderWS, orderLine, statusId, startDate);
+            orderChanges.add(orderChange);
+            lineToChangeMap.put(orderLine, orderChange);
+        }
+        for (OrderWS childOrder : findChildOrdersLegacy(rootOrder, new LinkedHashSet<>())) {
+            for (OrderLineWS line : childOrder.getOrderLines()) {
+                OrderChangeWS change = Ch8PurchaseOrders.buildChangeFromLine(childOrder, line, statusId, startDate);
+                orderChanges.add(change);
+                lineToChangeMap.put(line, change);
+            }
+        }
+        for (OrderLineWS line : lineToChangeMap.keySet()) {
+            if (line.getParentLine() != null) {
+                OrderChangeWS change = lineToChangeMap.get(line);
+                if (line.getParentLine().getId() > 0) {
+                    change.setParentOrderLineId(line.getParentLine().getId());
+                } else {
+                    change.setParentOrderChange(lineToChangeMap.get(line.getParentLine()));
+                }
+            }
+        }
+        return orderChanges.toArray(new OrderChangeWS[orderChanges.size()]);
+    }
+
+    private static LinkedHashSet<OrderWS> findChildOrdersLegacy(OrderWS order, LinkedHashSet<OrderWS> orders) {
+
+        if (order.getChildOrders() != null) {
+            List<OrderWS> newChildren = new LinkedList<>(Arrays.asList(order.getChildOrders()));
+            newChildren.removeAll(orders);
+            orders.addAll(newChildren);
+            for (OrderWS childOrder : newChildren) {
+                findChildOrdersLegacy(childOrder, orders);
+            }
+        }
+        return orders;
+    }
+
+    /**
+     * Compares the changes of both builders field by field. Links to parent changes are compared by the position of
+     * the parent change. Returns the differences found.
+     */
+    public static List<String> compareWithLegacy(OrderWS order) {
+
+        OrderChangeWS[] changes = OrderChangeBuilder.buildChanges(order, 1);
+        OrderChangeWS[] legacy = buildChangesLegacy(order, 1);
+        List<String> differences = new ArrayList<>();
+        if (changes.length != legacy.length) {
+            differences.add(changes.length + " changes instead of " + legacy.length);
+            return differences;
+        }
+        Map<OrderChangeWS, Integer> positions = new IdentityHashMap<>();
+        Map<OrderChangeWS, Integer> legacyPositions = new IdentityHashMap<>();
+        for (int i = 0; i < changes.length; i++) {
+            positions.put(changes[i], i);
+            legacyPositions.put(legacy[i], i);
+        }
+        for (int i = 0; i < changes.length; i++) {
+            OrderChangeWS change = changes[i];
+            OrderChangeWS expected = legacy[i];
+            compare(differences, i, "orderChangeTypeId", expected.getOrderChangeTypeId(),
+                    change.getOrderChangeTypeId());
+            compare(differences, i, "userAssignedStatusId", expected.getUserAssignedStatusId(),
+                    change.getUserAssignedStatusId());
+            compare(differences, i, "startDate", expected.getStartDate(), change.getStartDate());
+            compare(differences, i, "applicationDate", expected.getApplicationDate(), change.getApplicationDate());
+            compare(differences, i, "orderId", expected.getOrderId(), change.getOrderId());
+            compare(differences, i, "orderWS", true, expected.getOrderWS() == change.getOrderWS());
+            compare(differences, i, "orderLineId", expected.getOrderLineId(), change.getOrderLineId());
+            compare(differences, i, "useItem", expected.getUseItem(), change.getUseItem());
+            compare(differences, i, "parentOrderLineId", expected.getParentOrderLineId(),
+                    change.getParentOrderLineId());
+            compare(differences, i, "parentOrderChange", legacyPositions.get(expected.getParentOrderChange()),
+                    positions.get(change.getParentOrderChange()));
+            compare(differences, i, "description", expected.getDescription(), change.getDescription());
+            compare(differences, i, "itemId", expected.getItemId(), change.getItemId());
+            compare(differences, i, "assetIds", true, Arrays.equals(expected.getAssetIds(), change.getAssetIds()));
+            compare(differences, i, "price", expected.getPrice(), change.getPrice());
+            compare(differences, i, "quantity", expected.getQuantity(), change.getQuantity());
+            compare(differences, i, "removal", expected.getRemoval(), change.getRemoval());
+            compare(differences, i, "nextBillableDate", expected.getNextBillableDate(), change.getNextBillableDate());
+            compare(differences, i, "percentage", expected.isPercentage(), change.isPercentage());
+            compare(differences, i, "metaFields", true,
+                    Arrays.equals(expected.getMetaFields(), change.getMetaFields()));
+        }
+        return differences;
+    }
+
+    private static void compare(List<String> differences, int index, String field, Object expected, Object actual) {
+
+        if (!Objects.equals(expected, actual)) {
+            differences.add("change " + index + " " + field + ": " + actual + " instead of " + expected);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // Both builders must return the same changes, parent links included, for wide, tree-shaped and deep
+        // hierarchies. The chain is kept short enough for the recursive builder.
+        Date activeSince = new GregorianCalendar(2010, 1, 1).getTime();
+        OrderWS[] hierarchies = {
+                buildTree(10000, 10, 1000, activeSince),
+                buildTree(10000, 1000, 1000, activeSince),
+                buildTree(10000, 1000, 10, activeSince),
+                BuilderBenchmark.buildHierarchy(10000, 100, activeSince)
+        };
+        for (OrderWS hierarchy : hierarchies) {
+            List<String> differences = compareWithLegacy(hierarchy);
+            if (!differences.isEmpty()) {
+                throw new IllegalStateException(differences.size() + " differences from the legacy builder, first "
+                        + differences.subList(0, Math.min(20, differences.size())));
+            }
+        }
+        System.out.println("OrderChangeBuilder matches the legacy builder on " + hierarchies.length + " hierarchies");
+
+        // A chain of ten thousand orders overflowed the stack of the recursive builder.
+        OrderWS chain = BuilderBenchmark.buildHierarchy(100000, 10000, new GregorianCalendar(2010, 1, 1).getTime());
+        long start = System.nanoTime();
+        OrderChangeWS[] changes = OrderChangeBuilder.buildChanges(chain, 1);
+        System.out.printf("%d changes for a chain of 10000 orders in %.1f ms%n", changes.length,
+                (System.nanoTime() - start) / 1e6);
+
+        Options options = new OptionsBuilder()
+                .include(OrderChangeBuilderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,173 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.Ch3ProductAndPricing;
+import com.jbilling.sample.PriceTimeline;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "Price at date" lookups per microsecond over a catalogue of half a million items with one to four effective-dated
+ * prices each, with {@link PriceTimeline} and with a {@link TreeMap} per item found through a {@link HashMap}. The
+ * main method also checks both give the same prices and prints the heap each of them takes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@State(Scope.Benchmark)
+public class PriceTimelineBenchmark {
+
+    private static final int ITEMS = 500000;
+    private static final int LOOKUPS = 1 << 16;
+
+    private PriceTimeline<PriceModelWS> timeline;
+    private Map<Integer, TreeMap<Date, PriceModelWS>> treeMaps;
+    private int[] itemIds;
+    private long[] times;
+
+    @Setup(Level.Trial)
+    public void generateCatalogue() {
+
+        Map<Integer, TreeMap<Date, PriceModelWS>> catalogue = generate(ITEMS, 42);
+        treeMaps = catalogue;
+        timeline = toTimeline(catalogue);
+        Random random = new Random(43);
+        itemIds = new int[LOOKUPS];
+        times = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            itemIds[i] = 1 + random.nextInt(ITEMS);
+            times[i] = randomTime(random);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int priceTimeline() {
+
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            found += timeline.at(itemIds[i], times[i]) != null ? 1 : 0;
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int treeMap() {
+
+        int found = 0;
+        for (int i = 0; i < LOOKUPS; i++) {
+            found += treeMapAt(treeMaps.get(itemIds[i]), times[i]) != null ? 1 : 0;
+        }
+        return found;
+    }
+
+    // Items 1 to count, prices changing on the first of a month between 2010 and 2014.
+    static Map<Integer, TreeMap<Date, PriceModelWS>> generate(int count, long seed) {
+
+        Random random = new Random(seed);
+        PriceModelWS[] models = new PriceModelWS[64];
+        for (int i = 0; i < models.length; i++) {
+            models[i] = Ch3ProductAndPricing.flatPriceModel(String.valueOf(i + 1));
+        }
+        Map<Integer, TreeMap<Date, PriceModelWS>> catalogue = new HashMap<>(count * 2);
+        for (int id = 1; id <= count; id++) {
+            TreeMap<Date, PriceModelWS> prices = new TreeMap<>();
+            int changes = 1 + random.nextInt(4);
+            for (int j = 0; j < changes; j++) {
+                Date from = new GregorianCalendar(2010 + random.nextInt(5), random.nextInt(12), 1).getTime();
+                prices.put(from, models[random.nextInt(models.length)]);
+            }
+            catalogue.put(id, prices);
+        }
+        return catalogue;
+    }
+
+    static PriceTimeline<PriceModelWS> toTimeline(Map<Integer, TreeMap<Date, PriceModelWS>> catalogue) {
+
+        PriceTimeline.Builder<PriceModelWS> builder = PriceTimeline.builder(catalogue.size() * 3);
+        for (Map.Entry<Integer, TreeMap<Date, PriceModelWS>> item : catalogue.entrySet()) {
+            builder.addAll(item.getKey(), item.getValue());
+        }
+        return builder.build();
+    }
+
+    // The same rule as PriceTimeline: the latest start not after the time, or the first price.
+    private static PriceModelWS treeMapAt(TreeMap<Date, PriceModelWS> prices, long time) {
+
+        if (prices == null) {
+            return null;
+        }
+        Map.Entry<Date, PriceModelWS> price = prices.floorEntry(new Date(time));
+        return price != null ? price.getValue() : prices.firstEntry().getValue();
+    }
+
+    private static long randomTime(Random random) {
+        return new GregorianCalendar(2009 + random.nextInt(7), random.nextInt(12), 1 + random.nextInt(28))
+                .getTimeInMillis();
+    }
+
+    private static long usedHeap() {
+
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        long before = usedHeap();
+        Map<Integer, TreeMap<Date, PriceModelWS>> catalogue = generate(ITEMS, 7);
+        long treeMapHeap = usedHeap() - before;
+        long start = System.nanoTime();
+        PriceTimeline<PriceModelWS> check = toTimeline(catalogue);
+        double buildMillis = (System.nanoTime() - start) / 1e6;
+        long timelineHeap = usedHeap() - before - treeMapHeap;
+
+        Random random = new Random(8);
+        for (int i = 0; i < 1000000; i++) {
+            int itemId = random.nextInt(ITEMS + 2);
+            long time = randomTime(random);
+            if (check.at(itemId, time) != treeMapAt(catalogue.get(itemId), time)) {
+                throw new IllegalStateException("Item " + itemId + " at " + new Date(time) + " differs");
+            }
+        }
+        SortedMap<Date, PriceModelWS> sample = check.toSortedMap(1);
+        if (!sample.equals(catalogue.get(1))) {
+            throw new IllegalStateException("The prices of item 1 differ");
+        }
+        System.out.printf("%d items, %d prices: tree maps %.1f MB, timeline %.1f MB built in %.0f ms%n", check.size(),
+                check.priceCount(), treeMapHeap / 1e6, timelineHeap / 1e6, buildMillis);
+
+        Options options = new OptionsBuilder()
+                .include(PriceTimelineBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,105 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.ProrationCalculator;
+import com.sapienter.jbilling.server.util.Constants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lines per microsecond of {@link ProrationCalculator} on a million generated monthly and daily lines, on one thread,
+ * in parallel, and with the {@code LocalDate} and {@code BigDecimal} reference implementation. The main method also
+ * checks the fast path against the reference.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProrationBenchmark {
+
+    private static final int LINES = 1000000;
+
+    private ProrationCalculator.Batch batch;
+
+    @Setup(Level.Trial)
+    public void generateLines() {
+        batch = generate(LINES, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public ProrationCalculator.Batch prorate() {
+        ProrationCalculator.prorate(batch);
+        return batch;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public ProrationCalculator.Batch prorateParallel() {
+        ProrationCalculator.prorateParallel(batch);
+        return batch;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long[] prorateReference() {
+        return ProrationCalculator.prorateReference(batch);
+    }
+
+    // Periods starting around today, one in four lines starting or ending within its period.
+    static ProrationCalculator.Batch generate(int lines, long seed) {
+
+        Random random = new Random(seed);
+        ProrationCalculator.Batch batch = new ProrationCalculator.Batch(lines);
+        int today = (int) (System.currentTimeMillis() / TimeUnit.DAYS.toMillis(1));
+        for (int i = 0; i < lines; i++) {
+            int periodStart = today - 3650 + random.nextInt(7300);
+            boolean monthly = random.nextInt(4) != 0;
+            int value = monthly ? 1 + random.nextInt(12) : 1 + random.nextInt(90);
+            int activeSince = periodStart;
+            int activeUntil = ProrationCalculator.NO_END;
+            if (random.nextInt(4) == 0) {
+                activeSince = periodStart + random.nextInt(28 * value);
+                if (random.nextBoolean()) {
+                    activeUntil = activeSince + random.nextInt(28 * value);
+                }
+            }
+            long amount = random.nextInt(100000000);
+            batch.add(periodStart, activeSince, activeUntil,
+                    monthly ? Constants.PERIOD_UNIT_MONTH : Constants.PERIOD_UNIT_DAY, value, amount);
+        }
+        return batch;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        ProrationCalculator.Batch check = generate(LINES, 7);
+        ProrationCalculator.prorateParallel(check);
+        int mismatch = ProrationCalculator.verify(check);
+        if (mismatch >= 0) {
+            throw new IllegalStateException("Line " + mismatch + " differs from the reference implementation");
+        }
+        System.out.println(LINES + " lines match the reference implementation");
+        Options options = new OptionsBuilder()
+                .include(ProrationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
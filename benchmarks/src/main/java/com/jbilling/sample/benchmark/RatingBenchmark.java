@@ -0,0 +1,150 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.Ch3ProductAndPricing;
+import com.jbilling.sample.RatingEngine;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.math.BigDecimal;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rates per microsecond of {@link RatingEngine} on generated usage of a thousand items with up to three effective
+ * dated FLAT, GRADUATED or ZERO prices each, compared with evaluating the {@link PriceModelWS} prices with
+ * {@link BigDecimal} for every rate. The main method also checks both give the same amounts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RatingBenchmark {
+
+    private static final int ITEMS = 1000;
+    private static final int RATES = 1 << 16;
+
+    private Usage usage;
+
+    @Setup(Level.Trial)
+    public void generateUsage() {
+        usage = generate(42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RATES)
+    public long rate() {
+
+        long sum = 0;
+        for (int i = 0; i < RATES; i++) {
+            sum += usage.schedules[usage.item[i]].amount(usage.quantity[i], usage.time[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RATES)
+    public BigDecimal rateBigDecimal() {
+
+        BigDecimal sum = BigDecimal.ZERO;
+        for (int i = 0; i < RATES; i++) {
+            sum = sum.add(amount(usage.prices[usage.item[i]], usage.quantity[i], usage.time[i]));
+        }
+        return sum;
+    }
+
+    static final class Usage {
+
+        final SortedMap<Date, PriceModelWS>[] prices;
+        final RatingEngine.Schedule[] schedules;
+        final int[] item = new int[RATES];
+        final long[] quantity = new long[RATES];
+        final long[] time = new long[RATES];
+
+        @SuppressWarnings("unchecked")
+        Usage(int items) {
+            prices = new SortedMap[items];
+            schedules = new RatingEngine.Schedule[items];
+        }
+    }
+
+    // Prices starting in 2010, 2011 and 2012, usage from 2009 to 2013 with quantities up to 10000 in hundredths.
+    static Usage generate(long seed) {
+
+        Random random = new Random(seed);
+        Usage usage = new Usage(ITEMS);
+        for (int i = 0; i < ITEMS; i++) {
+            SortedMap<Date, PriceModelWS> prices = new TreeMap<>();
+            int years = 1 + random.nextInt(3);
+            for (int year = 2010; year < 2010 + years; year++) {
+                Date from = new GregorianCalendar(year, 0, 1).getTime();
+                String price = BigDecimal.valueOf(random.nextInt(100000), 2).toPlainString();
+                int type = random.nextInt(3);
+                prices.putAll(type == 0 ? Ch3ProductAndPricing.withZeroPrice(from)
+                        : type == 1 ? Ch3ProductAndPricing.withFlatPrice(from, price)
+                        : Ch3ProductAndPricing.withGraduatedPrice(from, price, String.valueOf(random.nextInt(100))));
+            }
+            usage.prices[i] = prices;
+            usage.schedules[i] = RatingEngine.compile(prices);
+        }
+        for (int i = 0; i < RATES; i++) {
+            usage.item[i] = random.nextInt(ITEMS);
+            usage.quantity[i] = random.nextInt(1000000) * 100L;
+            usage.time[i] = new GregorianCalendar(2009 + random.nextInt(5), random.nextInt(12), 1 + random.nextInt(28))
+                    .getTimeInMillis();
+        }
+        return usage;
+    }
+
+    // Looks up and evaluates the price for every rate, the way a quote is calculated without the engine.
+    private static BigDecimal amount(SortedMap<Date, PriceModelWS> prices, long quantity, long time) {
+
+        SortedMap<Date, PriceModelWS> effective = prices.headMap(new Date(time + 1));
+        PriceModelWS model = effective.isEmpty() ? prices.get(prices.firstKey()) : effective.get(effective.lastKey());
+        BigDecimal charged = BigDecimal.valueOf(quantity, RatingEngine.SCALE);
+        if (Ch3ProductAndPricing.PRICE_ZERO.equals(model.getType())) {
+            return BigDecimal.ZERO;
+        }
+        if (Ch3ProductAndPricing.PRICE_GRADUATED.equals(model.getType())) {
+            String included = String.valueOf(model.getAttributes().get(RatingEngine.ATTRIBUTE_INCLUDED));
+            charged = charged.subtract(new BigDecimal(included)).max(BigDecimal.ZERO);
+        }
+        return new BigDecimal(String.valueOf(model.getRate())).multiply(charged);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Usage check = generate(7);
+        for (int i = 0; i < RATES; i++) {
+            long expected = RatingEngine.toScaled(amount(check.prices[check.item[i]], check.quantity[i],
+                    check.time[i]));
+            if (check.schedules[check.item[i]].amount(check.quantity[i], check.time[i]) != expected) {
+                throw new IllegalStateException("Rate " + i + " differs from the BigDecimal evaluation");
+            }
+        }
+        System.out.println(RATES + " rates match the BigDecimal evaluation");
+        Options options = new OptionsBuilder()
+                .include(RatingBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
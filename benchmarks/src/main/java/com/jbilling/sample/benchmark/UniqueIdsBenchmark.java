@@ -0,0 +1,103 @@
+package com.jbilling.sample.benchmark;
+
+import com.jbilling.sample.UniqueIds;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Multi-threaded throughput of {@link UniqueIds} compared with the plain millisecond timestamps the builders
+ * used before. The main method also checks that ids generated from many threads are unique.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UniqueIdsBenchmark {
+
+    private final UniqueIds ids = new UniqueIds(1);
+
+    @Benchmark
+    @Threads(1)
+    public long uniqueIdSingleThread() {
+        return ids.nextId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long uniqueIdEightThreads() {
+        return ids.nextId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String uniqueNameEightThreads() {
+        return "sampleUserName_" + ids.nextId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public long currentTimeMillisEightThreads() {
+        return System.currentTimeMillis();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        checkUniqueness(16, 200000);
+        Options options = new OptionsBuilder()
+                .include(UniqueIdsBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+
+    private static void checkUniqueness(int threads, int idsPerThread) throws InterruptedException {
+
+        UniqueIds generator = new UniqueIds(1);
+        Set<Long> all = ConcurrentHashMap.newKeySet();
+        AtomicLong duplicates = new AtomicLong();
+        AtomicLong timestampCollisions = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                Set<Long> millis = new HashSet<>();
+                for (int i = 0; i < idsPerThread; i++) {
+                    if (!all.add(generator.nextId())) {
+                        duplicates.incrementAndGet();
+                    }
+                    if (!millis.add(System.currentTimeMillis())) {
+                        timestampCollisions.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%d ids from %d threads in %.1f ms, %d duplicates (millisecond timestamps: %d duplicates)%n",
+                all.size() + duplicates.get(), threads, elapsed / 1e6, duplicates.get(), timestampCollisions.get());
+        if (duplicates.get() > 0) {
+            throw new IllegalStateException("Duplicate ids generated");
+        }
+    }
+}
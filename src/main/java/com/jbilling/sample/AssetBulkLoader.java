@@ -0,0 +1,154 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.AssetSearchResult;
+import com.sapienter.jbilling.server.item.AssetWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.search.BasicFilter;
+import com.sapienter.jbilling.server.util.search.Filter;
+import com.sapienter.jbilling.server.util.search.SearchCriteria;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Loads assets for large arrays of asset ids, as returned by {@code getAssetsForCategory()} and
+ * {@code getAssetsForItem()}, without one sequential {@code getAsset()} round trip per id.
+ *
+ * The ids are split into chunks that are fetched in parallel, with a bounded number of chunks in flight.
+ * Assets are handed to the consumer on the calling thread in the order of the input ids, as soon as their chunk
+ * and all chunks before it are loaded, so only the chunks in flight are kept in memory. Ids that no longer
+ * exist are skipped.
+ */
+public class AssetBulkLoader implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 200;
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    /**
+     * Fetches the assets of one chunk of ids. The result may be in any order and may miss ids.
+     */
+    public interface ChunkFetcher {
+        AssetWS[] fetch(JbillingAPI api, Integer[] assetIds) throws Exception;
+    }
+
+    private final JbillingAPI api;
+    private final ChunkFetcher fetcher;
+    private final int chunkSize;
+    private final int parallelism;
+    private final ExecutorService executor;
+
+    public AssetBulkLoader(JbillingAPI api) {
+        this(api, byId(), DEFAULT_CHUNK_SIZE, DEFAULT_PARALLELISM);
+    }
+
+    public AssetBulkLoader(JbillingAPI api, ChunkFetcher fetcher, int chunkSize, int parallelism) {
+
+        this.api = api;
+        this.fetcher = fetcher;
+        this.chunkSize = chunkSize;
+        this.parallelism = parallelism;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "asset-loader-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Fetches every asset of a chunk with {@code getAsset()}. Works for any ids, the parallelism comes from
+     * loading several chunks at once.
+     */
+    public static ChunkFetcher byId() {
+
+        return (api, assetIds) -> {
+            AssetWS[] assets = new AssetWS[assetIds.length];
+            for (int i = 0; i < assetIds.length; i++) {
+                assets[i] = api.getAsset(assetIds[i]);
+            }
+            return assets;
+        };
+    }
+
+    /**
+     * Fetches a whole chunk with a single {@code findAssets()} call, filtering on the asset ids.
+     * All ids must belong to assets of the given product.
+     */
+    public static ChunkFetcher byItemSearch(Integer itemId) {
+
+        return (api, assetIds) -> {
+            SearchCriteria criteria = Ch4AssetManagement.findByCriteria(0, assetIds.length, "id",
+                    SearchCriteria.SortDirection.ASC,
+                    new BasicFilter[] {new BasicFilter("id", Filter.FilterConstraint.IN, Arrays.asList(assetIds))});
+            AssetSearchResult result = api.findAssets(itemId, criteria);
+            return result.getObjects();
+        };
+    }
+
+    /**
+     * Loads the assets and passes them to the consumer in the order of the ids.
+     *
+     * @return the number of assets passed to the consumer
+     */
+    public int load(Integer[] assetIds, Consumer<AssetWS> consumer) throws Exception {
+
+        // At most two chunks per thread are in flight, one being fetched and one waiting.
+        int window = parallelism * 2;
+        ArrayDeque<Future<AssetWS[]>> inFlight = new ArrayDeque<>(window);
+        ArrayDeque<Integer[]> inFlightIds = new ArrayDeque<>(window);
+        int next = 0;
+        int loaded = 0;
+        while (next < assetIds.length || !inFlight.isEmpty()) {
+            while (next < assetIds.length && inFlight.size() < window) {
+                Integer[] chunk = Arrays.copyOfRange(assetIds, next, Math.min(next + chunkSize, assetIds.length));
+                inFlight.add(executor.submit(() -> fetcher.fetch(api, chunk)));
+                inFlightIds.add(chunk);
+                next += chunk.length;
+            }
+            loaded += emitInOrder(inFlightIds.poll(), await(inFlight.poll()), consumer);
+        }
+        return loaded;
+    }
+
+    private static int emitInOrder(Integer[] ids, AssetWS[] assets, Consumer<AssetWS> consumer) {
+
+        Map<Integer, AssetWS> byId = new HashMap<>(assets.length * 2);
+        for (AssetWS asset : assets) {
+            if (asset != null) {
+                byId.put(asset.getId(), asset);
+            }
+        }
+        int emitted = 0;
+        for (Integer id : ids) {
+            AssetWS asset = byId.get(id);
+            if (asset != null) {
+                consumer.accept(asset);
+                emitted++;
+            }
+        }
+        return emitted;
+    }
+
+    private static AssetWS[] await(Future<AssetWS[]> future) throws Exception {
+
+        try {
+            AssetWS[] assets = future.get();
+            return assets != null ? assets : new AssetWS[0];
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
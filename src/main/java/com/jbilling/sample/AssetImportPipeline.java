@@ -0,0 +1,635 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.AssetSearchResult;
+import com.sapienter.jbilling.server.item.AssetWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+import com.sapienter.jbilling.server.util.search.BasicFilter;
+import com.sapienter.jbilling.server.util.search.Filter;
+import com.sapienter.jbilling.server.util.search.SearchCriteria;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side pipeline for importing very large asset CSV files.
+ *
+ * Instead of uploading the whole file with a single {@code startImportAssetJob()} call, the file is streamed,
+ * validated against the {@code Identifier,Notes,Global,Entities} columns, deduplicated on the identifier and
+ * split into chunk files of bounded size. The chunks are submitted as separate import jobs, several at a time,
+ * and every job is tracked until it is finished. {@code startImportAssetJob()} does not return a job id, so a job
+ * counts as finished once every identifier of its chunk is either an asset of the product ({@code findAssets()})
+ * or a row of the job's error file. The state of every chunk is kept in a manifest in the work directory: a rerun
+ * after a failure only submits the chunks that were not submitted yet and goes on tracking the ones that did not
+ * finish. Each job writes its own error file, once all the jobs are finished the error files are merged into one
+ * with {@link #mergeErrorFiles()}.
+ *
+ * Usage: {@code AssetImportPipeline itemId sourceCsv workDir [chunkRows] [parallelism]}
+ */
+public class AssetImportPipeline {
+
+    public static final String IDENTIFIER = "Identifier";
+    public static final String NOTES = "Notes";
+    public static final String GLOBAL = "Global";
+    public static final String ENTITIES = "Entities";
+    public static final String[] COLUMNS = {IDENTIFIER, NOTES, GLOBAL, ENTITIES};
+
+    public static final String MANIFEST = "manifest.properties";
+    public static final String REJECTED = "rejected.csv";
+    public static final String MERGED_ERRORS = "errors.csv";
+
+    private static final String SUBMITTED = "SUBMITTED";
+    private static final String COMPLETED = "COMPLETED";
+    private static final String TIMED_OUT = "TIMED_OUT";
+    private static final String FAILED = "FAILED";
+    // Identifiers looked up with one findAssets() call while tracking a job.
+    private static final int LOOKUP_BATCH = 500;
+
+    private final JbillingAPI api;
+    private final Integer itemId;
+    private final Path workDir;
+    private final int chunkRows;
+    private final int parallelism;
+    private final Properties manifest = new Properties();
+    private long pollIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+    private long jobTimeoutMillis = TimeUnit.HOURS.toMillis(1);
+
+    public AssetImportPipeline(JbillingAPI api, Integer itemId, Path workDir, int chunkRows, int parallelism)
+            throws IOException {
+
+        this.api = api;
+        this.itemId = itemId;
+        this.workDir = workDir;
+        this.chunkRows = chunkRows;
+        this.parallelism = parallelism;
+        Files.createDirectories(workDir);
+        Path manifestFile = workDir.resolve(MANIFEST);
+        if (Files.exists(manifestFile)) {
+            try (Reader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+                manifest.load(reader);
+            }
+        }
+    }
+
+    /**
+     * How often the state of a running import job is checked, and how long a job may take before it is recorded
+     * as {@code TIMED_OUT}. A rerun goes on tracking timed out jobs.
+     */
+    public AssetImportPipeline setPolling(long interval, long timeout, TimeUnit unit) {
+
+        this.pollIntervalMillis = unit.toMillis(interval);
+        this.jobTimeoutMillis = unit.toMillis(timeout);
+        return this;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Integer itemId = Integer.valueOf(args[0]);
+        Path source = Paths.get(args.length > 1 ? args[1] : "src/main/resources/assets.csv");
+        Path workDir = Paths.get(args.length > 2 ? args[2] : "target/asset-import");
+        int chunkRows = args.length > 3 ? Integer.parseInt(args[3]) : 50000;
+        int parallelism = args.length > 4 ? Integer.parseInt(args[4]) : 4;
+
+        AssetImportPipeline pipeline = new AssetImportPipeline(JbillingAPIFactory.getAPI(), itemId, workDir,
+                chunkRows, parallelism);
+        long start = System.nanoTime();
+        PrepareResult prepared = pipeline.prepare(source);
+        long prepareTime = System.nanoTime() - start;
+        System.out.printf("%s in %.1f ms (%.0f rows/s)%n", prepared, prepareTime / 1e6,
+                prepared.getRows() / (prepareTime / 1e9));
+        SubmitResult submitted = pipeline.submit(prepared.getChunks());
+        System.out.println(submitted);
+        if (submitted.isFinished()) {
+            System.out.println("Errors merged into " + pipeline.mergeErrorFiles());
+        }
+    }
+
+    /**
+     * Runs the whole pipeline: prepares the chunks, submits the ones not submitted yet, waits for all the jobs and
+     * merges their error files once every job is finished.
+     */
+    public SubmitResult run(Path source) throws Exception {
+
+        SubmitResult result = submit(prepare(source).getChunks());
+        if (result.isFinished()) {
+            mergeErrorFiles();
+        }
+        return result;
+    }
+
+    /**
+     * Streams the source file, validates and deduplicates its rows and writes them to chunk files in the work
+     * directory. Rejected rows are written to {@value #REJECTED} together with the reason. If the manifest shows
+     * that the same source file was already prepared, the existing chunks are reused.
+     */
+    public PrepareResult prepare(Path source) throws IOException {
+
+        String sourceKey = source.toAbsolutePath() + ":" + Files.size(source) + ":" + Files.getLastModifiedTime(source);
+        synchronized (manifest) {
+            if (sourceKey.equals(manifest.getProperty("source")) && manifest.getProperty("chunks") != null) {
+                return new PrepareResult(listChunks(), Long.parseLong(manifest.getProperty("rows")),
+                        Long.parseLong(manifest.getProperty("duplicates")),
+                        Long.parseLong(manifest.getProperty("rejected")));
+            }
+        }
+
+        List<Path> chunks = new ArrayList<>();
+        Set<String> identifiers = new HashSet<>();
+        long rows = 0;
+        long duplicates = 0;
+        long rejected = 0;
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8);
+             BufferedWriter rejects = Files.newBufferedWriter(workDir.resolve(REJECTED), StandardCharsets.UTF_8)) {
+
+            String headerLine = reader.readLine();
+            if (headerLine == null) {
+                throw new IOException("Empty asset file " + source);
+            }
+            int[] columns = columnIndexes(parseLine(headerLine), source);
+            String header = String.join(",", COLUMNS);
+            rejects.write(headerLine + ",Reason\n");
+
+            BufferedWriter chunk = null;
+            int chunkCount = 0;
+            String line;
+            List<String> fields = new ArrayList<>(8);
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                fields.clear();
+                parseLine(line, fields);
+                String reason = validate(fields, columns);
+                if (reason == null && !identifiers.add(fields.get(columns[0]))) {
+                    reason = "Duplicate identifier";
+                    duplicates++;
+                }
+                if (reason != null) {
+                    rejects.write(line);
+                    rejects.write(',');
+                    rejects.write(reason);
+                    rejects.write('\n');
+                    rejected++;
+                    continue;
+                }
+
+                if (chunk == null || chunkCount == chunkRows) {
+                    if (chunk != null) {
+                        chunk.close();
+                    }
+                    Path chunkFile = workDir.resolve(String.format("chunk-%05d.csv", chunks.size()));
+                    chunks.add(chunkFile);
+                    chunk = Files.newBufferedWriter(chunkFile, StandardCharsets.UTF_8);
+                    chunk.write(header);
+                    chunk.write('\n');
+                    chunkCount = 0;
+                }
+                // Rows are written in the canonical column order so every job uses the same column names.
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) {
+                        chunk.write(',');
+                    }
+                    writeField(chunk, fields.get(columns[i]));
+                }
+                chunk.write('\n');
+                chunkCount++;
+                rows++;
+            }
+            if (chunk != null) {
+                chunk.close();
+            }
+        }
+
+        synchronized (manifest) {
+            manifest.clear();
+            manifest.setProperty("source", sourceKey);
+            manifest.setProperty("chunks", String.valueOf(chunks.size()));
+            manifest.setProperty("rows", String.valueOf(rows));
+            manifest.setProperty("duplicates", String.valueOf(duplicates));
+            manifest.setProperty("rejected", String.valueOf(rejected));
+            saveManifest();
+        }
+        return new PrepareResult(chunks, rows, duplicates, rejected);
+    }
+
+    /**
+     * Submits an import job for every chunk that was not submitted before and tracks the jobs until they are
+     * finished, with at most {@code parallelism} jobs at a time. Jobs submitted by an earlier run that did not
+     * finish are tracked again, not submitted again. A failing chunk is recorded in the manifest and does not stop
+     * the other chunks.
+     */
+    public SubmitResult submit(List<Path> chunks) throws InterruptedException, IOException {
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        List<Future<String>> results = new ArrayList<>();
+        int skipped = 0;
+        int submitted = 0;
+        for (Path chunk : chunks) {
+            String key = "chunk." + chunk.getFileName();
+            String state;
+            synchronized (manifest) {
+                state = manifest.getProperty(key, "");
+            }
+            if (state.startsWith(COMPLETED)) {
+                skipped++;
+                continue;
+            }
+            boolean submit = !state.startsWith(SUBMITTED) && !state.startsWith(TIMED_OUT);
+            if (submit) {
+                submitted++;
+            }
+            results.add(executor.submit(() -> submit ? submitChunk(chunk, key) : awaitChunk(chunk, key)));
+        }
+        executor.shutdown();
+
+        int completed = 0;
+        int failed = 0;
+        int timedOut = 0;
+        for (Future<String> result : results) {
+            try {
+                String state = result.get();
+                if (state.startsWith(COMPLETED)) {
+                    completed++;
+                } else if (state.startsWith(TIMED_OUT)) {
+                    timedOut++;
+                } else {
+                    failed++;
+                }
+            } catch (ExecutionException e) {
+                failed++;
+            }
+        }
+        synchronized (manifest) {
+            saveManifest();
+        }
+        return new SubmitResult(submitted, completed, skipped, timedOut, failed);
+    }
+
+    private String submitChunk(Path chunk, String key) throws IOException, InterruptedException {
+
+        Path errorFile = errorFileFor(chunk);
+        try {
+            // An error file left by an earlier attempt would make the job look finished right away.
+            Files.deleteIfExists(errorFile);
+            api.startImportAssetJob(itemId, IDENTIFIER, NOTES, GLOBAL, ENTITIES,
+                    chunk.toAbsolutePath().toString(), errorFile.toAbsolutePath().toString());
+            recordState(key, SUBMITTED);
+        } catch (RuntimeException e) {
+            String state = FAILED + ": " + e.getMessage();
+            recordState(key, state);
+            return state;
+        }
+        return awaitChunk(chunk, key);
+    }
+
+    // Polls until every identifier of the chunk was imported or rejected, and records the final state.
+    private String awaitChunk(Path chunk, String key) throws IOException, InterruptedException {
+
+        Set<String> pending = readIdentifiers(chunk);
+        int rows = pending.size();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(jobTimeoutMillis);
+        while (true) {
+            int errors = removeRejected(pending, errorFileFor(chunk));
+            removeImported(pending);
+            String state;
+            if (pending.isEmpty()) {
+                state = COMPLETED + ": " + (rows - errors) + " imported, " + errors + " errors";
+            } else if (System.nanoTime() - deadline > 0) {
+                state = TIMED_OUT + ": " + pending.size() + " of " + rows + " rows pending";
+            } else {
+                TimeUnit.MILLISECONDS.sleep(pollIntervalMillis);
+                continue;
+            }
+            recordState(key, state);
+            return state;
+        }
+    }
+
+    private static Set<String> readIdentifiers(Path chunk) throws IOException {
+
+        Set<String> identifiers = new HashSet<>();
+        try (BufferedReader reader = Files.newBufferedReader(chunk, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Chunk files use the canonical column order, the identifier comes first.
+                identifiers.add(parseLine(line).get(0));
+            }
+        }
+        return identifiers;
+    }
+
+    // The error file repeats the rejected rows, in the column order of the chunk. Returns the number of rows in it.
+    private static int removeRejected(Set<String> pending, Path errorFile) throws IOException {
+
+        if (!Files.exists(errorFile)) {
+            return 0;
+        }
+        int errors = 0;
+        try (BufferedReader reader = Files.newBufferedReader(errorFile, StandardCharsets.UTF_8)) {
+            reader.readLine();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    pending.remove(parseLine(line).get(0));
+                    errors++;
+                }
+            }
+        }
+        return errors;
+    }
+
+    private void removeImported(Set<String> pending) {
+
+        List<String> identifiers = new ArrayList<>(pending);
+        for (int from = 0; from < identifiers.size(); from += LOOKUP_BATCH) {
+            List<String> batch = identifiers.subList(from, Math.min(identifiers.size(), from + LOOKUP_BATCH));
+            SearchCriteria criteria = Ch4AssetManagement.findByCriteria(0, batch.size(), "id",
+                    SearchCriteria.SortDirection.ASC,
+                    new BasicFilter[] {new BasicFilter("identifier", Filter.FilterConstraint.IN, batch)});
+            AssetSearchResult result = api.findAssets(itemId, criteria);
+            if (result != null && result.getObjects() != null) {
+                for (AssetWS asset : result.getObjects()) {
+                    pending.remove(asset.getIdentifier());
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges the error files written by the import jobs into {@value #MERGED_ERRORS}, keeping the header of the
+     * first file only.
+     *
+     * @throws IllegalStateException if not every job is recorded as finished in the manifest
+     */
+    public Path mergeErrorFiles() throws IOException {
+
+        List<String> unfinished = new ArrayList<>();
+        synchronized (manifest) {
+            for (Path chunk : listChunks()) {
+                if (!manifest.getProperty("chunk." + chunk.getFileName(), "").startsWith(COMPLETED)) {
+                    unfinished.add(chunk.getFileName().toString());
+                }
+            }
+        }
+        if (!unfinished.isEmpty()) {
+            throw new IllegalStateException("Import jobs not finished for " + unfinished);
+        }
+        Path merged = workDir.resolve(MERGED_ERRORS);
+        Path temp = workDir.resolve(MERGED_ERRORS + ".tmp");
+        boolean headerWritten = false;
+        try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Path chunk : listChunks()) {
+                Path errorFile = errorFileFor(chunk);
+                if (!Files.exists(errorFile)) {
+                    continue;
+                }
+                try (BufferedReader reader = Files.newBufferedReader(errorFile, StandardCharsets.UTF_8)) {
+                    String header = reader.readLine();
+                    if (header != null && !headerWritten) {
+                        out.write(header);
+                        out.write('\n');
+                        headerWritten = true;
+                    }
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        out.write(line);
+                        out.write('\n');
+                    }
+                }
+            }
+        }
+        return Files.move(temp, merged, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path errorFileFor(Path chunk) {
+        return workDir.resolve(chunk.getFileName().toString().replace(".csv", ".errors.csv"));
+    }
+
+    private List<Path> listChunks() {
+
+        int count = Integer.parseInt(manifest.getProperty("chunks", "0"));
+        List<Path> chunks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunks.add(workDir.resolve(String.format("chunk-%05d.csv", i)));
+        }
+        return chunks;
+    }
+
+    private void recordState(String key, String state) throws IOException {
+
+        synchronized (manifest) {
+            manifest.setProperty(key, state);
+            saveManifest();
+        }
+    }
+
+    // Written to a temporary file first, so a crash never leaves a half written manifest behind.
+    private void saveManifest() throws IOException {
+
+        Path temp = workDir.resolve(MANIFEST + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            manifest.store(writer, "Asset import state");
+        }
+        Files.move(temp, workDir.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int[] columnIndexes(List<String> header, Path source) throws IOException {
+
+        int[] indexes = new int[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            indexes[i] = header.indexOf(COLUMNS[i]);
+            if (indexes[i] < 0) {
+                throw new IOException("Column " + COLUMNS[i] + " missing in " + source + ", found " + header);
+            }
+        }
+        return indexes;
+    }
+
+    // Returns the reason why a row is rejected, or null for a valid row.
+    private static String validate(List<String> fields, int[] columns) {
+
+        for (int column : columns) {
+            if (column >= fields.size()) {
+                return "Expected at least " + (column + 1) + " columns";
+            }
+        }
+        if (fields.get(columns[0]).trim().isEmpty()) {
+            return "Missing identifier";
+        }
+        String global = fields.get(columns[2]).trim().toUpperCase(Locale.ROOT);
+        if (!"TRUE".equals(global) && !"FALSE".equals(global)) {
+            return "Global must be TRUE or FALSE";
+        }
+        if ("FALSE".equals(global) && fields.get(columns[3]).trim().isEmpty()) {
+            return "Entities are required for non global assets";
+        }
+        return null;
+    }
+
+    static List<String> parseLine(String line) {
+
+        List<String> fields = new ArrayList<>();
+        parseLine(line, fields);
+        return fields;
+    }
+
+    /**
+     * Splits a CSV line into fields. Fields may be quoted, quotes inside quoted fields are doubled.
+     */
+    static void parseLine(String line, List<String> fields) {
+
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+    }
+
+    private static void writeField(Writer writer, String value) throws IOException {
+
+        if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0) {
+            writer.write('"');
+            writer.write(value.replace("\"", "\"\""));
+            writer.write('"');
+        } else {
+            writer.write(value);
+        }
+    }
+
+    public static final class PrepareResult {
+
+        private final List<Path> chunks;
+        private final long rows;
+        private final long duplicates;
+        private final long rejected;
+
+        PrepareResult(List<Path> chunks, long rows, long duplicates, long rejected) {
+            this.chunks = chunks;
+            this.rows = rows;
+            this.duplicates = duplicates;
+            this.rejected = rejected;
+        }
+
+        public List<Path> getChunks() {
+            return chunks;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        @Override
+        public String toString() {
+            return "Prepared " + rows + " rows in " + chunks.size() + " chunks, rejected " + rejected
+                    + " rows (" + duplicates + " duplicates)";
+        }
+    }
+
+    public static final class SubmitResult {
+
+        private final int submitted;
+        private final int completed;
+        private final int skipped;
+        private final int timedOut;
+        private final int failed;
+
+        SubmitResult(int submitted, int completed, int skipped, int timedOut, int failed) {
+            this.submitted = submitted;
+            this.completed = completed;
+            this.skipped = skipped;
+            this.timedOut = timedOut;
+            this.failed = failed;
+        }
+
+        /**
+         * Number of chunks submitted by this run, including the submissions that failed.
+         */
+        public int getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * Number of import jobs that finished during this run.
+         */
+        public int getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Number of chunks whose import job had finished before this run.
+         */
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public int getTimedOut() {
+            return timedOut;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        /**
+         * Whether the import jobs of all the chunks are finished.
+         */
+        public boolean isFinished() {
+            return timedOut == 0 && failed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Submitted " + submitted + " chunks, " + completed + " jobs finished, skipped " + skipped
+                    + " already finished, timed out " + timedOut + ", failed " + failed
+                    + (isFinished() ? "" : " (run again to retry the failed chunks and track the unfinished jobs)");
+        }
+    }
+}
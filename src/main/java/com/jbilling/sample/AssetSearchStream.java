@@ -0,0 +1,201 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.AssetSearchResult;
+import com.sapienter.jbilling.server.item.AssetWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.search.BasicFilter;
+import com.sapienter.jbilling.server.util.search.SearchCriteria;
+
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Lazy stream over all the assets of a product that match a search, backed by paged {@code findAssets()} calls.
+ *
+ * While a page is consumed the next page is already fetched in the background. The page size starts at
+ * {@link #setPageSize(int, int, int) the initial size} and is adapted to the observed latency: pages that come
+ * back much faster than the target latency double the next page size, slow pages halve it. Short-circuiting
+ * operations such as {@code limit()} or {@code findFirst()} stop the paging, and closing the stream cancels
+ * the page in flight.
+ *
+ * The results are sorted by {@code id} by default, so that the pages do not overlap while paging.
+ */
+public class AssetSearchStream {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "asset-search-prefetch-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JbillingAPI api;
+    private final Integer itemId;
+    private int initialPageSize = 100;
+    private int minPageSize = 20;
+    private int maxPageSize = 2000;
+    private long targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(250);
+    private String sort = "id";
+    private SearchCriteria.SortDirection direction = SearchCriteria.SortDirection.ASC;
+
+    public AssetSearchStream(JbillingAPI api, Integer itemId) {
+        this.api = api;
+        this.itemId = itemId;
+    }
+
+    public AssetSearchStream setPageSize(int initial, int min, int max) {
+
+        if (min < 1 || initial < min || max < initial) {
+            throw new IllegalArgumentException("Expected 1 <= min <= initial <= max");
+        }
+        this.initialPageSize = initial;
+        this.minPageSize = min;
+        this.maxPageSize = max;
+        return this;
+    }
+
+    public AssetSearchStream setTargetLatency(long latency, TimeUnit unit) {
+        this.targetLatencyNanos = unit.toNanos(latency);
+        return this;
+    }
+
+    public AssetSearchStream setSort(String sort, SearchCriteria.SortDirection direction) {
+        this.sort = sort;
+        this.direction = direction;
+        return this;
+    }
+
+    /**
+     * Streams the assets matching all the filters. The first page is requested right away, the stream should
+     * be closed when it is not consumed to the end.
+     */
+    public Stream<AssetWS> stream(BasicFilter... filters) {
+
+        PageSpliterator spliterator = new PageSpliterator(filters);
+        return StreamSupport.stream(spliterator, false).onClose(spliterator::cancel);
+    }
+
+    private static final class Page {
+
+        final AssetWS[] assets;
+        final int requested;
+        final long latencyNanos;
+
+        Page(AssetWS[] assets, int requested, long latencyNanos) {
+            this.assets = assets;
+            this.requested = requested;
+            this.latencyNanos = latencyNanos;
+        }
+    }
+
+    private final class PageSpliterator implements Spliterator<AssetWS> {
+
+        private final BasicFilter[] filters;
+        private CompletableFuture<Page> next;
+        private AssetWS[] current = new AssetWS[0];
+        private int position;
+        private int offset;
+        private int pageSize = initialPageSize;
+        private boolean lastPage;
+
+        PageSpliterator(BasicFilter[] filters) {
+            this.filters = filters;
+            this.next = fetch(0, pageSize);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super AssetWS> action) {
+
+            while (position == current.length) {
+                if (lastPage) {
+                    return false;
+                }
+                Page page = await(next);
+                current = page.assets;
+                position = 0;
+                // A short page is the last one, otherwise the following page is fetched while this one is consumed.
+                lastPage = current.length < page.requested;
+                if (!lastPage) {
+                    offset += current.length;
+                    pageSize = adapt(pageSize, page.latencyNanos);
+                    next = fetch(offset, pageSize);
+                } else {
+                    next = null;
+                }
+            }
+            action.accept(current[position++]);
+            return true;
+        }
+
+        private int adapt(int size, long latencyNanos) {
+
+            if (latencyNanos < targetLatencyNanos / 2) {
+                return Math.min(size * 2, maxPageSize);
+            }
+            if (latencyNanos > targetLatencyNanos * 2) {
+                return Math.max(size / 2, minPageSize);
+            }
+            return size;
+        }
+
+        private CompletableFuture<Page> fetch(int pageOffset, int max) {
+
+            SearchCriteria criteria = Ch4AssetManagement.findByCriteria(pageOffset, max, sort, direction, filters);
+            return CompletableFuture.supplyAsync(() -> {
+                long start = System.nanoTime();
+                AssetSearchResult result = api.findAssets(itemId, criteria);
+                AssetWS[] assets = result != null && result.getObjects() != null ? result.getObjects() : new AssetWS[0];
+                return new Page(assets, max, System.nanoTime() - start);
+            }, PREFETCH);
+        }
+
+        private Page await(CompletableFuture<Page> page) {
+
+            try {
+                return page.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next page of assets", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IllegalStateException("Asset search failed", cause);
+            }
+        }
+
+        void cancel() {
+
+            lastPage = true;
+            if (next != null) {
+                next.cancel(true);
+            }
+        }
+
+        @Override
+        public Spliterator<AssetWS> trySplit() {
+            // Pages depend on each other's offsets, the parallelism comes from the prefetch instead.
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+}
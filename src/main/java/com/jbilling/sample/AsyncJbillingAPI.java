@@ -0,0 +1,234 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.item.ItemTypeWS;
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.user.AccountTypeWS;
+import com.sapienter.jbilling.server.user.UserWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous facade over {@link JbillingAPI}.
+ *
+ * Any API method can be called through {@link #submit(ApiCall)}, which runs the call on a bounded executor and
+ * returns a {@link CompletableFuture}. On Java 21+ virtual threads are used and the concurrency is bounded with
+ * a semaphore, on older runtimes a fixed thread pool is used. Cancelling a returned future interrupts the call,
+ * and an optional per-call timeout completes the future with a {@link TimeoutException}.
+ */
+public class AsyncJbillingAPI implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 16;
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /**
+     * A single call against the synchronous API.
+     */
+    public interface ApiCall<T> {
+        T call(JbillingAPI api) throws Exception;
+    }
+
+    private final JbillingAPI api;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final ScheduledExecutorService timer;
+    private final long defaultTimeoutMillis;
+
+    public AsyncJbillingAPI(JbillingAPI api) {
+        this(api, DEFAULT_MAX_CONCURRENCY, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param api            synchronous API used for the calls
+     * @param maxConcurrency maximum number of calls running at the same time
+     * @param defaultTimeout timeout applied to every call, zero or less for no timeout
+     */
+    public AsyncJbillingAPI(JbillingAPI api, int maxConcurrency, long defaultTimeout, TimeUnit unit) {
+
+        this.api = api;
+        this.defaultTimeoutMillis = unit.toMillis(defaultTimeout);
+        ExecutorService virtualExecutor = newVirtualThreadExecutor();
+        if (virtualExecutor != null) {
+            // Virtual threads are cheap, the number of concurrent calls is limited with the semaphore.
+            this.executor = virtualExecutor;
+            this.permits = new Semaphore(maxConcurrency);
+        } else {
+            this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(DEFAULT_QUEUE_CAPACITY), namedThreads("jbilling-async-"));
+            this.permits = null;
+        }
+        this.timer = Executors.newSingleThreadScheduledExecutor(namedThreads("jbilling-async-timer-"));
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        JbillingAPI api = JbillingAPIFactory.getAPI();
+        Integer companyId = api.getCallerCompanyId();
+
+        try (AsyncJbillingAPI async = new AsyncJbillingAPI(api, 8, 30, TimeUnit.SECONDS)) {
+
+            // The account type and the item category do not depend on each other, so both calls run at once.
+            CompletableFuture<Integer> accTypeId = async.createAccountType(Ch1AccountTypes.buildAccountType(companyId));
+            CompletableFuture<Integer> itemTypeId = async.createItemCategory(Ch3ProductAndPricing.buildItemType(companyId));
+
+            // The user and the item are created as soon as the entity they depend on is available.
+            CompletableFuture<Integer> userId = accTypeId.thenCompose(id -> async.createUser(
+                    Ch2CustomerManagement.buildUser(id, Ch8PurchaseOrders.CUSTOMER_ROLE_ID, companyId)));
+            CompletableFuture<Integer> itemId = itemTypeId.thenCompose(id -> async.createItem(
+                    Ch3ProductAndPricing.buildItem(companyId, "sampleProduct_" + UniqueIds.next(), id,
+                            Integer.valueOf(0), Ch3ProductAndPricing.withFlatPrice(new Date(), "10"))));
+
+            // Any other API method can be called through submit().
+            CompletableFuture<Integer> currencyId = async.submit(JbillingAPI::getCallerCurrencyId);
+
+            CompletableFuture.allOf(userId, itemId, currencyId).join();
+            System.out.println("Created user " + userId.join() + " and item " + itemId.join()
+                    + " with currency " + currencyId.join());
+        }
+    }
+
+    /**
+     * Runs the call asynchronously using the default timeout.
+     */
+    public <T> CompletableFuture<T> submit(ApiCall<T> call) {
+        return submit(call, defaultTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs the call asynchronously. If the call does not finish within the timeout, the returned future is
+     * completed with a {@link TimeoutException} and the call is interrupted.
+     */
+    public <T> CompletableFuture<T> submit(ApiCall<T> call, long timeout, TimeUnit unit) {
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> task;
+        try {
+            task = executor.submit(() -> execute(call, result));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        if (timeout > 0) {
+            ScheduledFuture<?> timeoutTask = timer.schedule(() -> {
+                result.completeExceptionally(new TimeoutException("API call timed out after "
+                        + unit.toMillis(timeout) + " ms"));
+            }, timeout, unit);
+            result.whenComplete((value, error) -> timeoutTask.cancel(false));
+        }
+        // Cancellation and timeouts of the returned future are propagated to the running call.
+        result.whenComplete((value, error) -> {
+            if ((result.isCancelled() || error instanceof TimeoutException) && !task.isDone()) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private <T> void execute(ApiCall<T> call, CompletableFuture<T> result) {
+
+        if (result.isDone()) {
+            return;
+        }
+        boolean acquired = false;
+        try {
+            if (permits != null) {
+                permits.acquire();
+                acquired = true;
+            }
+            if (!result.isDone()) {
+                result.complete(call.call(api));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(true);
+        } catch (Throwable e) {
+            result.completeExceptionally(e);
+        } finally {
+            if (acquired) {
+                permits.release();
+            }
+        }
+    }
+
+    public CompletableFuture<Integer> createAccountType(AccountTypeWS accountType) {
+        return submit(api -> api.createAccountType(accountType));
+    }
+
+    public CompletableFuture<Integer> createUser(UserWS user) {
+        return submit(api -> api.createUser(user));
+    }
+
+    public CompletableFuture<Integer> createItemCategory(ItemTypeWS itemType) {
+        return submit(api -> api.createItemCategory(itemType));
+    }
+
+    public CompletableFuture<Integer> createItem(ItemDTOEx item) {
+        return submit(api -> api.createItem(item));
+    }
+
+    public CompletableFuture<Integer> createOrder(OrderWS order, OrderChangeWS[] orderChanges) {
+        return submit(api -> api.createOrder(order, orderChanges));
+    }
+
+    public CompletableFuture<OrderWS> getOrder(Integer orderId) {
+        return submit(api -> api.getOrder(orderId));
+    }
+
+    public CompletableFuture<UserWS> getUserWS(Integer userId) {
+        return submit(api -> api.getUserWS(userId));
+    }
+
+    public JbillingAPI getDelegate() {
+        return api;
+    }
+
+    @Override
+    public void close() {
+
+        executor.shutdown();
+        timer.shutdownNow();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+
+        // Looked up reflectively, the project is compiled for Java 8.
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory namedThreads(String prefix) {
+
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,257 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.process.BillingProcessWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs billing processes without blocking a thread for the length of the run.
+ *
+ * A run is started with {@code triggerBillingAsync()}. Its progress is then polled with {@code isBillingRunning()}
+ * on a scheduler, with a delay that starts short and grows exponentially up to a maximum, so short runs are
+ * noticed quickly and multi-hour runs cost only a few calls an hour. Once the run is over, the billing process and
+ * its generated invoices are fetched and the returned future completes. Listeners are told when the run starts,
+ * finishes and when its invoices are available.
+ *
+ * A run is over when the company is no longer billing and either the run was seen running, a new billing process
+ * appeared, or the start grace period passed. Without a new billing process the run completes with no billing
+ * process and no invoices, the previous process is never reported as the result of the run.
+ */
+public class BillingOrchestrator implements AutoCloseable {
+
+    /**
+     * Receives the lifecycle events of the runs. Listeners are called on the scheduler thread and should return
+     * quickly.
+     */
+    public interface Listener {
+
+        default void started(Date billingDate) {
+        }
+
+        default void finished(Date billingDate, BillingProcessWS billingProcess) {
+        }
+
+        default void invoicesReady(BillingProcessWS billingProcess, Integer[] invoiceIds) {
+        }
+
+        default void failed(Date billingDate, Throwable error) {
+        }
+    }
+
+    private final JbillingAPI api;
+    private final Integer companyId;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownScheduler;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private long initialDelayMillis = 1000;
+    private long maxDelayMillis = TimeUnit.MINUTES.toMillis(5);
+    private double multiplier = 2.0;
+    private long startGraceMillis = TimeUnit.SECONDS.toMillis(30);
+
+    public BillingOrchestrator(JbillingAPI api, Integer companyId) {
+        this(api, companyId, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "billing-orchestrator");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    public BillingOrchestrator(JbillingAPI api, Integer companyId, ScheduledExecutorService scheduler) {
+        this(api, companyId, scheduler, false);
+    }
+
+    private BillingOrchestrator(JbillingAPI api, Integer companyId, ScheduledExecutorService scheduler,
+                                boolean ownScheduler) {
+        this.api = api;
+        this.companyId = companyId;
+        this.scheduler = scheduler;
+        this.ownScheduler = ownScheduler;
+    }
+
+    public BillingOrchestrator setBackoff(long initialDelay, long maxDelay, double multiplier, TimeUnit unit) {
+
+        if (initialDelay <= 0 || maxDelay < initialDelay || multiplier < 1.0) {
+            throw new IllegalArgumentException("Expected 0 < initialDelay <= maxDelay and multiplier >= 1");
+        }
+        this.initialDelayMillis = unit.toMillis(initialDelay);
+        this.maxDelayMillis = unit.toMillis(maxDelay);
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    public BillingOrchestrator setStartGrace(long grace, TimeUnit unit) {
+        this.startGraceMillis = unit.toMillis(grace);
+        return this;
+    }
+
+    public BillingOrchestrator addListener(Listener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts a billing run for the given date. The future completes with the billing process and its invoices
+     * once the run is over, or exceptionally if it could not be started or polled. The billing process is null and
+     * there are no invoices if the run did not create a new process. Cancelling the future stops the polling, not
+     * the run.
+     */
+    public CompletableFuture<RunResult> start(Date billingDate) {
+
+        Run run = new Run(billingDate);
+        scheduler.execute(run::trigger);
+        return run.result;
+    }
+
+    public static final class RunResult {
+
+        private final BillingProcessWS billingProcess;
+        private final Integer[] invoiceIds;
+        private final long elapsedMillis;
+        private final int polls;
+
+        RunResult(BillingProcessWS billingProcess, Integer[] invoiceIds, long elapsedMillis, int polls) {
+            this.billingProcess = billingProcess;
+            this.invoiceIds = invoiceIds;
+            this.elapsedMillis = elapsedMillis;
+            this.polls = polls;
+        }
+
+        public BillingProcessWS getBillingProcess() {
+            return billingProcess;
+        }
+
+        public Integer[] getInvoiceIds() {
+            return invoiceIds;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public int getPolls() {
+            return polls;
+        }
+
+        @Override
+        public String toString() {
+            return "Billing process " + (billingProcess != null ? billingProcess.getId() : null) + " generated "
+                    + (invoiceIds != null ? invoiceIds.length : 0) + " invoices in " + elapsedMillis + " ms, "
+                    + polls + " status polls";
+        }
+    }
+
+    // State of one run, only touched from the scheduler thread.
+    private final class Run {
+
+        private final Date billingDate;
+        private final CompletableFuture<RunResult> result = new CompletableFuture<>();
+        private Integer previousProcessId;
+        private long startedAt;
+        private long delayMillis = initialDelayMillis;
+        private boolean seenRunning;
+        private int polls;
+
+        Run(Date billingDate) {
+            this.billingDate = billingDate;
+        }
+
+        void trigger() {
+
+            try {
+                if (api.isBillingRunning(companyId)) {
+                    throw new IllegalStateException("A billing process is already running for company " + companyId);
+                }
+                previousProcessId = api.getLastBillingProcess();
+                startedAt = System.currentTimeMillis();
+                api.triggerBillingAsync(billingDate);
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            listeners.forEach(listener -> notify(() -> listener.started(billingDate)));
+            schedulePoll();
+        }
+
+        private void schedulePoll() {
+
+            if (!result.isDone()) {
+                scheduler.schedule(this::poll, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void poll() {
+
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                polls++;
+                if (api.isBillingRunning(companyId)) {
+                    seenRunning = true;
+                    delayMillis = Math.min(maxDelayMillis, (long) (delayMillis * multiplier));
+                    schedulePoll();
+                    return;
+                }
+                Integer processId = api.getLastBillingProcess();
+                boolean newProcess = processId != null && !Objects.equals(processId, previousProcessId);
+                boolean graceOver = System.currentTimeMillis() - startedAt >= startGraceMillis;
+                if (!seenRunning && !newProcess && !graceOver) {
+                    // The run has not started yet, keep checking at the initial pace.
+                    delayMillis = initialDelayMillis;
+                    schedulePoll();
+                    return;
+                }
+                // The last process belongs to an earlier run unless it changed.
+                complete(newProcess ? processId : null);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void complete(Integer processId) {
+
+            BillingProcessWS billingProcess = processId != null ? api.getBillingProcess(processId) : null;
+            listeners.forEach(listener -> notify(() -> listener.finished(billingDate, billingProcess)));
+            Integer[] invoiceIds = processId != null ? api.getBillingProcessGeneratedInvoices(processId) : new Integer[0];
+            listeners.forEach(listener -> notify(() -> listener.invoicesReady(billingProcess, invoiceIds)));
+            result.complete(new RunResult(billingProcess, invoiceIds, System.currentTimeMillis() - startedAt, polls));
+        }
+
+        private void fail(Throwable error) {
+
+            listeners.forEach(listener -> notify(() -> listener.failed(billingDate, error)));
+            result.completeExceptionally(error);
+        }
+
+        // A failing listener must not stop the run from being tracked.
+        private void notify(Runnable event) {
+
+            try {
+                event.run();
+            } catch (RuntimeException e) {
+                System.err.println("Billing listener failed: " + e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+
+        if (ownScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.process.BillingProcessConfigurationWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the billing processes of many companies, each on the next run date of its own billing configuration.
+ *
+ * The next run of every company is kept in a {@link TimingWheel}. Companies that are due are queued and started
+ * with a {@link BillingOrchestrator} as long as fewer than {@code maxRuns} runs are in progress overall and fewer
+ * than {@code maxRunsPerNode} on the jBilling node serving the company. A company never has two runs at a time.
+ * After a run the next run date is read again from the configuration, which the billing process moves forward. When
+ * it did not move past the date just billed, for example because a review run waits for approval, the configuration
+ * is read again after the retry delay instead of starting another run.
+ *
+ * Many companies bill on the first of the month. To avoid starting all of them at midnight, every company's run is
+ * offset by a fixed share of the spread window, derived from the company id, so the order stays the same between
+ * restarts.
+ *
+ * All the state is owned by the scheduler thread, the public methods hand their work over to it. Remote calls never
+ * run on the scheduler thread: configurations are read and the orchestrators poll on a separate pool, and their
+ * results are handed back to the scheduler thread.
+ */
+public class BillingScheduler implements AutoCloseable {
+
+    /**
+     * A company to bill, with the API client authenticated for it and the id of the node that serves it.
+     */
+    public static final class Tenant {
+
+        private final Integer companyId;
+        private final JbillingAPI api;
+        private final String node;
+
+        public Tenant(Integer companyId, JbillingAPI api, String node) {
+            this.companyId = companyId;
+            this.api = api;
+            this.node = node;
+        }
+
+        public Integer getCompanyId() {
+            return companyId;
+        }
+
+        public String getNode() {
+            return node;
+        }
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final ScheduledExecutorService remote;
+    private final TimingWheel<Tenant> wheel;
+    private final int maxRuns;
+    private final int maxRunsPerNode;
+    private final long spreadMillis;
+    private long retryDelayMillis = TimeUnit.MINUTES.toMillis(15);
+
+    private final Map<Integer, Tenant> tenants = new HashMap<>();
+    private final Map<Integer, TimingWheel.Entry<Tenant>> scheduled = new HashMap<>();
+    private final ArrayDeque<Tenant> due = new ArrayDeque<>();
+    private final Set<Integer> running = new HashSet<>();
+    private final Map<String, Integer> runningPerNode = new HashMap<>();
+    private final Map<Tenant, BillingOrchestrator> orchestrators = new HashMap<>();
+    // Billing date of the last successful run of every company.
+    private final Map<Integer, Date> billedDates = new HashMap<>();
+    // Companies whose wheel entry re-reads the configuration instead of starting a run.
+    private final Set<Integer> rechecks = new HashSet<>();
+
+    private long started;
+    private long finished;
+    private long failed;
+
+    public BillingScheduler(int maxRuns, int maxRunsPerNode, long spread, TimeUnit unit) {
+
+        this.maxRuns = maxRuns;
+        this.maxRunsPerNode = maxRunsPerNode;
+        this.spreadMillis = unit.toMillis(spread);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "billing-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.remote = Executors.newScheduledThreadPool(Math.max(1, maxRuns), runnable -> {
+            Thread thread = new Thread(runnable, "billing-scheduler-remote");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.wheel = new TimingWheel<>(1000, System.currentTimeMillis());
+        scheduler.scheduleWithFixedDelay(this::tick, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public BillingScheduler setRetryDelay(long delay, TimeUnit unit) {
+        scheduler.execute(() -> retryDelayMillis = unit.toMillis(delay));
+        return this;
+    }
+
+    /**
+     * Adds a company, or replaces it, and schedules it for the next run date of its billing configuration.
+     */
+    public void addTenant(Tenant tenant) {
+
+        scheduler.execute(() -> {
+            removeScheduled(tenant.getCompanyId());
+            due.removeIf(queued -> queued.getCompanyId().equals(tenant.getCompanyId()));
+            Tenant previous = tenants.put(tenant.getCompanyId(), tenant);
+            if (previous != null && !running.contains(previous.getCompanyId())) {
+                orchestrators.remove(previous);
+            }
+            if (!running.contains(tenant.getCompanyId())) {
+                scheduleNextRun(tenant);
+            }
+        });
+    }
+
+    public void removeTenant(Integer companyId) {
+
+        scheduler.execute(() -> {
+            Tenant removed = tenants.remove(companyId);
+            removeScheduled(companyId);
+            billedDates.remove(companyId);
+            if (removed != null && !running.contains(companyId)) {
+                orchestrators.remove(removed);
+            }
+            due.removeIf(tenant -> tenant.getCompanyId().equals(companyId));
+        });
+    }
+
+    private void removeScheduled(Integer companyId) {
+
+        rechecks.remove(companyId);
+        TimingWheel.Entry<Tenant> entry = scheduled.remove(companyId);
+        if (entry != null) {
+            wheel.cancel(entry);
+        }
+    }
+
+    private void scheduleNextRun(Tenant tenant) {
+
+        CompletableFuture.supplyAsync(() -> nextRunDate(tenant), remote)
+                .whenCompleteAsync((nextRunDate, error) -> {
+                    if (!isIdle(tenant)) {
+                        // The company was replaced, removed or started in the meantime.
+                        return;
+                    }
+                    if (error != null) {
+                        System.err.println("Could not read the billing configuration of company "
+                                + tenant.getCompanyId() + ", retrying later: " + cause(error));
+                        schedule(tenant, System.currentTimeMillis() + retryDelayMillis, true);
+                        return;
+                    }
+                    if (nextRunDate == null) {
+                        return;
+                    }
+                    Date billedDate = billedDates.get(tenant.getCompanyId());
+                    if (billedDate != null && !nextRunDate.after(billedDate)) {
+                        // The last run did not move the next run date forward, billing it again would loop.
+                        schedule(tenant, System.currentTimeMillis() + retryDelayMillis, true);
+                    } else {
+                        schedule(tenant, nextRunDate.getTime() + spreadOffset(tenant.getCompanyId()), false);
+                    }
+                }, scheduler);
+    }
+
+    private boolean isIdle(Tenant tenant) {
+        return tenants.get(tenant.getCompanyId()) == tenant && !running.contains(tenant.getCompanyId())
+                && !due.contains(tenant);
+    }
+
+    private void schedule(Tenant tenant, long atMillis, boolean recheck) {
+
+        removeScheduled(tenant.getCompanyId());
+        if (recheck) {
+            rechecks.add(tenant.getCompanyId());
+        }
+        scheduled.put(tenant.getCompanyId(), wheel.add(tenant, atMillis, this::enqueue));
+    }
+
+    // Fibonacci hashing spreads consecutive company ids evenly over the window.
+    private long spreadOffset(Integer companyId) {
+
+        if (spreadMillis <= 0) {
+            return 0;
+        }
+        long hash = (companyId.longValue() * 0x9E3779B97F4A7C15L) >>> 1;
+        return hash % spreadMillis;
+    }
+
+    private void enqueue(Tenant tenant) {
+
+        scheduled.remove(tenant.getCompanyId());
+        if (tenants.get(tenant.getCompanyId()) != tenant) {
+            return;
+        }
+        if (rechecks.remove(tenant.getCompanyId())) {
+            scheduleNextRun(tenant);
+        } else {
+            due.add(tenant);
+        }
+    }
+
+    private void tick() {
+
+        try {
+            wheel.advance(System.currentTimeMillis(), this::enqueue);
+            dispatch();
+        } catch (RuntimeException e) {
+            // An exception would stop the periodic task.
+            System.err.println("Billing scheduler tick failed: " + e);
+        }
+    }
+
+    // Starts due companies while there is capacity. Companies whose node is busy keep their place in the queue.
+    private void dispatch() {
+
+        for (Iterator<Tenant> iterator = due.iterator(); iterator.hasNext() && running.size() < maxRuns; ) {
+            Tenant tenant = iterator.next();
+            if (running.contains(tenant.getCompanyId())) {
+                continue;
+            }
+            if (runningPerNode.getOrDefault(tenant.getNode(), 0) >= maxRunsPerNode) {
+                continue;
+            }
+            iterator.remove();
+            start(tenant);
+        }
+    }
+
+    private void start(Tenant tenant) {
+
+        running.add(tenant.getCompanyId());
+        runningPerNode.merge(tenant.getNode(), 1, Integer::sum);
+        started++;
+        BillingOrchestrator orchestrator = orchestrator(tenant);
+        CompletableFuture.supplyAsync(() -> billingDate(tenant), remote)
+                .thenCompose(billingDate -> orchestrator.start(billingDate).thenApply(result -> billingDate))
+                .whenCompleteAsync((billingDate, error) -> {
+                    running.remove(tenant.getCompanyId());
+                    runningPerNode.merge(tenant.getNode(), -1, Integer::sum);
+                    Tenant current = tenants.get(tenant.getCompanyId());
+                    if (current != tenant) {
+                        orchestrators.remove(tenant);
+                        // A company replaced during its run is scheduled once the run is over, without billing the
+                        // same date again.
+                        if (current != null) {
+                            if (error == null) {
+                                billedDates.put(tenant.getCompanyId(), billingDate);
+                            }
+                            scheduleNextRun(current);
+                        }
+                    } else {
+                        if (error != null) {
+                            failed++;
+                            System.err.println("Billing run of company " + tenant.getCompanyId() + " failed: "
+                                    + cause(error));
+                            schedule(tenant, System.currentTimeMillis() + retryDelayMillis, false);
+                        } else {
+                            finished++;
+                            billedDates.put(tenant.getCompanyId(), billingDate);
+                            scheduleNextRun(tenant);
+                        }
+                    }
+                    dispatch();
+                }, scheduler);
+    }
+
+    // Called on the remote pool.
+    private static Date nextRunDate(Tenant tenant) {
+
+        BillingProcessConfigurationWS config = tenant.api.getBillingProcessConfiguration();
+        return config.getNextRunDate();
+    }
+
+    // Called on the remote pool.
+    private static Date billingDate(Tenant tenant) {
+
+        try {
+            Date nextRunDate = nextRunDate(tenant);
+            if (nextRunDate != null) {
+                return nextRunDate;
+            }
+        } catch (RuntimeException e) {
+            // The run is started for the current date.
+        }
+        return new Date();
+    }
+
+    private static Throwable cause(Throwable error) {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+
+    private BillingOrchestrator orchestrator(Tenant tenant) {
+        return orchestrators.computeIfAbsent(tenant,
+                key -> new BillingOrchestrator(tenant.api, tenant.getCompanyId(), remote));
+    }
+
+    @Override
+    public String toString() {
+
+        try {
+            return scheduler.submit(() -> "BillingScheduler{tenants=" + tenants.size() + ", scheduled=" + wheel.size()
+                    + ", due=" + due.size() + ", running=" + running.size() + ", started=" + started
+                    + ", finished=" + finished + ", failed=" + failed + "}").get();
+        } catch (Exception e) {
+            return "BillingScheduler{unavailable}";
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        remote.shutdownNow();
+    }
+}
@@ -0,0 +1,612 @@
+package com.jbilling.sample;
+
+import com.caucho.hessian.client.HessianConnectionException;
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.util.Constants;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.springframework.remoting.RemoteConnectFailureException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Creates one order for each of a large number of users, as done when onboarding customers.
+ *
+ * The work is split into stages connected by bounded queues, so a slow stage holds back the stages before it
+ * instead of filling the memory:
+ * <ol>
+ *     <li>build: builds the order and its changes for the next user,</li>
+ *     <li>validate: rejects orders the server would refuse, without a server call,</li>
+ *     <li>submit: {@code workers} threads calling {@code createOrder()}, optionally limited to a number of calls per
+ *     second,</li>
+ *     <li>record: writes the outcome of every order to the checkpoint file and counts it.</li>
+ * </ol>
+ * Calls that fail before the request is sent, because the connection is refused or times out, are put on a retry
+ * queue and submitted again after a growing delay. Any other I/O failure may happen after the server received the
+ * order, such orders are recorded as in doubt and not submitted again. Errors returned by the server are final. The
+ * number of workers and the rate limit are the knobs to load the server: raise the workers while the submit latency
+ * stays flat, and cap the rate when it starts to climb.
+ *
+ * The checkpoint file lists every user whose order was created, rejected or failed. A rerun with the same file
+ * skips the users whose order was created and tries the others again. A user is also marked in the file before its
+ * order is submitted. If the run stops during that call it is not known whether the order was created, such users
+ * are skipped on a rerun and listed as in doubt, unless {@link #setResubmitInDoubt(boolean)} is set. The same goes
+ * for users whose call failed after the request may have been sent.
+ *
+ * Usage: {@code BulkOrderPipeline userIdFile productId orderChangeStatusId [checkpointFile] [workers] [maxRate]}
+ */
+public class BulkOrderPipeline {
+
+    private static final char IN_DOUBT = 'I';
+    private static final char CREATED = 'C';
+    private static final char REJECTED = 'R';
+    private static final char FAILED = 'F';
+
+    private final JbillingAPI api;
+    private final Path checkpointFile;
+    private final int workers;
+
+    private int queueCapacity = 1000;
+    private int maxAttempts = 5;
+    private long retryDelayMillis = 1000;
+    private long maxRetryDelayMillis = 60000;
+    private double maxRate;
+    private boolean resubmitInDoubt;
+
+    private final Stage build = new Stage("build");
+    private final Stage validate = new Stage("validate");
+    private final Stage submit = new Stage("submit");
+    private final Stage record = new Stage("record");
+    private final LongAdder retries = new LongAdder();
+    private final AtomicLong nextCallNanos = new AtomicLong();
+
+    public BulkOrderPipeline(JbillingAPI api, Path checkpointFile, int workers) {
+        this.api = api;
+        this.checkpointFile = checkpointFile;
+        this.workers = workers;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Path userIdFile = Paths.get(args[0]);
+        Integer productId = Integer.valueOf(args[1]);
+        Integer statusId = Integer.valueOf(args[2]);
+        Path checkpointFile = Paths.get(args.length > 3 ? args[3] : "target/bulk-orders.checkpoint");
+        int workers = args.length > 4 ? Integer.parseInt(args[4]) : 8;
+        double maxRate = args.length > 5 ? Double.parseDouble(args[5]) : 0;
+
+        List<Integer> userIds;
+        try (BufferedReader reader = Files.newBufferedReader(userIdFile, StandardCharsets.UTF_8)) {
+            userIds = reader.lines().map(String::trim).filter(line -> !line.isEmpty())
+                    .map(Integer::valueOf).collect(Collectors.toList());
+        }
+        Date activeSince = new Date();
+        BulkOrderPipeline pipeline = new BulkOrderPipeline(JbillingAPIFactory.getAPI(), checkpointFile, workers)
+                .setMaxRate(maxRate);
+        Result result = pipeline.run(userIds.iterator(), statusId, userId -> Ch8PurchaseOrders.buildOrder(userId,
+                activeSince, null, Constants.PERIOD_UNIT_MONTH, Constants.ORDER_BILLING_POST_PAID, false, productId));
+        System.out.println(result);
+    }
+
+    public BulkOrderPipeline setQueueCapacity(int capacity) {
+        this.queueCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Submits an order at most {@code attempts} times, waiting {@code delay} after the first failure and twice as
+     * long after every next one, up to {@code maxDelay}.
+     */
+    public BulkOrderPipeline setRetries(int attempts, long delay, long maxDelay, TimeUnit unit) {
+        this.maxAttempts = attempts;
+        this.retryDelayMillis = unit.toMillis(delay);
+        this.maxRetryDelayMillis = unit.toMillis(maxDelay);
+        return this;
+    }
+
+    /**
+     * Limits the {@code createOrder()} calls of all workers together to a number per second, 0 for no limit.
+     */
+    public BulkOrderPipeline setMaxRate(double callsPerSecond) {
+        this.maxRate = callsPerSecond;
+        return this;
+    }
+
+    public BulkOrderPipeline setResubmitInDoubt(boolean resubmit) {
+        this.resubmitInDoubt = resubmit;
+        return this;
+    }
+
+    /**
+     * Creates an order for every user, building the orders with {@code orderBuilder} and their changes with
+     * {@link Ch8PurchaseOrders#buildChangesFromOrder(OrderWS, Integer)}. Returns when every order is recorded.
+     */
+    public Result run(Iterator<Integer> userIds, Integer statusId, Function<Integer, OrderWS> orderBuilder)
+            throws IOException, InterruptedException {
+
+        Map<Integer, Character> previous = readCheckpoint();
+        List<Integer> inDoubt = Collections.synchronizedList(new ArrayList<>());
+        LongAdder skipped = new LongAdder();
+        BlockingQueue<Item> built = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> validated = new ArrayBlockingQueue<>(queueCapacity);
+        BlockingQueue<Item> results = new ArrayBlockingQueue<>(queueCapacity);
+        DelayQueue<Item> retryQueue = new DelayQueue<>();
+        // Orders that passed validation and have no final outcome yet, including those waiting for a retry.
+        AtomicLong pending = new AtomicLong();
+        // A stage that fails stops the others, the failure is thrown when they are done.
+        List<Thread> threads = new CopyOnWriteArrayList<>();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        long start = System.nanoTime();
+
+        try (Checkpoint checkpoint = new Checkpoint(checkpointFile)) {
+            Thread buildThread = stage("build", threads, failure, () -> {
+                while (userIds.hasNext()) {
+                    Integer userId = userIds.next();
+                    Character state = previous.get(userId);
+                    if (state != null && state == CREATED) {
+                        skipped.increment();
+                        continue;
+                    }
+                    if (state != null && state == IN_DOUBT && !resubmitInDoubt) {
+                        inDoubt.add(userId);
+                        continue;
+                    }
+                    long begin = System.nanoTime();
+                    Item item = new Item(userId);
+                    try {
+                        item.order = orderBuilder.apply(userId);
+                        item.changes = Ch8PurchaseOrders.buildChangesFromOrder(item.order, statusId);
+                    } catch (RuntimeException e) {
+                        item.outcome = REJECTED;
+                        item.message = "Order could not be built: " + e;
+                    }
+                    build.done(begin);
+                    built.put(item);
+                }
+                built.put(Item.END);
+            });
+
+            Thread validateThread = stage("validate", threads, failure, () -> {
+                for (Item item = built.take(); item != Item.END; item = built.take()) {
+                    long begin = System.nanoTime();
+                    if (item.outcome == 0) {
+                        try {
+                            item.message = validate(item.order, item.changes);
+                        } catch (RuntimeException e) {
+                            item.message = "Order could not be validated: " + e;
+                        }
+                        if (item.message != null) {
+                            item.outcome = REJECTED;
+                        }
+                    }
+                    validate.done(begin);
+                    if (item.outcome != 0) {
+                        results.put(item);
+                    } else {
+                        pending.incrementAndGet();
+                        validated.put(item);
+                    }
+                }
+                validated.put(Item.END);
+            });
+
+            Thread[] submitThreads = new Thread[workers];
+            for (int i = 0; i < workers; i++) {
+                submitThreads[i] = stage("submit-" + (i + 1), threads, failure, () -> {
+                    while (true) {
+                        Item item = retryQueue.poll();
+                        if (item == null) {
+                            item = validated.poll(100, TimeUnit.MILLISECONDS);
+                        }
+                        if (item == Item.END) {
+                            // The end marker is passed on to the other workers, which keep taking retries.
+                            validated.put(Item.END);
+                            if (pending.get() == 0) {
+                                return;
+                            }
+                            item = retryQueue.poll(100, TimeUnit.MILLISECONDS);
+                        }
+                        if (item != null) {
+                            submit(item, checkpoint, retryQueue, results, pending);
+                        }
+                    }
+                });
+            }
+
+            Thread recordThread = stage("record", threads, failure, () -> {
+                for (Item item = results.take(); item != Item.END; item = results.take()) {
+                    long begin = System.nanoTime();
+                    checkpoint.append(item.outcome, item.userId, item.outcome == CREATED
+                            ? String.valueOf(item.orderId) : item.message);
+                    if (results.isEmpty()) {
+                        checkpoint.flush();
+                    }
+                    record.done(begin);
+                    record.count(item.outcome);
+                    if (item.outcome == IN_DOUBT) {
+                        inDoubt.add(item.userId);
+                    }
+                }
+            });
+
+            buildThread.join();
+            validateThread.join();
+            for (Thread submitThread : submitThreads) {
+                submitThread.join();
+            }
+            if (failure.get() == null) {
+                results.put(Item.END);
+            }
+            recordThread.join();
+        }
+        if (failure.get() != null) {
+            throw new IOException("Bulk order pipeline stopped, run again to resume", failure.get());
+        }
+        return new Result(record.created.sum(), record.rejected.sum(), record.failed.sum(), skipped.sum(), inDoubt,
+                retries.sum(), System.nanoTime() - start, metrics());
+    }
+
+    private void submit(Item item, Checkpoint checkpoint, DelayQueue<Item> retryQueue, BlockingQueue<Item> results,
+                        AtomicLong pending) throws IOException, InterruptedException {
+
+        if (item.attempts == 0) {
+            checkpoint.append(IN_DOUBT, item.userId, null);
+            checkpoint.flush();
+        }
+        item.attempts++;
+        acquireRate();
+        long begin = System.nanoTime();
+        try {
+            item.orderId = api.createOrder(item.order, item.changes);
+            item.outcome = CREATED;
+        } catch (RuntimeException e) {
+            boolean notSent = isNotSent(e);
+            if (notSent && item.attempts < maxAttempts) {
+                long delay = Math.min(maxRetryDelayMillis, retryDelayMillis << Math.min(20, item.attempts - 1));
+                item.dueNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                retries.increment();
+                submit.done(begin);
+                retryQueue.put(item);
+                return;
+            }
+            // The order may have been created if the connection failed after the request was sent.
+            item.outcome = !notSent && isConnectionFailure(e) ? IN_DOUBT : FAILED;
+            item.message = e.toString();
+        }
+        submit.done(begin);
+        // Built orders are large, only the outcome is kept.
+        item.order = null;
+        item.changes = null;
+        results.put(item);
+        pending.decrementAndGet();
+    }
+
+    // Spaces the calls of all workers evenly, each worker reserving the next free slot.
+    private void acquireRate() throws InterruptedException {
+
+        if (maxRate <= 0) {
+            return;
+        }
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / maxRate);
+        long now = System.nanoTime();
+        long slot = nextCallNanos.getAndAccumulate(now, (next, current) -> Math.max(next, current) + interval);
+        long wait = Math.max(slot, now) - now;
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // Only a call whose connection could not be opened is known not to have reached the server, and is safe to retry.
+    static boolean isNotSent(Throwable error) {
+
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof ConnectTimeoutException
+                    || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+            if (cause instanceof SocketTimeoutException && cause.getMessage() != null
+                    && cause.getMessage().toLowerCase().contains("connect timed out")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Errors returned by the server are not connection failures.
+    static boolean isConnectionFailure(Throwable error) {
+
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException || cause instanceof HessianConnectionException
+                    || cause instanceof RemoteConnectFailureException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks what the server would refuse anyway, returns the reason or null.
+     */
+    static String validate(OrderWS order, OrderChangeWS[] changes) {
+
+        if (order == null) {
+            return "No order";
+        }
+        if (order.getUserId() == null || order.getUserId() <= 0) {
+            return "No user";
+        }
+        if (order.getPeriod() == null || order.getBillingTypeId() == null || order.getCurrencyId() == null) {
+            return "Period, billing type and currency are required";
+        }
+        if (order.getActiveSince() == null) {
+            return "No active since date";
+        }
+        if (order.getActiveUntil() != null && order.getActiveUntil().before(order.getActiveSince())) {
+            return "Active until is before active since";
+        }
+        OrderLineWS[] lines = order.getOrderLines();
+        if (lines == null || lines.length == 0 || changes == null || changes.length == 0) {
+            return "No order lines";
+        }
+        for (OrderLineWS line : lines) {
+            if (line.getItemId() == null) {
+                return "Order line without product";
+            }
+            if (line.getQuantity() == null || new BigDecimal(String.valueOf(line.getQuantity())).signum() <= 0) {
+                return "Order line for product " + line.getItemId() + " without quantity";
+            }
+        }
+        return null;
+    }
+
+    private Map<Integer, Character> readCheckpoint() throws IOException {
+
+        Map<Integer, Character> states = new HashMap<>();
+        if (!Files.exists(checkpointFile)) {
+            return states;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(checkpointFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // The last line may be cut off by a crash.
+                int separator = line.indexOf(';', 2);
+                if (line.length() < 3 || line.charAt(1) != ';' || separator < 0) {
+                    continue;
+                }
+                try {
+                    states.put(Integer.valueOf(line.substring(2, separator)), line.charAt(0));
+                } catch (NumberFormatException e) {
+                    // Cut off line.
+                }
+            }
+        }
+        return states;
+    }
+
+    private static Thread stage(String name, List<Thread> threads, AtomicReference<Exception> failure,
+                                StageTask task) {
+
+        Thread thread = new Thread(() -> {
+            try {
+                task.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                if (failure.compareAndSet(null, e)) {
+                    threads.forEach(Thread::interrupt);
+                }
+            }
+        }, "bulk-orders-" + name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+        return thread;
+    }
+
+    private interface StageTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * Current counts and times of the stages, may be called while the pipeline runs.
+     */
+    public String metrics() {
+        return build + "\n" + validate + "\n" + submit + " (" + retries.sum() + " retries)\n" + record;
+    }
+
+    // An order on its way through the stages.
+    private static final class Item implements Delayed {
+
+        static final Item END = new Item(null);
+
+        final Integer userId;
+        OrderWS order;
+        OrderChangeWS[] changes;
+        int attempts;
+        long dueNanos;
+        char outcome;
+        Integer orderId;
+        String message;
+
+        Item(Integer userId) {
+            this.userId = userId;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(dueNanos, ((Item) other).dueNanos);
+        }
+    }
+
+    private static final class Stage {
+
+        final String name;
+        final LongAdder items = new LongAdder();
+        final LongAdder busyNanos = new LongAdder();
+        final LongAdder created = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        void done(long beginNanos) {
+            items.increment();
+            busyNanos.add(System.nanoTime() - beginNanos);
+        }
+
+        void count(char outcome) {
+
+            if (outcome == CREATED) {
+                created.increment();
+            } else if (outcome == REJECTED) {
+                rejected.increment();
+            } else if (outcome == FAILED) {
+                failed.increment();
+            }
+        }
+
+        @Override
+        public String toString() {
+
+            long count = items.sum();
+            return String.format("%-8s %9d items, %8.3f ms per item", name, count,
+                    count > 0 ? busyNanos.sum() / 1e6 / count : 0.0);
+        }
+    }
+
+    // Appends "state;userId;detail" lines. Every flush hands the lines to the operating system.
+    private static final class Checkpoint implements AutoCloseable {
+
+        private final BufferedWriter writer;
+
+        Checkpoint(Path file) throws IOException {
+
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        }
+
+        synchronized void append(char state, Integer userId, String detail) throws IOException {
+
+            writer.write(state);
+            writer.write(';');
+            writer.write(String.valueOf(userId));
+            writer.write(';');
+            if (detail != null) {
+                writer.write(detail.replace('\n', ' ').replace('\r', ' '));
+            }
+            writer.write('\n');
+        }
+
+        synchronized void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    public static final class Result {
+
+        private final long created;
+        private final long rejected;
+        private final long failed;
+        private final long skipped;
+        private final List<Integer> inDoubt;
+        private final long retries;
+        private final long elapsedNanos;
+        private final String metrics;
+
+        Result(long created, long rejected, long failed, long skipped, List<Integer> inDoubt, long retries,
+               long elapsedNanos, String metrics) {
+            this.created = created;
+            this.rejected = rejected;
+            this.failed = failed;
+            this.skipped = skipped;
+            this.inDoubt = inDoubt;
+            this.retries = retries;
+            this.elapsedNanos = elapsedNanos;
+            this.metrics = metrics;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * Users skipped because their order was created by an earlier run.
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Users skipped because an earlier run stopped while their order was submitted, and users whose call failed
+         * after the request may have reached the server. Check whether they have the order before running again with
+         * {@link BulkOrderPipeline#setResubmitInDoubt(boolean)}.
+         */
+        public List<Integer> getInDoubt() {
+            return inDoubt;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d orders created, %d rejected, %d failed, %d already created, %d in doubt, "
+                            + "%d retries in %.1f s (%.0f orders/s)%n%s", created, rejected, failed, skipped,
+                    inDoubt.size(), retries, elapsedNanos / 1e9, created / (elapsedNanos / 1e9), metrics)
+                    + (failed > 0 ? "\nRun again to retry the failed orders" : "");
+        }
+    }
+}
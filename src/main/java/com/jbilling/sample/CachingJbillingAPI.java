@@ -0,0 +1,340 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.util.Constants;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-through cache for slow-changing reference data fetched with {@link JbillingAPI}.
+ *
+ * The cache wraps an API instance in a dynamic proxy. Calls to configured read methods (for example
+ * {@code getOrderPeriods()} or {@code getCurrencies()}) are served from memory until their time-to-live expires,
+ * all other calls go straight to the server. Calling a configured write method (for example
+ * {@code createOrderPeriod()}) invalidates the matching read methods after the write succeeds.
+ * The number of cached entries is bounded, least recently used entries are evicted first.
+ *
+ * Cached objects are shared between callers and should be treated as read-only.
+ */
+public class CachingJbillingAPI {
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    private final JbillingAPI api;
+    private final int maxEntries;
+    private final Map<String, Long> ttls = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> invalidations = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final Map<String, Statistics> statistics = new ConcurrentHashMap<>();
+    private final LinkedHashMap<CacheKey, CacheEntry> entries;
+
+    public CachingJbillingAPI(JbillingAPI api, int maxEntries) {
+
+        this.api = api;
+        this.maxEntries = maxEntries;
+        // Access ordered map, the eldest entry is the least recently used one.
+        this.entries = new LinkedHashMap<CacheKey, CacheEntry>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, CacheEntry> eldest) {
+                if (size() > CachingJbillingAPI.this.maxEntries) {
+                    statisticsFor(eldest.getKey().method).evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Cache for the reference data used by the samples: order periods, item categories, order change statuses,
+     * currencies, payment method templates and the caller company.
+     */
+    public static CachingJbillingAPI withDefaults(JbillingAPI api) {
+
+        CachingJbillingAPI cache = new CachingJbillingAPI(api, DEFAULT_MAX_ENTRIES);
+        cache.cache("getOrderPeriods", 10, TimeUnit.MINUTES);
+        for (String write : new String[] {"createOrderPeriod", "updateOrderPeriods", "deleteOrderPeriod"}) {
+            cache.invalidateOn(write, "getOrderPeriods");
+        }
+        cache.cache("getAllItemCategories", 5, TimeUnit.MINUTES)
+                .cache("getAllItemCategoriesByEntityId", 5, TimeUnit.MINUTES)
+                .cache("getItemCategoryById", 5, TimeUnit.MINUTES);
+        for (String write : new String[] {"createItemCategory", "updateItemCategory", "deleteItemCategory"}) {
+            cache.invalidateOn(write, "getAllItemCategories", "getAllItemCategoriesByEntityId", "getItemCategoryById");
+        }
+        cache.cache("getOrderChangeStatusesForCompany", 10, TimeUnit.MINUTES);
+        for (String write : new String[] {"createOrderChangeStatus", "updateOrderChangeStatus",
+                "deleteOrderChangeStatus"}) {
+            cache.invalidateOn(write, "getOrderChangeStatusesForCompany");
+        }
+        cache.cache("getCurrencies", 10, TimeUnit.MINUTES);
+        for (String write : new String[] {"createCurrency", "updateCurrency", "updateCurrencies"}) {
+            cache.invalidateOn(write, "getCurrencies");
+        }
+        cache.cache("getPaymentMethodTemplate", 1, TimeUnit.HOURS);
+        cache.cache("getCompany", 10, TimeUnit.MINUTES)
+                .invalidateOn("updateCompany", "getCompany");
+        cache.cache("getCallerCompanyId", 1, TimeUnit.HOURS)
+                .cache("getCallerCurrencyId", 1, TimeUnit.HOURS);
+        return cache;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        CachingJbillingAPI cache = withDefaults(JbillingAPIFactory.getAPI());
+        JbillingAPI api = cache.getApi();
+        Integer companyId = api.getCallerCompanyId();
+
+        // Only the first lookups of the order periods and the item categories go to the server.
+        for (int i = 0; i < 10; i++) {
+            Ch7OrderConfiguration.buildOrderChangeType(api, companyId);
+            api.getOrderPeriods();
+        }
+        // Creating an item category invalidates the cached categories.
+        api.createItemCategory(Ch3ProductAndPricing.buildItemType(companyId));
+        Ch7OrderConfiguration.buildOrderChangeType(api, companyId);
+        // Creating and deleting an order period invalidates the cached order periods, the lookups after each of
+        // them go to the server again.
+        Integer periodId = api.createOrderPeriod(Ch7OrderConfiguration.buildOrderPeriod(companyId,
+                Constants.PERIOD_UNIT_WEEK, Integer.valueOf(1)));
+        api.getOrderPeriods();
+        api.deleteOrderPeriod(periodId);
+        api.getOrderPeriods();
+
+        cache.getStatistics().forEach((method, stats) -> System.out.println(method + ": " + stats));
+    }
+
+    /**
+     * Caches the results of a read method for the given time.
+     */
+    public CachingJbillingAPI cache(String readMethod, long ttl, TimeUnit unit) {
+
+        ttls.put(readMethod, Long.valueOf(unit.toNanos(ttl)));
+        versions.putIfAbsent(readMethod, new AtomicLong());
+        return this;
+    }
+
+    /**
+     * Invalidates the cached results of the read methods whenever the write method is called.
+     */
+    public CachingJbillingAPI invalidateOn(String writeMethod, String... readMethods) {
+
+        invalidations.computeIfAbsent(writeMethod, key -> ConcurrentHashMap.newKeySet())
+                .addAll(Arrays.asList(readMethods));
+        return this;
+    }
+
+    /**
+     * The caching API. All calls made through it use this cache.
+     */
+    public JbillingAPI getApi() {
+
+        return (JbillingAPI) Proxy.newProxyInstance(JbillingAPI.class.getClassLoader(),
+                new Class<?>[] {JbillingAPI.class}, new CachingHandler());
+    }
+
+    /**
+     * Removes all cached results of a read method.
+     */
+    public void invalidate(String readMethod) {
+
+        AtomicLong version = versions.get(readMethod);
+        if (version != null) {
+            version.incrementAndGet();
+        }
+        synchronized (entries) {
+            Iterator<CacheKey> keys = entries.keySet().iterator();
+            while (keys.hasNext()) {
+                if (keys.next().method.equals(readMethod)) {
+                    keys.remove();
+                    statisticsFor(readMethod).invalidations.increment();
+                }
+            }
+        }
+    }
+
+    public void invalidateAll() {
+
+        List<String> methods = new ArrayList<>(ttls.keySet());
+        for (String method : methods) {
+            invalidate(method);
+        }
+    }
+
+    public int size() {
+
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Hit, miss, eviction and invalidation counts per cached method.
+     */
+    public Map<String, Statistics> getStatistics() {
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    private Statistics statisticsFor(String method) {
+        return statistics.computeIfAbsent(method, key -> new Statistics());
+    }
+
+    private class CachingHandler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            String name = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return invokeObjectMethod(proxy, method, args);
+            }
+
+            Long ttl = ttls.get(name);
+            if (ttl == null) {
+                Object result = call(method, args);
+                Set<String> invalidated = invalidations.get(name);
+                if (invalidated != null) {
+                    for (String readMethod : invalidated) {
+                        invalidate(readMethod);
+                    }
+                }
+                return result;
+            }
+
+            CacheKey key = new CacheKey(name, args);
+            long now = System.nanoTime();
+            Statistics stats = statisticsFor(name);
+            synchronized (entries) {
+                CacheEntry entry = entries.get(key);
+                if (entry != null && now - entry.loadedAt < ttl.longValue()) {
+                    stats.hits.increment();
+                    return entry.value;
+                }
+            }
+
+            // Loaded outside of the lock. The result is only cached if no invalidation happened meanwhile.
+            stats.misses.increment();
+            long version = versions.get(name).get();
+            Object result = call(method, args);
+            synchronized (entries) {
+                if (versions.get(name).get() == version) {
+                    entries.put(key, new CacheEntry(result, now));
+                }
+            }
+            return result;
+        }
+
+        private Object call(Method method, Object[] args) throws Throwable {
+
+            try {
+                return method.invoke(api, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private Object invokeObjectMethod(Object proxy, Method method, Object[] args) {
+
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return "CachingJbillingAPI(" + api + ")";
+            }
+        }
+    }
+
+    private static final class CacheKey {
+
+        private final String method;
+        private final Object[] args;
+        private final int hash;
+
+        CacheKey(String method, Object[] args) {
+            this.method = method;
+            this.args = args != null ? args.clone() : new Object[0];
+            this.hash = 31 * method.hashCode() + Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey key = (CacheKey) other;
+            return hash == key.hash && method.equals(key.method) && Arrays.deepEquals(args, key.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class CacheEntry {
+
+        private final Object value;
+        private final long loadedAt;
+
+        CacheEntry(Object value, long loadedAt) {
+            this.value = value;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    public static final class Statistics {
+
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder invalidations = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        public long getInvalidations() {
+            return invalidations.sum();
+        }
+
+        public double getHitRatio() {
+            long total = getHits() + getMisses();
+            return total == 0 ? 0 : (double) getHits() / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, evictions=%d, invalidations=%d, hitRatio=%.2f",
+                    getHits(), getMisses(), getEvictions(), getInvalidations(), getHitRatio());
+        }
+    }
+}
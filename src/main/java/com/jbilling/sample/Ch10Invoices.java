@@ -12,6 +12,9 @@ import com.sapienter.jbilling.server.util.Constants;
 import com.sapienter.jbilling.server.util.api.JbillingAPI;
 import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
 
@@ -39,7 +42,7 @@ public class Ch10Invoices {
         // Build and create an item type and an item.
         ItemTypeWS itemType = Ch3ProductAndPricing.buildItemType(companyId);
         Integer itemTypeId = api.createItemCategory(itemType);
-        String productCode = "sampleProduct_" + System.currentTimeMillis();
+        String productCode = "sampleProduct_" + UniqueIds.next();
         ItemDTOEx item = Ch3ProductAndPricing.buildItem(companyId, productCode, itemTypeId,
                 Integer.valueOf(0), Ch3ProductAndPricing.withFlatPrice(new Date(), "10"));
         Integer itemId = api.createItem(item);
@@ -88,12 +91,25 @@ public class Ch10Invoices {
         Integer offset = Integer.valueOf(10);
         invoices = api.getUserInvoicesPage(userId, limit, offset);
 
+        // To go through all the invoices of large accounts the pages can be published with a PagedPublisher.
+        // A page is only fetched when the subscriber asks for more invoices, and the publishers of several
+        // users can be merged into one with a MergedPublisher.
+        PagedPublisher.forEach(MergedPublisher.merge(
+                Arrays.asList(PagedPublisher.invoices(api, userId, PagedPublisher.DEFAULT_PAGE_SIZE)), 4, 100), 10,
+                invoice -> System.out.println("Invoice: " + invoice.getId()));
+
         // Getting all unpaid invoices for a user.
         invoiceIds = api.getUnpaidInvoices(userId);
 
         // Gets the bytes for the generated invoice PDF.
         byte[] invoicePDF = api.getPaperInvoicePDF(invoiceIds[0]);
 
+        // Reprints are best served from an InvoicePdfCache, which only calls the server for new or changed invoices.
+        try (InvoicePdfCache pdfCache = new InvoicePdfCache(api, Paths.get("target/invoice-pdf-cache"), 512L << 20)) {
+            ByteBuffer cachedPDF = pdfCache.getPdf(api.getInvoiceWS(invoiceIds[0]));
+            System.out.println("Invoice PDF size: " + cachedPDF.remaining());
+        }
+
         // An invoice can be deleted using deleteInvoice().
         api.deleteInvoice(invoiceIds[0]);
     }
@@ -57,7 +57,7 @@ public class Ch11PaymentsAndCollections {
         // Build and create an item type and an item.
         ItemTypeWS itemType = Ch3ProductAndPricing.buildItemType(companyId);
         Integer itemTypeId = api.createItemCategory(itemType);
-        String productCode = "sampleProduct_" + System.currentTimeMillis();
+        String productCode = "sampleProduct_" + UniqueIds.next();
         ItemDTOEx item = Ch3ProductAndPricing.buildItem(companyId, productCode, itemTypeId,
                 Integer.valueOf(0), Ch3ProductAndPricing.withFlatPrice(new Date(), "10"));
         Integer itemId = api.createItem(item);
@@ -84,7 +84,7 @@ public class Ch11PaymentsAndCollections {
         System.out.println("Created PAYMENT METHOD TYPE: " + pmType);
 
         // A payment method type can be updated using updatePaymentMethodType().
-        pmType.setMethodName("upType_" + System.currentTimeMillis());
+        pmType.setMethodName("upType_" + UniqueIds.next());
         api.updatePaymentMethodType(pmType);
         pmType = api.getPaymentMethodType(pmTypeId);
         System.out.println("Updated PAYMENT METHOD TYPE: " + pmType);
@@ -117,6 +117,10 @@ public class Ch11PaymentsAndCollections {
         Integer offset = Integer.valueOf(10);
         paymentIds = api.getLastPaymentsPage(userId, limit, offset);
 
+        // All the payments of a user can be paged through on demand with a PagedPublisher.
+        PagedPublisher.forEach(PagedPublisher.paymentIds(api, userId, PagedPublisher.DEFAULT_PAGE_SIZE), 10,
+                id -> System.out.println("Payment: " + id));
+
         // A payment can be applied to an invoice using createPaymentLink().
         api.createPaymentLink(invoiceId, paymentId);
 
@@ -184,7 +188,7 @@ public class Ch11PaymentsAndCollections {
 
         PaymentMethodTypeWS pmType = new PaymentMethodTypeWS();
         // Setting the name of the payment method.
-        pmType.setMethodName("pmType_" + System.currentTimeMillis());
+        pmType.setMethodName("pmType_" + UniqueIds.next());
         // Flag to set if the payment method is recurring.
         pmType.setIsRecurring(Boolean.FALSE);
         // Setting the id of the payment method template.
@@ -253,7 +257,7 @@ public class Ch11PaymentsAndCollections {
         // Id of the user for whom the payment is made.
         payment.setUserId(userId);
         // Note for the payment.
-        payment.setPaymentNotes("sampleAppPayment_" + System.currentTimeMillis());
+        payment.setPaymentNotes("sampleAppPayment_" + UniqueIds.next());
         payment.getPaymentInstruments().add(paymentInformation);
 
         return payment;
@@ -275,8 +279,8 @@ public class Ch11PaymentsAndCollections {
         ageingWS.setSendNotification(sendNotification);
         // Flag to be set if in the step the customer is suspended.
         ageingWS.setSuspended(suspended);
-        ageingWS.setWelcomeMessage("Welcome_" + System.currentTimeMillis());
-        ageingWS.setFailedLoginMessage("Login failed_" + System.currentTimeMillis());
+        ageingWS.setWelcomeMessage("Welcome_" + UniqueIds.next());
+        ageingWS.setFailedLoginMessage("Login failed_" + UniqueIds.next());
 
         return ageingWS;
     }
@@ -65,7 +65,7 @@ public class Ch1AccountTypes {
         AccountInformationTypeWS[] informationTypes = api.getInformationTypesForAccountType(accTypeOneId);
 
         // An account information type can be updated using a call to updateAccountInformationType().
-        accInfoType.setName("updatedAccInfoType_" + System.currentTimeMillis());
+        accInfoType.setName("updatedAccInfoType_" + UniqueIds.next());
         api.updateAccountInformationType(accInfoType);
 
         // An account information type can be deleted using a call to deleteAccountInformationType().
@@ -76,7 +76,7 @@ public class Ch1AccountTypes {
 
         AccountTypeWS accountType = new AccountTypeWS();
         // Name of the account type.
-        accountType.setName("sampleAccType_" + System.currentTimeMillis(), Constants.LANGUAGE_ENGLISH_ID);
+        accountType.setName("sampleAccType_" + UniqueIds.next(), Constants.LANGUAGE_ENGLISH_ID);
         // Id of the company in which the account type will be created.
         accountType.setEntityId(companyId);
         // Billing cycle of the account type. The provided parameters are the period unit and
@@ -104,7 +104,7 @@ public class Ch1AccountTypes {
         // The id of the account type with which this account information type is associated.
         accInfoType.setAccountTypeId(accountTypeId);
         // Name of the account information type.
-        accInfoType.setName("sampleAccInfoType_" + System.currentTimeMillis());
+        accInfoType.setName("sampleAccInfoType_" + UniqueIds.next());
         // This used so that the information type is used only on account types.
         accInfoType.setEntityType(EntityType.ACCOUNT_TYPE);
         // Id of the company in which the account information type will be used.
@@ -97,7 +97,7 @@ public class Ch2CustomerManagement {
         // The id of the account type which is associated to the user.
         user.setAccountTypeId(accTypeId);
         // Name of the user.
-        user.setUserName("sampleUserName_" + System.currentTimeMillis());
+        user.setUserName("sampleUserName_" + UniqueIds.next());
         // Id of the company in which the user is being created.
         user.setEntityId(companyId);
         // Default language to apply to the user.
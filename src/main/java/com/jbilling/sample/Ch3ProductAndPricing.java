@@ -46,7 +46,7 @@ public class Ch3ProductAndPricing {
         ItemTypeWS itemTypeWS = api.getItemCategoryById(itemTypeId);
 
         // Updating given category with updateItemCategory()
-        itemTypeWS.setDescription("updatedSampleCategory_" + System.currentTimeMillis());
+        itemTypeWS.setDescription("updatedSampleCategory_" + UniqueIds.next());
         api.updateItemCategory(itemTypeWS);
 
         // Get all the item categories avialable to a company with getAllItemCategoriesByEntityId()
@@ -56,7 +56,7 @@ public class Ch3ProductAndPricing {
         itemTypes = api.getAllItemCategories();
 
         // Build and create an item with createItem()
-        String productCode = "sampleProduct_" + System.currentTimeMillis();
+        String productCode = "sampleProduct_" + UniqueIds.next();
         ItemDTOEx item = buildItem(companyId, productCode, itemTypeId, Integer.valueOf(0), withFlatPrice(new Date(), "10"));
         Integer itemId = api.createItem(item);
         System.out.println("Created item with id: " + itemId);
@@ -75,6 +75,9 @@ public class Ch3ProductAndPricing {
 
         // Getting all of the items with getAllItems()
         ItemDTOEx[] items = api.getAllItems();
+        // The default prices of many items can be looked up by date locally from a PriceTimeline.
+        PriceTimeline<PriceModelWS> prices = PriceTimeline.ofItems(Arrays.asList(items));
+        System.out.println("Price of item " + itemId + " today: " + prices.at(itemId, new Date()));
         // Get all items that belong to a category with getItemByCategory()
         ItemDTOEx[] itemByCategory = api.getItemByCategory(itemTypeId);
         //G et all items that belong to a company with getAllItemsByEntityId()
@@ -92,7 +95,7 @@ public class Ch3ProductAndPricing {
 
         ItemTypeWS itemType = new ItemTypeWS();
         // Set the item type description
-        itemType.setDescription("sampleCategory_" + System.currentTimeMillis());
+        itemType.setDescription("sampleCategory_" + UniqueIds.next());
         // Set the id of the company for which this item type is created.
         itemType.setEntityId(companyId);
         // Set the availability for other companies
@@ -14,6 +14,7 @@ import com.sapienter.jbilling.server.util.search.SearchCriteria;
 
 import java.io.File;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * jBilling Asset Management examples.
@@ -43,7 +44,7 @@ public class Ch4AssetManagement {
                                         .findFirst().orElse(null);
 
         // Build and create asset product.
-        String productCode = "sampleProduct_" + System.currentTimeMillis();
+        String productCode = "sampleProduct_" + UniqueIds.next();
         ItemDTOEx item = Ch3ProductAndPricing.buildItem(companyId, productCode, itemTypeId, Integer.valueOf(1),
                 Ch3ProductAndPricing.withFlatPrice(new GregorianCalendar(2010, 1, 1).getTime(), "10"));
         Integer itemId = api.createItem(item);
@@ -83,19 +84,17 @@ public class Ch4AssetManagement {
         Integer orderId = api.createOrder(order, new OrderChangeWS[] {orderChange});
 
         // We can get all assets from a product category by using getAssetsForCategory().
+        // For large categories the assets are best loaded in parallel chunks with an AssetBulkLoader
+        // instead of calling getAsset() for every id.
         Integer[] assetsForCategory = api.getAssetsForCategory(itemTypeId);
         System.out.println("Assets in product category with Id " + itemTypeId + ":");
-        for (Integer assetId : assetsForCategory) {
-            AssetWS asset = api.getAsset(assetId);
-            System.out.println(asset);
-        }
+        try (AssetBulkLoader loader = new AssetBulkLoader(api)) {
+            loader.load(assetsForCategory, System.out::println);
 
-        // We can also get all assets from a product by using getAssetsForItem().
-        Integer[] assetsForItem = api.getAssetsForItem(itemId);
-        System.out.println("Assets in product with Id " + itemId + ":");
-        for (Integer assetId : assetsForItem) {
-            AssetWS asset = api.getAsset(assetId);
-            System.out.println(asset);
+            // We can also get all assets from a product by using getAssetsForItem().
+            Integer[] assetsForItem = api.getAssetsForItem(itemId);
+            System.out.println("Assets in product with Id " + itemId + ":");
+            loader.load(assetsForItem, System.out::println);
         }
 
         // We can also search for assets with a specific search criteria by using findAssets().
@@ -104,6 +103,11 @@ public class Ch4AssetManagement {
         AssetSearchResult assetSearchResult = api.findAssets(itemId, searchCriteria);
         System.out.println("Search Result: \n" + assetSearchResult);
 
+        // Larger result sets can be streamed with AssetSearchStream, which pages through findAssets() for us.
+        try (Stream<AssetWS> assets = new AssetSearchStream(api, itemId).stream()) {
+            System.out.println("Assets found by streaming: " + assets.count());
+        }
+
         // We can get the asset transitions for an asset with getAssetTransitions().
         AssetTransitionDTOEx[] transitions = api.getAssetTransitions(assetOneId);
 
@@ -147,7 +151,7 @@ public class Ch4AssetManagement {
         // Set if the asset is global, this will override the entities list set above if used.
         asset.setGlobal(Boolean.TRUE);
         // Unique identifier for the asset that is being created.
-        asset.setIdentifier("sampleAsset_" + System.currentTimeMillis());
+        asset.setIdentifier("sampleAsset_" + UniqueIds.next());
         // Current status of the asset.
         asset.setAssetStatusId(status.getId());
         return asset;
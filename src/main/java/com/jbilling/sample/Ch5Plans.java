@@ -49,9 +49,9 @@ public class Ch5Plans {
         Date currentDate = new Date();
         ItemTypeWS itemType = Ch3ProductAndPricing.buildItemType(companyId);
         Integer itemTypeId = api.createItemCategory(itemType);
-        String subscriptionCode = "sampleSubProduct_" + System.currentTimeMillis();
-        String bundledOneCode = "sampleBundleProductOne_" + System.currentTimeMillis();
-        String bundledTwoCode = "sampleBundleProductTwo_" + System.currentTimeMillis();
+        String subscriptionCode = "sampleSubProduct_" + UniqueIds.next();
+        String bundledOneCode = "sampleBundleProductOne_" + UniqueIds.next();
+        String bundledTwoCode = "sampleBundleProductTwo_" + UniqueIds.next();
         ItemDTOEx subscriptionItem = Ch3ProductAndPricing.buildItem(companyId, subscriptionCode, itemTypeId,
                 Integer.valueOf(0), Ch3ProductAndPricing.withFlatPrice(currentDate, "10"));
         Integer subscriptionId = api.createItem(subscriptionItem);
@@ -90,7 +90,7 @@ public class Ch5Plans {
         planIds = api.getPlansByAffectedItem(bundledOneId);
 
         // A plan can be updated using updatePlan().
-        plan.setDescription("updatedPlan_" + System.currentTimeMillis());
+        plan.setDescription("updatedPlan_" + UniqueIds.next());
         api.updatePlan(plan);
         plan = api.getPlanWS(planId);
         System.out.println("Updated PLAN: " + plan);
@@ -144,7 +144,7 @@ public class Ch5Plans {
         // Here we set the id of an existing order period (not the period unit id).
         plan.setPeriodId(periodId);
         // Setting the description for the plan.
-        plan.setDescription("samplePlan_" + System.currentTimeMillis());
+        plan.setDescription("samplePlan_" + UniqueIds.next());
         // Setting the array of bundled items.
         plan.setPlanItems(planItems);
 
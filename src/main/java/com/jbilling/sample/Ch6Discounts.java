@@ -35,9 +35,9 @@ public class Ch6Discounts {
         // Id of the company in which the discount will be created.
         discount.setEntityId(companyId);
         // Discount code (must be unique).
-        discount.setCode("disc_" + System.currentTimeMillis());
+        discount.setCode("disc_" + UniqueIds.next());
         // Name of the discount.
-        discount.setDescription("discName_" + System.currentTimeMillis());
+        discount.setDescription("discName_" + UniqueIds.next());
         // Type of the discount (can be One Time Amount, One Time Percentage, or Recurring Period Based).
         discount.setType(DiscountStrategyType.ONE_TIME_PERCENTAGE.name());
         // Discount Rate.
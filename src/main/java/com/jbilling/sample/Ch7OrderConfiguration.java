@@ -97,7 +97,7 @@ public class Ch7OrderConfiguration {
         System.out.println("Newly created ORDER CHANGE TYPE: " + ocType);
 
         // An order change type can updated with the same call used for creation, createUpdateOrderChangeType().
-        ocType.setName("updatedOrderChangeType_" + System.currentTimeMillis());
+        ocType.setName("updatedOrderChangeType_" + UniqueIds.next());
         api.createUpdateOrderChangeType(ocType);
         ocType = api.getOrderChangeTypeById(ocTypeId);
         System.out.println("Updated ORDER CHANGE TYPE: " + ocType);
@@ -164,7 +164,7 @@ public class Ch7OrderConfiguration {
         // Setting the flag of the order status.
         orderStatus.setOrderStatusFlag(flag);
         // Setting the name of the order status.
-        orderStatus.setDescription(name + "_" + System.currentTimeMillis());
+        orderStatus.setDescription(name + "_" + UniqueIds.next());
         // Setting the description of the order status.
         List<InternationalDescriptionWS> descriptions = new ArrayList<>();
         descriptions.add(new InternationalDescriptionWS(Constants.LANGUAGE_ENGLISH_ID,
@@ -178,7 +178,7 @@ public class Ch7OrderConfiguration {
 
         OrderChangeTypeWS ocType = new OrderChangeTypeWS();
         // Setting the name of the order change type.
-        ocType.setName("orderChangeType_" + System.currentTimeMillis());
+        ocType.setName("orderChangeType_" + UniqueIds.next());
         // Id of the company for which this order change type is created.
         ocType.setEntityId(companyId);
         // Flag to set if this order change type will be the default one.
@@ -208,7 +208,7 @@ public class Ch7OrderConfiguration {
         // Setting the description of the order change status.
         InternationalDescriptionWS description = new InternationalDescriptionWS();
         description.setLanguageId(Constants.LANGUAGE_ENGLISH_ID);
-        description.setContent("orderChangeStatus_" + System.currentTimeMillis());
+        description.setContent("orderChangeStatus_" + UniqueIds.next());
         ocStatus.addDescription(description);
 
         return ocStatus;
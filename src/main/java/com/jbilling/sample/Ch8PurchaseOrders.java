@@ -18,11 +18,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * jBilling Purchase Orders examples.
@@ -48,7 +44,7 @@ public class Ch8PurchaseOrders {
         // Build and create an item type and an item.
         ItemTypeWS itemType = Ch3ProductAndPricing.buildItemType(companyId);
         Integer itemTypeId = api.createItemCategory(itemType);
-        String productCode = "sampleProduct_" + System.currentTimeMillis();
+        String productCode = "sampleProduct_" + UniqueIds.next();
         ItemDTOEx item = Ch3ProductAndPricing.buildItem(companyId, productCode, itemTypeId,
                 Integer.valueOf(0), Ch3ProductAndPricing.withFlatPrice(new Date(), "10"));
         Integer itemId = api.createItem(item);
@@ -72,6 +68,14 @@ public class Ch8PurchaseOrders {
         orderChange.setQuantity(BigDecimal.TEN);
         api.updateOrder(order, new OrderChangeWS[] {orderChange});
 
+        // Instead of building the changes by hand, OrderDiff compares two versions of an order and builds changes
+        // only for the lines that differ.
+        OrderWS previousOrder = api.getOrder(orderId);
+        order = api.getOrder(orderId);
+        order.getOrderLines()[0].setQuantity(Integer.valueOf(20));
+        api.updateOrder(order, OrderDiff.diff(previousOrder, order, applyStatusId,
+                new GregorianCalendar(2010, 1, 10).getTime()));
+
         // An order line alone can be fetched using getOrderLine().
         OrderLineWS orderLine = api.getOrderLine(order.getOrderLines()[0].getId());
 
@@ -137,74 +141,10 @@ public class Ch8PurchaseOrders {
 
     public static OrderChangeWS[] buildChangesFromOrder(OrderWS orderWS, Integer statusId) {
 
-        Date startDate = orderWS.getActiveSince();
-        List<OrderChangeWS> orderChanges = new ArrayList<>();
-        Map<OrderLineWS, OrderChangeWS> lineToChangeMap = new HashMap<>();
-        OrderWS rootOrder = findRootOrderIfPossible(orderWS);
-
-        // Build order changes from the root order.
-        for (OrderLineWS orderLine : rootOrder.getOrderLines()) {
-            OrderChangeWS orderChange = buildChangeFromLine(orderWS, orderLine, statusId, startDate);
-            orderChanges.add(orderChange);
-            lineToChangeMap.put(orderLine, orderChange);
-        }
-
-        // Build order changes from the child orders.
-        LinkedHashSet<OrderWS> childOrders = findChildOrders(rootOrder, new LinkedHashSet<>());
-        for (OrderWS childOrder : childOrders) {
-            for (OrderLineWS line : childOrder.getOrderLines()) {
-                OrderChangeWS change = buildChangeFromLine(childOrder, line, statusId, startDate);
-                orderChanges.add(change);
-                lineToChangeMap.put(line, change);
-            }
-        }
-
-        // Here the parent-child links are set for the order changes.
-        for (OrderLineWS line : lineToChangeMap.keySet()) {
-            if (line.getParentLine() != null) {
-                OrderChangeWS change = lineToChangeMap.get(line);
-                if (line.getParentLine().getId() > Integer.valueOf(0)) {
-                    change.setParentOrderLineId(line.getParentLine().getId());
-                } else {
-                    OrderChangeWS parentChange = lineToChangeMap.get(line.getParentLine());
-                    change.setParentOrderChange(parentChange);
-                }
-            }
-        }
-
-        return orderChanges.toArray(new OrderChangeWS[orderChanges.size()]);
-    }
-
-    private static OrderWS findRootOrderIfPossible(OrderWS order) {
-
-        // Finds the root order in an order hierarchy.
-        OrderWS rootOrder = order;
-        while (rootOrder.getParentOrder() != null && !rootOrder.getParentOrder().equals(order)) {
-            rootOrder = rootOrder.getParentOrder();
-        }
-
-        return rootOrder;
-    }
-
-    private static LinkedHashSet<OrderWS> findChildOrders(OrderWS order, LinkedHashSet<OrderWS> orders) {
-
-        // Finds all the child orders for a given order.
-        if (order == null) {
-            return null;
-        }
-        if (order.getChildOrders() != null) {
-            List<OrderWS> newChildren = new LinkedList<>(Arrays.asList(order.getChildOrders()));
-            newChildren.removeAll(orders);
-            orders.addAll(newChildren);
-            for (OrderWS childOrder : newChildren) {
-                findChildOrders(childOrder, orders);
-            }
-        }
-
-        return orders;
+        // Builds the changes for the root order and all its child orders, see OrderChangeBuilder.
+        return OrderChangeBuilder.buildChanges(orderWS, statusId);
     }
 
-
     public static OrderChangeWS buildChangeFromLine(OrderWS order, OrderLineWS line, Integer statusId, Date startDate) {
 
         // This method is used to build an order change from an order line.
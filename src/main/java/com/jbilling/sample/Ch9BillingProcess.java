@@ -45,8 +45,20 @@ public class Ch9BillingProcess {
         // The last review billing process can be optained by calling getReviewBillingProcess().
         BillingProcessWS reviewRun = api.getReviewBillingProcess();
 
+        // Before approving, the review run can be compared with the previous real run using a ReviewRunAnalyzer.
+        ReviewRunAnalyzer.Report reviewReport = new ReviewRunAnalyzer(api, 8)
+                .analyze(reviewRun.getId(), api.getLastBillingProcess());
+        System.out.println(reviewReport);
+
         // Approving or disapproving the review billing process can be done using setReviewApproval().
-        api.setReviewApproval(Boolean.TRUE);
+        // A run recommended for manual review is left for a person to approve or disapprove.
+        if (reviewReport.getRecommendation() == ReviewRunAnalyzer.Recommendation.APPROVE) {
+            api.setReviewApproval(true);
+        } else if (reviewReport.getRecommendation() == ReviewRunAnalyzer.Recommendation.REJECT) {
+            api.setReviewApproval(false);
+        } else {
+            System.out.println("Review billing process " + reviewRun.getId() + " needs a manual review.");
+        }
 
         // We can obtain the existing billing configuration using getBillingProcessConfiguration().
         billingConfig = api.getBillingProcessConfiguration();
@@ -55,9 +67,23 @@ public class Ch9BillingProcess {
         billingConfig.setGenerateReport(Integer.valueOf(0));
         api.createUpdateBillingProcessConfiguration(billingConfig);
 
-        System.out.println("Starting real billing process.");
-        api.triggerBilling(new GregorianCalendar(2010, 1, 1).getTime());
-        System.out.println("Finished running real billing process.");
+        // Long billing runs are best started with a BillingOrchestrator. It uses triggerBillingAsync() and polls
+        // isBillingRunning() with a growing delay, without keeping a thread blocked until the run is over.
+        try (BillingOrchestrator orchestrator = new BillingOrchestrator(api, companyId)) {
+            orchestrator.addListener(new BillingOrchestrator.Listener() {
+                @Override
+                public void started(Date billingDate) {
+                    System.out.println("Started real billing process for " + billingDate);
+                }
+
+                @Override
+                public void invoicesReady(BillingProcessWS billingProcess, Integer[] invoiceIds) {
+                    System.out.println("Real billing process generated " + invoiceIds.length + " invoices.");
+                }
+            });
+            BillingOrchestrator.RunResult result = orchestrator.start(new GregorianCalendar(2010, 1, 1).getTime()).get();
+            System.out.println("Finished running real billing process: " + result);
+        }
 
         // The id of the last run billing process can be obtained with getLastBillingProcess().
         Integer realRunId = api.getLastBillingProcess();
@@ -67,6 +93,10 @@ public class Ch9BillingProcess {
 
         // The invoices generated by some billing process can be obtained with getBillingProcessGeneratedInvoices().
         Integer[] invoiceIds = api.getBillingProcessGeneratedInvoices(realRunId);
+
+        // The generated invoices can be summed up per currency, account type and item type with an InvoiceAggregator.
+        InvoiceAggregator.Summary summary = new InvoiceAggregator(api, 8).aggregate(invoiceIds);
+        System.out.println("Real billing process summary: " + summary);
     }
 
     public static BillingProcessConfigurationWS buildBillingConfig(Integer companyId, Date runDate,
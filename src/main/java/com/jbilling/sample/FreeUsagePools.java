@@ -37,12 +37,12 @@ public class FreeUsagePools {
         List<Integer> itemTypesIds = new ArrayList<>();
         itemTypesIds.add(itemTypeId);
 
-        String subscriptionCode = "sampleSubProduct_" + System.currentTimeMillis();
+        String subscriptionCode = "sampleSubProduct_" + UniqueIds.next();
         ItemDTOEx subscriptionItem = Ch3ProductAndPricing.buildItem(companyId, subscriptionCode, itemTypeId,
                 Integer.valueOf(0), Ch3ProductAndPricing.withFlatPrice(new Date(), "10"));
         Integer subscriptionItemId = api.createItem(subscriptionItem);
 
-        String productCode = "sampleProduct_" + System.currentTimeMillis();
+        String productCode = "sampleProduct_" + UniqueIds.next();
         ItemDTOEx item = Ch3ProductAndPricing.buildItem(companyId, productCode, itemTypeId, Integer.valueOf(0),
                 Ch3ProductAndPricing.withFlatPrice(new Date(), "10"));
         Integer itemId = api.createItem(item);
@@ -56,10 +56,10 @@ public class FreeUsagePools {
         consumptionActions.add(consumptionAction);
 
         // Build and then create two usage pools by using createUsagePool().
-        UsagePoolWS usagePoolOne = buildUsagePool(companyId, "200 National SMS " + System.currentTimeMillis(), "1", "Months",
+        UsagePoolWS usagePoolOne = buildUsagePool(companyId, "200 National SMS " + UniqueIds.next(), "1", "Months",
                 new Integer(1), itemTypesIds, itemsIds, UsagePoolResetValueEnum.ZERO.toString(), consumptionActions);
         Integer usagePoolOneId = api.createUsagePool(usagePoolOne);
-        UsagePoolWS usagePoolTwo = buildUsagePool(companyId, "200 National SMS " + System.currentTimeMillis(), "1", "Months",
+        UsagePoolWS usagePoolTwo = buildUsagePool(companyId, "200 National SMS " + UniqueIds.next(), "1", "Months",
                 new Integer(1), itemTypesIds, itemsIds, UsagePoolResetValueEnum.ZERO.toString(), consumptionActions);
         Integer usagePoolTwoId = api.createUsagePool(usagePoolTwo);
 
@@ -70,7 +70,7 @@ public class FreeUsagePools {
         System.out.println("Usage Pool Two:\n" + usagePoolTwo);
 
         // A usage pool can be updated by using updateUsagePool().
-        usagePoolOne.setName("Updated 200 National SMS " + System.currentTimeMillis());
+        usagePoolOne.setName("Updated 200 National SMS " + UniqueIds.next());
         api.updateUsagePool(usagePoolOne);
 
         // A usage pool can be deleted by using deleteUsagePool().
@@ -0,0 +1,114 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.util.IWebServicesSessionBean;
+import org.springframework.remoting.caucho.HessianProxyFactoryBean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the default Hessian transport with {@link PooledHessianConnectionFactory}.
+ *
+ * Both transports call the same lightweight API method from several threads and report throughput and latency.
+ * Without a service URL the benchmark runs against a local {@link StandInApiServer}.
+ * Usage: {@code HessianTransportBenchmark [serviceUrl|-] [threads] [callsPerThread] [latencyMillis]}
+ */
+public class HessianTransportBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int calls = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        StandInApiServer standIn = null;
+        String serviceUrl;
+        if (args.length > 0 && !"-".equals(args[0])) {
+            serviceUrl = args[0];
+        } else {
+            standIn = new StandInApiServer(0, threads * 2).start();
+            standIn.setLatency(args.length > 3 ? Long.parseLong(args[3]) : 0, 0);
+            serviceUrl = standIn.getServiceUrl();
+        }
+
+        // Warm up both transports first, so class loading and JIT do not skew the first measurement.
+        run("default (warm-up)", buildClient(serviceUrl, null), threads, calls / 10);
+        PooledHessianConnectionFactory pooled = buildPooledFactory(threads);
+        run("pooled (warm-up)", buildClient(serviceUrl, pooled), threads, calls / 10);
+
+        run("default", buildClient(serviceUrl, null), threads, calls);
+        run("pooled", buildClient(serviceUrl, pooled), threads, calls);
+        System.out.println(pooled);
+        pooled.shutdown();
+        if (standIn != null) {
+            standIn.close();
+        }
+    }
+
+    public static PooledHessianConnectionFactory buildPooledFactory(int maxConnections) {
+
+        PooledHessianConnectionFactory factory = new PooledHessianConnectionFactory();
+        factory.setMaxConnections(maxConnections);
+        factory.setMaxConnectionsPerRoute(maxConnections);
+        return factory;
+    }
+
+    public static IWebServicesSessionBean buildClient(String serviceUrl, PooledHessianConnectionFactory factory) {
+
+        // Same settings as the apiClient bean in jbilling-remote-beans.xml.
+        HessianProxyFactoryBean proxyFactory = new HessianProxyFactoryBean();
+        proxyFactory.setServiceUrl(serviceUrl);
+        proxyFactory.setServiceInterface(IWebServicesSessionBean.class);
+        proxyFactory.setHessian2(true);
+        proxyFactory.setUsername("admin;1");
+        proxyFactory.setPassword("123qwe");
+        if (factory != null) {
+            proxyFactory.setConnectionFactory(factory);
+        }
+        proxyFactory.afterPropertiesSet();
+        return (IWebServicesSessionBean) proxyFactory.getObject();
+    }
+
+    private static void run(String name, IWebServicesSessionBean client, int threads, int calls) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                long[] latencies = new long[calls];
+                for (int i = 0; i < calls; i++) {
+                    long callStart = System.nanoTime();
+                    client.getCallerCompanyId();
+                    latencies[i] = System.nanoTime() - callStart;
+                }
+                return latencies;
+            }));
+        }
+
+        long[] all = new long[threads * calls];
+        int position = 0;
+        for (Future<long[]> result : results) {
+            long[] latencies = result.get();
+            System.arraycopy(latencies, 0, all, position, latencies.length);
+            position += latencies.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        Arrays.sort(all);
+        System.out.printf("%-20s %8d calls %10.1f calls/s  p50 %7.3f ms  p99 %7.3f ms  max %7.3f ms%n",
+                name, all.length, all.length / (elapsed / 1e9),
+                percentile(all, 0.50), percentile(all, 0.99), all[all.length - 1] / 1e6);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,395 @@
+package com.jbilling.sample;
+
+import com.caucho.hessian.io.Hessian2Output;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Opt-in instrumentation of {@link JbillingAPI} calls.
+ *
+ * Wraps an API instance in a dynamic proxy that records, per API method, a latency histogram, the number of
+ * calls in flight, the number of errors and the Hessian encoded size of requests and responses. Recording only
+ * uses preallocated counters, payload sizes are measured on a sample of the calls since encoding costs time.
+ * Periodic snapshots report p50/p99/p999 latencies for the last interval.
+ */
+public class InstrumentedJbillingAPI {
+
+    public static final int DEFAULT_PAYLOAD_SAMPLE_RATE = 100;
+
+    private final JbillingAPI api;
+    private final int payloadSampleRate;
+    private final Map<Method, MethodStats> stats = new ConcurrentHashMap<>();
+    private ScheduledExecutorService reporter;
+
+    /**
+     * @param api               the API to instrument
+     * @param payloadSampleRate payload sizes are measured on every n-th call of a method, zero disables them
+     */
+    public InstrumentedJbillingAPI(JbillingAPI api, int payloadSampleRate) {
+        this.api = api;
+        this.payloadSampleRate = payloadSampleRate;
+    }
+
+    public static InstrumentedJbillingAPI wrap(JbillingAPI api) {
+        return new InstrumentedJbillingAPI(api, DEFAULT_PAYLOAD_SAMPLE_RATE);
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        InstrumentedJbillingAPI instrumented = wrap(JbillingAPIFactory.getAPI());
+        instrumented.startReporting(10, TimeUnit.SECONDS, snapshots -> snapshots.forEach(System.out::println));
+        JbillingAPI api = instrumented.getApi();
+
+        Integer companyId = api.getCallerCompanyId();
+        for (int i = 0; i < 100; i++) {
+            api.getOrderPeriods();
+            api.createAccountType(Ch1AccountTypes.buildAccountType(companyId));
+        }
+        instrumented.snapshot().forEach(System.out::println);
+        instrumented.stopReporting();
+    }
+
+    /**
+     * The instrumented API. All calls made through it are recorded.
+     */
+    public JbillingAPI getApi() {
+
+        return (JbillingAPI) Proxy.newProxyInstance(JbillingAPI.class.getClassLoader(),
+                new Class<?>[] {JbillingAPI.class}, new InstrumentingHandler());
+    }
+
+    /**
+     * Statistics for every method called so far, sorted by the total time spent in the method.
+     * Percentiles cover the time since the previous snapshot.
+     */
+    public synchronized List<MethodSnapshot> snapshot() {
+
+        List<MethodSnapshot> snapshots = new ArrayList<>();
+        for (MethodStats methodStats : stats.values()) {
+            snapshots.add(methodStats.snapshot());
+        }
+        snapshots.sort(Comparator.comparingLong(MethodSnapshot::getTotalNanos).reversed());
+        return snapshots;
+    }
+
+    public synchronized void startReporting(long period, TimeUnit unit, Consumer<List<MethodSnapshot>> consumer) {
+
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jbilling-api-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> consumer.accept(snapshot()), period, period, unit);
+    }
+
+    public synchronized void stopReporting() {
+
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    private MethodStats statsFor(Method method) {
+
+        MethodStats methodStats = stats.get(method);
+        if (methodStats == null) {
+            methodStats = stats.computeIfAbsent(method, key -> new MethodStats(key.getName()));
+        }
+        return methodStats;
+    }
+
+    private class InstrumentingHandler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(api, args);
+            }
+            MethodStats methodStats = statsFor(method);
+            long call = methodStats.calls.incrementAndGet();
+            boolean sampled = payloadSampleRate > 0 && (call - 1) % payloadSampleRate == 0;
+            if (sampled && args != null) {
+                methodStats.requestBytes.add(encodedSize(args));
+                methodStats.payloadSamples.increment();
+            }
+
+            methodStats.enter();
+            long start = System.nanoTime();
+            try {
+                Object result = method.invoke(api, args);
+                if (sampled && result != null) {
+                    methodStats.responseBytes.add(encodedSize(result));
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                methodStats.errors.increment();
+                throw e.getCause();
+            } finally {
+                methodStats.histogram.record(System.nanoTime() - start);
+                methodStats.exit();
+            }
+        }
+    }
+
+    private static long encodedSize(Object value) {
+
+        CountingOutputStream counter = new CountingOutputStream();
+        try {
+            Hessian2Output output = new Hessian2Output(counter);
+            if (value instanceof Object[]) {
+                for (Object arg : (Object[]) value) {
+                    output.writeObject(arg);
+                }
+            } else {
+                output.writeObject(value);
+            }
+            output.flush();
+        } catch (IOException | RuntimeException e) {
+            // The size is informative only, a value that can not be encoded is counted as far as it got.
+        }
+        return counter.count;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    private static final class MethodStats {
+
+        private final String name;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong calls = new AtomicLong();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder requestBytes = new LongAdder();
+        private final LongAdder responseBytes = new LongAdder();
+        private final LongAdder payloadSamples = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+        private long[] previousCounts = new long[LatencyHistogram.BUCKETS];
+
+        MethodStats(String name) {
+            this.name = name;
+        }
+
+        void enter() {
+
+            int current = inFlight.incrementAndGet();
+            int max = maxInFlight.get();
+            while (current > max && !maxInFlight.compareAndSet(max, current)) {
+                max = maxInFlight.get();
+            }
+        }
+
+        void exit() {
+            inFlight.decrementAndGet();
+        }
+
+        MethodSnapshot snapshot() {
+
+            long[] counts = histogram.counts();
+            long[] interval = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                interval[i] = counts[i] - previousCounts[i];
+            }
+            previousCounts = counts;
+            long samples = payloadSamples.sum();
+            return new MethodSnapshot(name, calls.get(), errors.sum(), inFlight.get(), maxInFlight.getAndSet(inFlight.get()),
+                    histogram.totalNanos(), LatencyHistogram.percentile(interval, 0.50),
+                    LatencyHistogram.percentile(interval, 0.99), LatencyHistogram.percentile(interval, 0.999),
+                    samples == 0 ? 0 : requestBytes.sum() / samples, samples == 0 ? 0 : responseBytes.sum() / samples);
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in the spirit of HdrHistogram: every power of two range of nanoseconds is
+     * split into 32 linear sub-buckets, which keeps the relative error of a recorded value below about 3%.
+     */
+    static final class LatencyHistogram {
+
+        static final int SUB_BUCKET_BITS = 6;
+        static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(long nanos) {
+
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(indexOf(value));
+            totalNanos.add(value);
+        }
+
+        long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        long[] counts() {
+
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        static int indexOf(long value) {
+
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+            int subBucket = (int) (value >>> exponent) - SUB_BUCKETS / 2;
+            return exponent * SUB_BUCKETS / 2 + SUB_BUCKETS / 2 + subBucket;
+        }
+
+        // Upper bound of the values that fall into a bucket.
+        static long highestValueAt(int index) {
+
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = (index - SUB_BUCKETS / 2) / (SUB_BUCKETS / 2);
+            int subBucket = (index - SUB_BUCKETS / 2) % (SUB_BUCKETS / 2) + SUB_BUCKETS / 2;
+            return (((long) subBucket + 1) << exponent) - 1;
+        }
+
+        static long percentile(long[] counts, double percentile) {
+
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValueAt(i);
+                }
+            }
+            return highestValueAt(counts.length - 1);
+        }
+    }
+
+    /**
+     * Statistics of one API method at the time of a snapshot. Latencies are in nanoseconds, payload sizes are
+     * average Hessian encoded sizes in bytes.
+     */
+    public static final class MethodSnapshot {
+
+        private final String method;
+        private final long calls;
+        private final long errors;
+        private final int inFlight;
+        private final int maxInFlight;
+        private final long totalNanos;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long averageRequestBytes;
+        private final long averageResponseBytes;
+
+        MethodSnapshot(String method, long calls, long errors, int inFlight, int maxInFlight, long totalNanos,
+                       long p50, long p99, long p999, long averageRequestBytes, long averageResponseBytes) {
+            this.method = method;
+            this.calls = calls;
+            this.errors = errors;
+            this.inFlight = inFlight;
+            this.maxInFlight = maxInFlight;
+            this.totalNanos = totalNanos;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.averageRequestBytes = averageRequestBytes;
+            this.averageResponseBytes = averageResponseBytes;
+        }
+
+        public String getMethod() {
+            return method;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getAverageRequestBytes() {
+            return averageRequestBytes;
+        }
+
+        public long getAverageResponseBytes() {
+            return averageResponseBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: calls=%d errors=%d inFlight=%d/%d total=%.1fms p50=%.3fms p99=%.3fms "
+                            + "p999=%.3fms req=%dB resp=%dB", method, calls, errors, inFlight, maxInFlight,
+                    totalNanos / 1e6, p50 / 1e6, p99 / 1e6, p999 / 1e6, averageRequestBytes, averageResponseBytes);
+        }
+    }
+}
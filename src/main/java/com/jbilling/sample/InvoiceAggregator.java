@@ -0,0 +1,287 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.entity.InvoiceLineDTO;
+import com.sapienter.jbilling.server.invoice.InvoiceWS;
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.user.UserWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregates the invoices of a billing run into totals per currency, per account type and per item type.
+ *
+ * The invoices are fetched with {@code getInvoiceWS()} in chunks by a fixed number of threads, and every invoice
+ * is added to the totals as soon as it is fetched, so no invoice is kept after it is counted. Amounts are summed
+ * as {@code long} values scaled to four decimals in {@link LongAdder}s, which threads update without contention.
+ * Account types and item types are looked up once per customer and product and then cached for the run. All the
+ * lookups of an invoice are done before it is added, so an invoice that fails is not counted at all.
+ *
+ * Totals are always kept per currency. An item with several item types counts towards each of them.
+ */
+public class InvoiceAggregator {
+
+    public static final int SCALE = 4;
+    public static final int DEFAULT_CHUNK_SIZE = 100;
+
+    private final JbillingAPI api;
+    private final int parallelism;
+    private final int chunkSize;
+
+    public InvoiceAggregator(JbillingAPI api, int parallelism) {
+        this(api, parallelism, DEFAULT_CHUNK_SIZE);
+    }
+
+    public InvoiceAggregator(JbillingAPI api, int parallelism, int chunkSize) {
+        this.api = api;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Fetches and aggregates the invoices. Invoices that can not be fetched are counted as failed.
+     */
+    public Summary aggregate(Integer[] invoiceIds) throws InterruptedException {
+
+        long start = System.nanoTime();
+        Totals totals = new Totals();
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "invoice-aggregator-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Callable<Void>> chunks = new ArrayList<>();
+            for (int from = 0; from < invoiceIds.length; from += chunkSize) {
+                Integer[] chunk = Arrays.copyOfRange(invoiceIds, from, Math.min(from + chunkSize, invoiceIds.length));
+                chunks.add(() -> {
+                    for (Integer invoiceId : chunk) {
+                        try {
+                            totals.add(api.getInvoiceWS(invoiceId));
+                        } catch (RuntimeException e) {
+                            totals.failed.increment();
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<Void> result : executor.invokeAll(chunks)) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Invoice aggregation failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Summary(totals, System.nanoTime() - start);
+    }
+
+    static long toScaled(Object amount) {
+
+        if (amount == null) {
+            return 0;
+        }
+        return new BigDecimal(String.valueOf(amount)).setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    static BigDecimal fromScaled(long scaled) {
+        return BigDecimal.valueOf(scaled, SCALE);
+    }
+
+    // Currency id in the high half, the account type or item type id in the low half.
+    private static long key(Integer currencyId, Integer groupId) {
+        return ((long) (currencyId != null ? currencyId : 0) << 32) | ((groupId != null ? groupId : 0) & 0xFFFFFFFFL);
+    }
+
+    private static final class Accumulator {
+
+        final LongAdder amount = new LongAdder();
+        final LongAdder count = new LongAdder();
+
+        void add(long scaledAmount) {
+            amount.add(scaledAmount);
+            count.increment();
+        }
+    }
+
+    private final class Totals {
+
+        final LongAdder invoices = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final Map<Long, Accumulator> byCurrency = new ConcurrentHashMap<>();
+        final Map<Long, Accumulator> balanceByCurrency = new ConcurrentHashMap<>();
+        final Map<Long, Accumulator> byAccountType = new ConcurrentHashMap<>();
+        final Map<Long, Accumulator> byItemType = new ConcurrentHashMap<>();
+        final Map<Integer, Integer> accountTypes = new ConcurrentHashMap<>();
+        final Map<Integer, Integer[]> itemTypes = new ConcurrentHashMap<>();
+
+        void add(InvoiceWS invoice) {
+
+            if (invoice == null) {
+                failed.increment();
+                return;
+            }
+            Integer currencyId = invoice.getCurrencyId();
+            long total = toScaled(invoice.getTotal());
+            long balance = toScaled(invoice.getBalance());
+            Integer accountTypeId = accountTypeOf(invoice.getUserId());
+            InvoiceLineDTO[] lines = invoice.getInvoiceLines();
+            if (lines == null) {
+                lines = new InvoiceLineDTO[0];
+            }
+            long[] lineAmounts = new long[lines.length];
+            Integer[][] lineItemTypes = new Integer[lines.length][];
+            for (int i = 0; i < lines.length; i++) {
+                lineAmounts[i] = toScaled(lines[i].getAmount());
+                lineItemTypes[i] = itemTypesOf(lines[i].getItemId());
+            }
+
+            // Nothing below can fail, the invoice is counted either in full or not at all.
+            invoices.increment();
+            accumulator(byCurrency, key(currencyId, 0)).add(total);
+            accumulator(balanceByCurrency, key(currencyId, 0)).add(balance);
+            accumulator(byAccountType, key(currencyId, accountTypeId)).add(total);
+            for (int i = 0; i < lines.length; i++) {
+                for (Integer itemTypeId : lineItemTypes[i]) {
+                    accumulator(byItemType, key(currencyId, itemTypeId)).add(lineAmounts[i]);
+                }
+            }
+        }
+
+        private Accumulator accumulator(Map<Long, Accumulator> map, long key) {
+            return map.computeIfAbsent(key, k -> new Accumulator());
+        }
+
+        private Integer accountTypeOf(Integer userId) {
+
+            if (userId == null) {
+                return 0;
+            }
+            // The remote call is made outside of the map, two threads may look up the same customer.
+            Integer accountTypeId = accountTypes.get(userId);
+            if (accountTypeId == null) {
+                UserWS user = api.getUserWS(userId);
+                accountTypeId = user != null && user.getAccountTypeId() != null ? user.getAccountTypeId() : 0;
+                Integer cached = accountTypes.putIfAbsent(userId, accountTypeId);
+                if (cached != null) {
+                    accountTypeId = cached;
+                }
+            }
+            return accountTypeId;
+        }
+
+        // Lines without a product, such as taxes and carried balances, are counted under item type 0.
+        private Integer[] itemTypesOf(Integer itemId) {
+
+            if (itemId == null) {
+                return new Integer[] {0};
+            }
+            Integer[] types = itemTypes.get(itemId);
+            if (types == null) {
+                ItemDTOEx item = api.getItem(itemId, null, null);
+                types = item != null ? item.getTypes() : null;
+                if (types == null || types.length == 0) {
+                    types = new Integer[] {0};
+                }
+                Integer[] cached = itemTypes.putIfAbsent(itemId, types);
+                if (cached != null) {
+                    types = cached;
+                }
+            }
+            return types;
+        }
+    }
+
+    /**
+     * Totals of a run. Amounts are returned as {@link BigDecimal}s with four decimals, keyed by currency id and by
+     * account type or item type id.
+     */
+    public static final class Summary {
+
+        private final long invoices;
+        private final long failed;
+        private final long elapsedNanos;
+        private final Map<Integer, BigDecimal> totalByCurrency = new TreeMap<>();
+        private final Map<Integer, BigDecimal> balanceByCurrency = new TreeMap<>();
+        private final Map<Integer, Long> invoicesByCurrency = new TreeMap<>();
+        private final Map<Integer, Map<Integer, BigDecimal>> totalByAccountType = new TreeMap<>();
+        private final Map<Integer, Map<Integer, BigDecimal>> totalByItemType = new TreeMap<>();
+
+        Summary(InvoiceAggregator.Totals totals, long elapsedNanos) {
+
+            this.invoices = totals.invoices.sum();
+            this.failed = totals.failed.sum();
+            this.elapsedNanos = elapsedNanos;
+            totals.byCurrency.forEach((key, accumulator) -> {
+                totalByCurrency.put((int) (key >>> 32), fromScaled(accumulator.amount.sum()));
+                invoicesByCurrency.put((int) (key >>> 32), accumulator.count.sum());
+            });
+            totals.balanceByCurrency.forEach((key, accumulator) ->
+                    balanceByCurrency.put((int) (key >>> 32), fromScaled(accumulator.amount.sum())));
+            group(totals.byAccountType, totalByAccountType);
+            group(totals.byItemType, totalByItemType);
+        }
+
+        private static void group(Map<Long, Accumulator> source, Map<Integer, Map<Integer, BigDecimal>> target) {
+            source.forEach((key, accumulator) -> target.computeIfAbsent((int) (key >>> 32), currency -> new TreeMap<>())
+                    .put((int) key.longValue(), fromScaled(accumulator.amount.sum())));
+        }
+
+        public long getInvoices() {
+            return invoices;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public Map<Integer, BigDecimal> getTotalByCurrency() {
+            return totalByCurrency;
+        }
+
+        public Map<Integer, BigDecimal> getBalanceByCurrency() {
+            return balanceByCurrency;
+        }
+
+        public Map<Integer, Map<Integer, BigDecimal>> getTotalByAccountType() {
+            return totalByAccountType;
+        }
+
+        public Map<Integer, Map<Integer, BigDecimal>> getTotalByItemType() {
+            return totalByItemType;
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder summary = new StringBuilder();
+            summary.append(String.format("%d invoices aggregated in %.1f s (%.0f invoices/s), %d failed%n",
+                    invoices, elapsedNanos / 1e9, invoices / (elapsedNanos / 1e9), failed));
+            for (Map.Entry<Integer, BigDecimal> currency : totalByCurrency.entrySet()) {
+                Integer currencyId = currency.getKey();
+                summary.append(String.format("currency %d: %d invoices, total %s, balance %s%n", currencyId,
+                        invoicesByCurrency.get(currencyId), currency.getValue(), balanceByCurrency.get(currencyId)));
+                summary.append("  by account type ").append(totalByAccountType.get(currencyId)).append('\n');
+                summary.append("  by item type ").append(totalByItemType.get(currencyId)).append('\n');
+            }
+            return summary.toString();
+        }
+    }
+}
@@ -0,0 +1,347 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderPeriodWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+import com.sapienter.jbilling.server.process.BillingProcessConfigurationWS;
+import com.sapienter.jbilling.server.process.db.ProratingType;
+import com.sapienter.jbilling.server.util.Constants;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Estimates locally what the next billing run will invoice, without a review run on the server.
+ *
+ * The orders of all the customers are sorted by customer and split into ranges of whole customers that are
+ * estimated as fork/join tasks. For every active order the estimator works out the periods the run would bill up
+ * to the run date, following the rules of the billing process configuration:
+ * <ul>
+ *     <li>prepaid orders are billed for the periods that start on or before the run date, postpaid orders for the
+ *     periods that end on or before it,</li>
+ *     <li>at most {@code maximumPeriods} periods are billed per order,</li>
+ *     <li>with {@code onlyRecurring} set, customers without an active recurring order are not invoiced,</li>
+ *     <li>the last period of an order ending within it is prorated by days when the prorating type asks for it
+ *     (always for automatic prorating, following the order's prorate flag for manual prorating).</li>
+ * </ul>
+ * The order period id is resolved through the order periods of the company ({@code getOrderPeriods()}). Lines
+ * use their own price, or the item's default price in effect at the start of the period when they use the item
+ * price. Only flat prices are evaluated exactly, other price models use their rate as unit price.
+ *
+ * The estimate is a forecast. It does not know about invoices already generated for the orders, taxes, plans,
+ * discounts or usage pools.
+ */
+public class InvoiceEstimator {
+
+    private static final int ORDERS_PER_TASK = 1024;
+
+    private final BillingProcessConfigurationWS config;
+    private final Map<Integer, OrderPeriodWS> orderPeriods;
+    private final PriceTimeline<PriceModelWS> prices;
+    private final ForkJoinPool pool;
+    private final LongAdder unresolvedOrders = new LongAdder();
+
+    public InvoiceEstimator(BillingProcessConfigurationWS config, OrderPeriodWS[] orderPeriods,
+                            Map<Integer, ItemDTOEx> items) {
+        this(config, orderPeriods, items, ForkJoinPool.commonPool());
+    }
+
+    public InvoiceEstimator(BillingProcessConfigurationWS config, OrderPeriodWS[] orderPeriods,
+                            Map<Integer, ItemDTOEx> items, ForkJoinPool pool) {
+
+        this.config = config;
+        this.orderPeriods = new ConcurrentHashMap<>();
+        for (OrderPeriodWS period : orderPeriods) {
+            this.orderPeriods.put(period.getId(), period);
+        }
+        this.prices = PriceTimeline.ofItems(items.values());
+        this.pool = pool;
+    }
+
+    /**
+     * Estimates the invoice of every customer that the run would bill.
+     */
+    public Map<Integer, CustomerEstimate> estimate(OrderWS[] orders) {
+
+        OrderWS[] sorted = Arrays.copyOf(orders, orders.length);
+        Arrays.parallelSort(sorted, Comparator.comparing(OrderWS::getUserId));
+        Map<Integer, CustomerEstimate> estimates = new ConcurrentHashMap<>();
+        pool.invoke(new EstimateTask(sorted, 0, sorted.length, estimates));
+        return estimates;
+    }
+
+    /**
+     * Number of orders skipped because their order period is not one of the company's order periods.
+     */
+    public long getUnresolvedOrders() {
+        return unresolvedOrders.sum();
+    }
+
+    // Estimates the customers in [from, to). Splits only at customer boundaries, so every customer is estimated
+    // by one task.
+    private final class EstimateTask extends RecursiveAction {
+
+        private final OrderWS[] orders;
+        private final int from;
+        private final int to;
+        private final Map<Integer, CustomerEstimate> estimates;
+
+        EstimateTask(OrderWS[] orders, int from, int to, Map<Integer, CustomerEstimate> estimates) {
+            this.orders = orders;
+            this.from = from;
+            this.to = to;
+            this.estimates = estimates;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (to - from > ORDERS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                Integer userId = orders[middle].getUserId();
+                while (middle < to && orders[middle].getUserId().equals(userId)) {
+                    middle++;
+                }
+                if (middle < to) {
+                    invokeAll(new EstimateTask(orders, from, middle, estimates),
+                            new EstimateTask(orders, middle, to, estimates));
+                    return;
+                }
+            }
+            int start = from;
+            while (start < to) {
+                int end = start + 1;
+                while (end < to && orders[end].getUserId().equals(orders[start].getUserId())) {
+                    end++;
+                }
+                CustomerEstimate estimate = estimateCustomer(orders, start, end);
+                if (estimate != null) {
+                    estimates.put(estimate.getUserId(), estimate);
+                }
+                start = end;
+            }
+        }
+    }
+
+    private CustomerEstimate estimateCustomer(OrderWS[] orders, int from, int to) {
+
+        LocalDate runDate = toLocalDate(config.getNextRunDate());
+        int maximumPeriods = config.getMaximumPeriods() != null ? config.getMaximumPeriods() : 1;
+        boolean onlyRecurring = Integer.valueOf(1).equals(config.getOnlyRecurring());
+
+        CustomerEstimate estimate = new CustomerEstimate(orders[from].getUserId());
+        boolean hasRecurring = false;
+        for (int i = from; i < to; i++) {
+            OrderWS order = orders[i];
+            LocalDate activeSince = toLocalDate(order.getActiveSince());
+            LocalDate activeUntil = toLocalDate(order.getActiveUntil());
+            if (activeSince == null || activeSince.isAfter(runDate)) {
+                continue;
+            }
+            if (Constants.ORDER_PERIOD_ONCE.equals(order.getPeriod())) {
+                addLines(estimate, order, activeSince, activeSince, BigDecimal.ONE);
+                continue;
+            }
+            OrderPeriodWS period = orderPeriods.get(order.getPeriod());
+            if (period == null) {
+                unresolvedOrders.increment();
+                continue;
+            }
+            if (activeUntil == null || !activeUntil.isBefore(runDate)) {
+                hasRecurring = true;
+            }
+
+            boolean prepaid = Constants.ORDER_BILLING_PRE_PAID.equals(order.getBillingTypeId());
+            LocalDate periodStart = order.getNextBillableDay() != null
+                    ? toLocalDate(order.getNextBillableDay()) : activeSince;
+            for (int billed = 0; billed < maximumPeriods; billed++) {
+                LocalDate periodEnd = next(periodStart, period);
+                if (prepaid ? periodStart.isAfter(runDate) : periodEnd.isAfter(runDate)) {
+                    break;
+                }
+                if (activeUntil != null && !activeUntil.isAfter(periodStart.minusDays(1))) {
+                    break;
+                }
+                BigDecimal fraction = BigDecimal.ONE;
+                if (activeUntil != null && activeUntil.isBefore(periodEnd.minusDays(1)) && prorate(order)) {
+                    // The active until date is the last day billed.
+                    long activeDays = ChronoUnit.DAYS.between(periodStart, activeUntil) + 1;
+                    long periodDays = ChronoUnit.DAYS.between(periodStart, periodEnd);
+                    fraction = BigDecimal.valueOf(activeDays).divide(BigDecimal.valueOf(periodDays), 10,
+                            RoundingMode.HALF_UP);
+                }
+                addLines(estimate, order, periodStart, periodEnd, fraction);
+                periodStart = periodEnd;
+            }
+        }
+        if (estimate.getLines().isEmpty() || (onlyRecurring && !hasRecurring)) {
+            return null;
+        }
+        return estimate;
+    }
+
+    private boolean prorate(OrderWS order) {
+
+        String prorating = config.getProratingType();
+        if (ProratingType.PRORATING_AUTO_ON.getProratingType().equals(prorating)) {
+            return true;
+        }
+        if (ProratingType.PRORATING_MANUAL.getProratingType().equals(prorating)) {
+            return Boolean.TRUE.equals(order.getProrateFlag());
+        }
+        return false;
+    }
+
+    private void addLines(CustomerEstimate estimate, OrderWS order, LocalDate periodStart, LocalDate periodEnd,
+                          BigDecimal fraction) {
+
+        if (order.getOrderLines() == null) {
+            return;
+        }
+        for (OrderLineWS line : order.getOrderLines()) {
+            BigDecimal quantity = line.getQuantity() != null
+                    ? new BigDecimal(String.valueOf(line.getQuantity())) : BigDecimal.ONE;
+            BigDecimal price = unitPrice(line, periodStart);
+            if (price == null) {
+                continue;
+            }
+            BigDecimal amount = price.multiply(quantity).multiply(fraction).setScale(2, RoundingMode.HALF_UP);
+            estimate.add(new EstimatedLine(order.getId(), line.getItemId(), periodStart, periodEnd, quantity, amount));
+        }
+    }
+
+    private BigDecimal unitPrice(OrderLineWS line, LocalDate periodStart) {
+
+        if (!Boolean.TRUE.equals(line.getUseItem()) && line.getPrice() != null) {
+            return new BigDecimal(String.valueOf(line.getPrice()));
+        }
+        // The price in effect is the one with the latest start date not after the period start.
+        PriceModelWS model = line.getItemId() != null ? prices.at(line.getItemId(),
+                periodStart.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli()) : null;
+        if (model == null) {
+            return line.getPrice() != null ? new BigDecimal(String.valueOf(line.getPrice())) : null;
+        }
+        return model.getRate() != null ? new BigDecimal(String.valueOf(model.getRate())) : null;
+    }
+
+    private static LocalDate next(LocalDate start, OrderPeriodWS period) {
+
+        int value = period.getValue() != null ? period.getValue() : 1;
+        Integer unit = period.getPeriodUnitId();
+        if (Constants.PERIOD_UNIT_DAY.equals(unit)) {
+            return start.plusDays(value);
+        }
+        if (Constants.PERIOD_UNIT_WEEK.equals(unit)) {
+            return start.plusWeeks(value);
+        }
+        if (Constants.PERIOD_UNIT_YEAR.equals(unit)) {
+            return start.plusYears(value);
+        }
+        return start.plusMonths(value);
+    }
+
+    private static LocalDate toLocalDate(Date date) {
+        return date != null ? date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate() : null;
+    }
+
+    /**
+     * One invoice line the run is expected to generate, for the period from start (inclusive) to end (exclusive).
+     */
+    public static final class EstimatedLine {
+
+        private final Integer orderId;
+        private final Integer itemId;
+        private final LocalDate periodStart;
+        private final LocalDate periodEnd;
+        private final BigDecimal quantity;
+        private final BigDecimal amount;
+
+        EstimatedLine(Integer orderId, Integer itemId, LocalDate periodStart, LocalDate periodEnd,
+                      BigDecimal quantity, BigDecimal amount) {
+            this.orderId = orderId;
+            this.itemId = itemId;
+            this.periodStart = periodStart;
+            this.periodEnd = periodEnd;
+            this.quantity = quantity;
+            this.amount = amount;
+        }
+
+        public Integer getOrderId() {
+            return orderId;
+        }
+
+        public Integer getItemId() {
+            return itemId;
+        }
+
+        public LocalDate getPeriodStart() {
+            return periodStart;
+        }
+
+        public LocalDate getPeriodEnd() {
+            return periodEnd;
+        }
+
+        public BigDecimal getQuantity() {
+            return quantity;
+        }
+
+        public BigDecimal getAmount() {
+            return amount;
+        }
+
+        @Override
+        public String toString() {
+            return "order " + orderId + ", item " + itemId + ", " + periodStart + " - " + periodEnd + ": "
+                    + quantity + " units, " + amount;
+        }
+    }
+
+    public static final class CustomerEstimate {
+
+        private final Integer userId;
+        private final List<EstimatedLine> lines = new ArrayList<>();
+        private BigDecimal total = BigDecimal.ZERO;
+
+        CustomerEstimate(Integer userId) {
+            this.userId = userId;
+        }
+
+        void add(EstimatedLine line) {
+            lines.add(line);
+            total = total.add(line.getAmount());
+        }
+
+        public Integer getUserId() {
+            return userId;
+        }
+
+        public List<EstimatedLine> getLines() {
+            return lines;
+        }
+
+        public BigDecimal getTotal() {
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            return "customer " + userId + ": " + lines.size() + " lines, total " + total;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.invoice.InvoiceWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Disk cache for invoice PDFs returned by {@code getPaperInvoicePDF()}.
+ *
+ * Entries are keyed by the invoice id and a fingerprint of the invoice, so a changed invoice gets a new PDF while
+ * an unchanged one is served from disk without a server call. The PDFs are kept in a content-addressed blob store:
+ * every PDF is stored once under its SHA-256 hash, however many keys point to it. Blobs are read through
+ * read-only memory mappings. The total size of the blobs is bounded, the least recently used blobs are evicted
+ * first.
+ *
+ * The index is kept in an append-only journal in the cache directory and replayed on startup, so the cache
+ * survives restarts. {@link #close()} compacts the journal.
+ */
+public class InvoicePdfCache implements AutoCloseable {
+
+    public static final String JOURNAL = "index.journal";
+
+    private final JbillingAPI api;
+    private final Path directory;
+    private final Path blobs;
+    private final long maxBytes;
+
+    // Cache key (invoice id and fingerprint) to blob hash, and the current key of every invoice.
+    private final Map<String, String> keys = new HashMap<>();
+    private final Map<Integer, String> invoiceKeys = new HashMap<>();
+    // Blob hash to blob size, in least recently used order, and the keys pointing to every blob.
+    private final LinkedHashMap<String, Long> blobSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> blobKeys = new HashMap<>();
+    private final Map<String, CompletableFuture<String>> loading = new ConcurrentHashMap<>();
+    private long totalBytes;
+    private Writer journal;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long dedupedBlobs;
+
+    public InvoicePdfCache(JbillingAPI api, Path directory, long maxBytes) throws IOException {
+
+        this.api = api;
+        this.directory = directory;
+        this.blobs = directory.resolve("blobs");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(blobs);
+        replayJournal();
+        compactJournal();
+    }
+
+    /**
+     * Fingerprint of the invoice fields that end up on the PDF. Finalised invoices keep their fingerprint.
+     */
+    public static String fingerprint(InvoiceWS invoice) {
+
+        return String.valueOf(invoice.getNumber()) + '|' + invoice.getStatusId() + '|'
+                + String.valueOf(invoice.getTotal()) + '|' + String.valueOf(invoice.getBalance()) + '|'
+                + String.valueOf(invoice.getDueDate()) + '|' + String.valueOf(invoice.getCreateDatetime());
+    }
+
+    public ByteBuffer getPdf(InvoiceWS invoice) throws IOException {
+        return getPdf(invoice.getId(), fingerprint(invoice));
+    }
+
+    /**
+     * Returns the PDF of the invoice as a read-only memory mapped buffer, fetching it from the server if it is not
+     * cached for this fingerprint. Concurrent requests for the same missing PDF share a single server call.
+     */
+    public ByteBuffer getPdf(Integer invoiceId, String fingerprint) throws IOException {
+
+        String key = invoiceId + ":" + fingerprint;
+        String hash;
+        synchronized (this) {
+            hash = keys.get(key);
+            if (hash != null) {
+                // Marks the blob as recently used.
+                blobSizes.get(hash);
+                hits++;
+            } else {
+                misses++;
+            }
+        }
+        if (hash == null) {
+            hash = load(invoiceId, key);
+        }
+        try (FileChannel channel = FileChannel.open(blobPath(hash), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).asReadOnlyBuffer();
+        } catch (NoSuchFileException e) {
+            // The blob was evicted or removed since it was looked up, fetch the PDF again.
+            synchronized (this) {
+                removeKey(key);
+            }
+            return getPdf(invoiceId, fingerprint);
+        }
+    }
+
+    public byte[] getPdfBytes(Integer invoiceId, String fingerprint) throws IOException {
+
+        ByteBuffer buffer = getPdf(invoiceId, fingerprint);
+        byte[] pdf = new byte[buffer.remaining()];
+        buffer.get(pdf);
+        return pdf;
+    }
+
+    private String load(Integer invoiceId, String key) throws IOException {
+
+        CompletableFuture<String> future = new CompletableFuture<>();
+        CompletableFuture<String> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            byte[] pdf = api.getPaperInvoicePDF(invoiceId);
+            String hash = store(pdf);
+            synchronized (this) {
+                String previousKey = invoiceKeys.put(invoiceId, key);
+                if (previousKey != null && !previousKey.equals(key)) {
+                    removeKey(previousKey);
+                }
+                putKey(key, hash, pdf.length);
+                journal.write("P " + key.length() + " " + key + " " + hash + " " + pdf.length + "\n");
+                journal.flush();
+                evict(hash);
+            }
+            future.complete(hash);
+            return hash;
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key);
+        }
+    }
+
+    // Writes the blob unless a blob with the same content is already stored.
+    private String store(byte[] pdf) throws IOException {
+
+        String hash = sha256(pdf);
+        Path blob = blobPath(hash);
+        synchronized (this) {
+            if (blobSizes.containsKey(hash) && Files.exists(blob)) {
+                dedupedBlobs++;
+                return hash;
+            }
+        }
+        Files.createDirectories(blob.getParent());
+        Path temp = Files.createTempFile(blob.getParent(), hash, ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(pdf);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, blob, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return hash;
+    }
+
+    private void putKey(String key, String hash, long size) {
+
+        String previous = keys.put(key, hash);
+        if (previous != null && !previous.equals(hash)) {
+            release(previous, key);
+        }
+        if (blobSizes.put(hash, size) == null) {
+            totalBytes += size;
+        }
+        blobKeys.computeIfAbsent(hash, blob -> new HashSet<>()).add(key);
+    }
+
+    private void removeKey(String key) throws IOException {
+
+        String hash = keys.remove(key);
+        if (hash != null) {
+            release(hash, key);
+            journal.write("R " + key.length() + " " + key + "\n");
+            journal.flush();
+        }
+    }
+
+    // Deletes the blob once no key points to it anymore.
+    private void release(String hash, String key) {
+
+        Set<String> remaining = blobKeys.get(hash);
+        if (remaining != null) {
+            remaining.remove(key);
+        }
+        if (remaining == null || remaining.isEmpty()) {
+            blobKeys.remove(hash);
+            Long size = blobSizes.remove(hash);
+            if (size != null) {
+                totalBytes -= size;
+            }
+            try {
+                Files.deleteIfExists(blobPath(hash));
+            } catch (IOException e) {
+                // Left behind, it is overwritten if the same content is stored again.
+            }
+        }
+    }
+
+    // Evicts the least recently used blobs until the cache fits, but never the blob that was just stored.
+    private void evict(String keep) throws IOException {
+
+        Iterator<Map.Entry<String, Long>> lru = blobSizes.entrySet().iterator();
+        while (totalBytes > maxBytes && lru.hasNext()) {
+            Map.Entry<String, Long> blob = lru.next();
+            String hash = blob.getKey();
+            if (hash.equals(keep)) {
+                break;
+            }
+            totalBytes -= blob.getValue();
+            lru.remove();
+            evictions++;
+            Set<String> evictedKeys = blobKeys.remove(hash);
+            if (evictedKeys != null) {
+                for (String key : evictedKeys) {
+                    keys.remove(key);
+                    journal.write("R " + key.length() + " " + key + "\n");
+                }
+            }
+            Files.deleteIfExists(blobPath(hash));
+        }
+        journal.flush();
+    }
+
+    private void replayJournal() throws IOException {
+
+        Path file = directory.resolve(JOURNAL);
+        if (!Files.exists(file)) {
+            return;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            // Keys are length prefixed, a line cut short by a crash is skipped.
+            try {
+                int space = line.indexOf(' ', 2);
+                int length = Integer.parseInt(line.substring(2, space));
+                String key = line.substring(space + 1, space + 1 + length);
+                if (line.startsWith("P ")) {
+                    String[] rest = line.substring(space + 2 + length).split(" ");
+                    if (rest.length == 2 && Files.exists(blobPath(rest[0]))) {
+                        putKey(key, rest[0], Long.parseLong(rest[1]));
+                        invoiceKeys.put(Integer.valueOf(key.substring(0, key.indexOf(':'))), key);
+                    }
+                } else if (line.startsWith("R ")) {
+                    String hash = keys.remove(key);
+                    if (hash != null) {
+                        release(hash, key);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // Incomplete line.
+            }
+        }
+    }
+
+    // Rewrites the journal with the live keys only, in least recently used order.
+    private synchronized void compactJournal() throws IOException {
+
+        if (journal != null) {
+            journal.close();
+        }
+        Map<String, StringBuilder> linesByHash = new HashMap<>();
+        for (Map.Entry<String, String> entry : keys.entrySet()) {
+            linesByHash.computeIfAbsent(entry.getValue(), hash -> new StringBuilder())
+                    .append("P ").append(entry.getKey().length()).append(' ').append(entry.getKey()).append(' ')
+                    .append(entry.getValue()).append(' ').append(blobSizes.get(entry.getValue())).append('\n');
+        }
+        Path temp = directory.resolve(JOURNAL + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (String hash : blobSizes.keySet()) {
+                StringBuilder lines = linesByHash.get(hash);
+                if (lines != null) {
+                    writer.write(lines.toString());
+                }
+            }
+        }
+        Path file = directory.resolve(JOURNAL);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private Path blobPath(String hash) {
+        return blobs.resolve(hash.substring(0, 2)).resolve(hash + ".pdf");
+    }
+
+    private static String sha256(byte[] data) {
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    private static String await(CompletableFuture<String> future) throws IOException {
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the invoice PDF", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "InvoicePdfCache{entries=" + keys.size() + ", blobs=" + blobSizes.size() + ", bytes=" + totalBytes
+                + ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", dedupedBlobs=" + dedupedBlobs + "}";
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        compactJournal();
+        synchronized (this) {
+            journal.close();
+        }
+    }
+}
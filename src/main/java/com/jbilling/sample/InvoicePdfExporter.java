@@ -0,0 +1,309 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the paper invoice PDFs of many invoices, for example the invoices generated by a billing process.
+ *
+ * PDFs are fetched with {@code getPaperInvoicePDF()} by a bounded number of threads and either written to one
+ * file per invoice through a {@link FileChannel}, or streamed into ZIP archives. The PDF bytes returned by the
+ * API are written as they are, without copying them into other buffers, and ZIP entries are stored rather than
+ * deflated because PDFs are already compressed.
+ *
+ * Exported invoice ids are appended to a manifest in the output directory. A rerun skips them, so after a
+ * failure only the missing invoices are fetched again. A rerun in ZIP mode writes a new archive part with the
+ * missing invoices.
+ *
+ * Usage: {@code InvoicePdfExporter fromDate toDate outputDir [parallelism] [zip]}, dates in yyyy-mm-dd format.
+ */
+public class InvoicePdfExporter implements AutoCloseable {
+
+    public static final String MANIFEST = "exported-invoices.txt";
+
+    private final JbillingAPI api;
+    private final Path outputDir;
+    private final int parallelism;
+    private final ExecutorService executor;
+    private final Set<Integer> exported = Collections.synchronizedSet(new HashSet<>());
+    private final FileChannel manifest;
+
+    public InvoicePdfExporter(JbillingAPI api, Path outputDir, int parallelism) throws IOException {
+
+        this.api = api;
+        this.outputDir = outputDir;
+        this.parallelism = parallelism;
+        Files.createDirectories(outputDir);
+        Path manifestFile = outputDir.resolve(MANIFEST);
+        if (Files.exists(manifestFile)) {
+            for (String line : Files.readAllLines(manifestFile, StandardCharsets.US_ASCII)) {
+                // A line cut short by a crash is ignored, its invoice is exported again.
+                if (line.endsWith(";")) {
+                    exported.add(Integer.valueOf(line.substring(0, line.length() - 1)));
+                }
+            }
+        }
+        this.manifest = FileChannel.open(manifestFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "pdf-exporter-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        JbillingAPI api = JbillingAPIFactory.getAPI();
+        Integer[] invoiceIds = api.getInvoicesByDate(args[0], args[1]);
+        Path outputDir = Paths.get(args.length > 2 ? args[2] : "target/invoices");
+        int parallelism = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+        boolean zip = args.length > 4 && "zip".equals(args[4]);
+
+        try (InvoicePdfExporter exporter = new InvoicePdfExporter(api, outputDir, parallelism)) {
+            Result result = zip ? exporter.exportToZip(invoiceIds) : exporter.exportToFiles(invoiceIds);
+            System.out.println(result);
+        }
+    }
+
+    /**
+     * Writes every PDF to {@code invoice-<id>.pdf} in the output directory. Repeated ids are exported once.
+     */
+    public Result exportToFiles(Integer[] invoiceIds) throws InterruptedException, IOException {
+
+        long start = System.nanoTime();
+        invoiceIds = distinct(invoiceIds);
+        AtomicLong bytes = new AtomicLong();
+        List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> tasks = new ArrayList<>();
+        int skipped = 0;
+        for (Integer invoiceId : invoiceIds) {
+            if (exported.contains(invoiceId)) {
+                skipped++;
+                continue;
+            }
+            tasks.add(executor.submit(() -> {
+                try {
+                    bytes.addAndGet(writeFile(invoiceId, api.getPaperInvoicePDF(invoiceId)));
+                    markExported(invoiceId);
+                } catch (Exception e) {
+                    failed.add(invoiceId);
+                }
+            }));
+        }
+        for (Future<?> task : tasks) {
+            await(task);
+        }
+        manifest.force(false);
+        return new Result(tasks.size() - failed.size(), skipped, failed, bytes.get(), System.nanoTime() - start);
+    }
+
+    // A repeated id would be written twice at the same time, or be a duplicate entry of the archive.
+    private static Integer[] distinct(Integer[] invoiceIds) {
+        return new LinkedHashSet<>(Arrays.asList(invoiceIds)).toArray(new Integer[0]);
+    }
+
+    private long writeFile(Integer invoiceId, byte[] pdf) throws IOException {
+
+        Path target = outputDir.resolve("invoice-" + invoiceId + ".pdf");
+        Path temp = outputDir.resolve("invoice-" + invoiceId + ".pdf.tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(pdf);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return pdf.length;
+    }
+
+    /**
+     * Streams the PDFs into a new {@code invoices-<part>.zip} archive in the output directory. The PDFs are
+     * fetched in parallel and written in the order of the ids by the calling thread. The invoices are recorded
+     * in the manifest once the archive is complete. Repeated ids are exported once.
+     */
+    public Result exportToZip(Integer[] invoiceIds) throws InterruptedException, IOException {
+
+        long start = System.nanoTime();
+        invoiceIds = distinct(invoiceIds);
+        Path zipFile = nextZipPart();
+        Path temp = zipFile.resolveSibling(zipFile.getFileName() + ".tmp");
+        List<Integer> written = new ArrayList<>();
+        List<Integer> failed = new ArrayList<>();
+        long bytes = 0;
+        int skipped = 0;
+
+        // At most two PDFs per thread are held in memory, one being fetched and one waiting to be written.
+        int window = parallelism * 2;
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(window);
+        ArrayDeque<Integer> inFlightIds = new ArrayDeque<>(window);
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+
+            zip.setMethod(ZipOutputStream.STORED);
+            int next = 0;
+            while (next < invoiceIds.length || !inFlight.isEmpty()) {
+                while (next < invoiceIds.length && inFlight.size() < window) {
+                    Integer invoiceId = invoiceIds[next++];
+                    if (exported.contains(invoiceId)) {
+                        skipped++;
+                        continue;
+                    }
+                    inFlight.add(executor.submit(() -> api.getPaperInvoicePDF(invoiceId)));
+                    inFlightIds.add(invoiceId);
+                }
+                if (inFlight.isEmpty()) {
+                    continue;
+                }
+                Integer invoiceId = inFlightIds.poll();
+                byte[] pdf;
+                try {
+                    pdf = await(inFlight.poll());
+                } catch (IOException e) {
+                    failed.add(invoiceId);
+                    continue;
+                }
+                // Stored entries need their size and checksum before the data.
+                ZipEntry entry = new ZipEntry("invoice-" + invoiceId + ".pdf");
+                crc.reset();
+                crc.update(pdf, 0, pdf.length);
+                entry.setSize(pdf.length);
+                entry.setCompressedSize(pdf.length);
+                entry.setCrc(crc.getValue());
+                zip.putNextEntry(entry);
+                zip.write(pdf);
+                zip.closeEntry();
+                written.add(invoiceId);
+                bytes += pdf.length;
+            }
+        }
+
+        if (written.isEmpty()) {
+            Files.delete(temp);
+        } else {
+            Files.move(temp, zipFile, StandardCopyOption.ATOMIC_MOVE);
+            for (Integer invoiceId : written) {
+                markExported(invoiceId);
+            }
+            manifest.force(false);
+        }
+        return new Result(written.size(), skipped, failed, bytes, System.nanoTime() - start);
+    }
+
+    private Path nextZipPart() {
+
+        int part = 1;
+        Path zipFile;
+        while (Files.exists(zipFile = outputDir.resolve(String.format("invoices-%03d.zip", part)))) {
+            part++;
+        }
+        return zipFile;
+    }
+
+    // Every line ends with a semicolon, so that a line cut short by a crash can be recognized.
+    private void markExported(Integer invoiceId) throws IOException {
+
+        ByteBuffer line = ByteBuffer.wrap((invoiceId + ";\n").getBytes(StandardCharsets.US_ASCII));
+        synchronized (manifest) {
+            while (line.hasRemaining()) {
+                manifest.write(line);
+            }
+        }
+        exported.add(invoiceId);
+    }
+
+    private static <T> T await(Future<T> future) throws InterruptedException, IOException {
+
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Fetching the invoice PDF failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+
+        executor.shutdownNow();
+        manifest.close();
+    }
+
+    public static final class Result {
+
+        private final int exported;
+        private final int skipped;
+        private final List<Integer> failed;
+        private final long bytes;
+        private final long elapsedNanos;
+
+        Result(int exported, int skipped, List<Integer> failed, long bytes, long elapsedNanos) {
+            this.exported = exported;
+            this.skipped = skipped;
+            this.failed = failed;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getExported() {
+            return exported;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public List<Integer> getFailed() {
+            return failed;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public double getPdfsPerSecond() {
+            return exported / (elapsedNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Exported %d invoice PDFs (%.1f MB) in %.1f s, %.1f PDFs/s, skipped %d, failed %d",
+                    exported, bytes / 1048576.0, elapsedNanos / 1e9, getPdfsPerSecond(), skipped, failed.size())
+                    + (failed.isEmpty() ? "" : ", run again to retry " + failed);
+        }
+    }
+}
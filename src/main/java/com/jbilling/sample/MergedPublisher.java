@@ -0,0 +1,247 @@
+package com.jbilling.sample;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Merges many publishers, for example the {@link PagedPublisher invoice publishers} of all the users of a
+ * statement run, into a single publisher.
+ *
+ * At most {@code maxConcurrency} sources are subscribed at a time and every source has at most
+ * {@code prefetch} elements requested that were not passed downstream yet, so the memory used by a merge is
+ * bounded by {@code maxConcurrency * prefetch} elements whatever the number of sources. The next source is
+ * subscribed when one completes. Elements of different sources are interleaved in arrival order. The first
+ * error cancels all sources.
+ *
+ * @param <T> type of the merged elements
+ */
+public class MergedPublisher<T> implements Publisher<T> {
+
+    private final Iterable<? extends Publisher<? extends T>> sources;
+    private final int maxConcurrency;
+    private final int prefetch;
+
+    public MergedPublisher(Iterable<? extends Publisher<? extends T>> sources, int maxConcurrency, int prefetch) {
+
+        if (maxConcurrency < 1 || prefetch < 1) {
+            throw new IllegalArgumentException("Concurrency and prefetch must be positive");
+        }
+        this.sources = sources;
+        this.maxConcurrency = maxConcurrency;
+        this.prefetch = prefetch;
+    }
+
+    public static <T> MergedPublisher<T> merge(Iterable<? extends Publisher<? extends T>> sources,
+                                               int maxConcurrency, int prefetch) {
+        return new MergedPublisher<>(sources, maxConcurrency, prefetch);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        MergeSubscription subscription = new MergeSubscription(subscriber, sources.iterator());
+        subscriber.onSubscribe(subscription);
+        subscription.drain();
+    }
+
+    private final class MergeSubscription implements Subscription {
+
+        private final Subscriber<? super T> downstream;
+        private final Iterator<? extends Publisher<? extends T>> remaining;
+        private final Queue<Signal> queue = new ConcurrentLinkedQueue<>();
+        private final List<Inner> active = new ArrayList<>();
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+        private volatile boolean cancelled;
+        private boolean done;
+
+        MergeSubscription(Subscriber<? super T> downstream, Iterator<? extends Publisher<? extends T>> remaining) {
+            this.downstream = downstream;
+            this.remaining = remaining;
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n <= 0) {
+                error.compareAndSet(null, new IllegalArgumentException("Requested " + n + " elements, must be positive"));
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+
+            cancelled = true;
+            drain();
+        }
+
+        // Only the thread that moves wip from zero runs the loop, all the others just record that it has to
+        // run again. Subscribing, replenishing and emitting therefore never run concurrently.
+        void drain() {
+
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!done) {
+                    drainLoop();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drainLoop() {
+
+            long demand = requested.get();
+            long emitted = 0;
+            while (true) {
+                if (cancelled || error.get() != null) {
+                    done = true;
+                    for (Inner inner : active) {
+                        inner.cancel();
+                    }
+                    active.clear();
+                    queue.clear();
+                    if (!cancelled) {
+                        downstream.onError(error.get());
+                    }
+                    return;
+                }
+
+                while (active.size() < maxConcurrency && remaining.hasNext()) {
+                    Inner inner = new Inner();
+                    active.add(inner);
+                    remaining.next().subscribe(inner);
+                }
+
+                boolean sourceCompleted = false;
+                boolean terminated = false;
+                Signal signal;
+                while ((signal = queue.peek()) != null) {
+                    if (signal.item == null) {
+                        // Completions do not need demand, the next source is subscribed on the next pass.
+                        queue.poll();
+                        active.remove(signal.inner);
+                        sourceCompleted = true;
+                        continue;
+                    }
+                    if (emitted == demand) {
+                        break;
+                    }
+                    queue.poll();
+                    downstream.onNext(signal.item);
+                    emitted++;
+                    signal.inner.consumed();
+                    if (cancelled || error.get() != null) {
+                        terminated = true;
+                        break;
+                    }
+                }
+                if (terminated) {
+                    continue;
+                }
+                if (active.isEmpty() && !remaining.hasNext() && queue.isEmpty()) {
+                    done = true;
+                    downstream.onComplete();
+                    return;
+                }
+                if (!sourceCompleted) {
+                    break;
+                }
+            }
+            if (emitted > 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+        }
+
+        private final class Signal {
+
+            final Inner inner;
+            final T item;
+
+            Signal(Inner inner, T item) {
+                this.inner = inner;
+                this.item = item;
+            }
+        }
+
+        private final class Inner implements Subscriber<T> {
+
+            private volatile Subscription subscription;
+            private boolean cancelRequested;
+            private int consumed;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+
+                this.subscription = subscription;
+                if (cancelRequested) {
+                    subscription.cancel();
+                } else {
+                    subscription.request(prefetch);
+                }
+            }
+
+            @Override
+            public void onNext(T item) {
+                queue.offer(new Signal(this, item));
+                drain();
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                error.compareAndSet(null, throwable);
+                drain();
+            }
+
+            @Override
+            public void onComplete() {
+                queue.offer(new Signal(this, null));
+                drain();
+            }
+
+            // Called from the drain loop for every element passed downstream, requests more once half of the
+            // prefetch is consumed.
+            void consumed() {
+
+                int limit = Math.max(1, prefetch / 2);
+                if (++consumed == limit) {
+                    consumed = 0;
+                    subscription.request(limit);
+                }
+            }
+
+            void cancel() {
+
+                cancelRequested = true;
+                Subscription current = subscription;
+                if (current != null) {
+                    current.cancel();
+                }
+            }
+        }
+    }
+}
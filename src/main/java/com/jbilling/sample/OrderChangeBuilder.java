@@ -0,0 +1,139 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds the order changes for a whole order hierarchy, for orders with hundreds of thousands of lines and thousands
+ * of child orders.
+ *
+ * The child orders are collected without recursion, so deep hierarchies can not overflow the stack, and orders and
+ * lines are tracked by identity, so the cost does not depend on the {@code equals()} and {@code hashCode()} of the
+ * DTOs. The changes are returned in the same order as before: the lines of the root order first, then the lines of
+ * every child order, where the children of an order are listed before the children of its children.
+ */
+public final class OrderChangeBuilder {
+
+    private OrderChangeBuilder() {
+    }
+
+    /**
+     * Builds one change per line of the hierarchy the order belongs to, linking the changes of new child lines to
+     * the changes of their new parent lines.
+     */
+    public static OrderChangeWS[] buildChanges(OrderWS order, Integer statusId) {
+
+        Date startDate = order.getActiveSince();
+        OrderWS rootOrder = findRoot(order);
+        OrderWS[] childOrders = findChildOrders(rootOrder);
+
+        int size = lines(rootOrder).length;
+        for (OrderWS childOrder : childOrders) {
+            size += lines(childOrder).length;
+        }
+        OrderChangeWS[] changes = new OrderChangeWS[size];
+        OrderLineWS[] changeLines = new OrderLineWS[size];
+        Map<OrderLineWS, OrderChangeWS> lineToChange = new IdentityHashMap<>(size);
+
+        // The lines of the root order are built with the order that was passed in, like the child orders are.
+        int index = 0;
+        for (OrderLineWS line : lines(rootOrder)) {
+            changeLines[index] = line;
+            changes[index] = Ch8PurchaseOrders.buildChangeFromLine(order, line, statusId, startDate);
+            lineToChange.put(line, changes[index++]);
+        }
+        for (OrderWS childOrder : childOrders) {
+            for (OrderLineWS line : lines(childOrder)) {
+                changeLines[index] = line;
+                changes[index] = Ch8PurchaseOrders.buildChangeFromLine(childOrder, line, statusId, startDate);
+                lineToChange.put(line, changes[index++]);
+            }
+        }
+
+        // Saved parent lines are referenced by id, new ones by their change.
+        for (int i = 0; i < size; i++) {
+            OrderLineWS parentLine = changeLines[i].getParentLine();
+            if (parentLine != null) {
+                if (parentLine.getId() > 0) {
+                    changes[i].setParentOrderLineId(parentLine.getId());
+                } else {
+                    changes[i].setParentOrderChange(lineToChange.get(parentLine));
+                }
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Finds the root order of the hierarchy, stopping if the parents loop back.
+     */
+    public static OrderWS findRoot(OrderWS order) {
+
+        Set<OrderWS> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        OrderWS rootOrder = order;
+        visited.add(rootOrder);
+        while (rootOrder.getParentOrder() != null && visited.add(rootOrder.getParentOrder())) {
+            rootOrder = rootOrder.getParentOrder();
+        }
+        return rootOrder;
+    }
+
+    /**
+     * Returns all the orders below the given one. The new children of an order are appended together before any of
+     * them is expanded, depth first, so each order appears once, in the order the hierarchy was always traversed.
+     */
+    public static OrderWS[] findChildOrders(OrderWS order) {
+
+        Set<OrderWS> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.add(order);
+        OrderWS[] orders = new OrderWS[16];
+        int size = 0;
+        // Each frame is the range of orders appended when its parent was expanded and the next one to expand.
+        int[] next = new int[16];
+        int[] end = new int[16];
+        int depth = 0;
+
+        OrderWS expanding = order;
+        while (true) {
+            if (expanding != null && expanding.getChildOrders() != null) {
+                int from = size;
+                for (OrderWS child : expanding.getChildOrders()) {
+                    if (child != null && visited.add(child)) {
+                        if (size == orders.length) {
+                            orders = Arrays.copyOf(orders, size * 2);
+                        }
+                        orders[size++] = child;
+                    }
+                }
+                if (size > from) {
+                    if (depth == next.length) {
+                        next = Arrays.copyOf(next, depth * 2);
+                        end = Arrays.copyOf(end, depth * 2);
+                    }
+                    next[depth] = from;
+                    end[depth++] = size;
+                }
+            }
+            while (depth > 0 && next[depth - 1] == end[depth - 1]) {
+                depth--;
+            }
+            if (depth == 0) {
+                break;
+            }
+            expanding = orders[next[depth - 1]++];
+        }
+        return Arrays.copyOf(orders, size);
+    }
+
+    private static OrderLineWS[] lines(OrderWS order) {
+        return order.getOrderLines() != null ? order.getOrderLines() : new OrderLineWS[0];
+    }
+}
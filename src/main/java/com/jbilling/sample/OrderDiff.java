@@ -0,0 +1,190 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.metafields.MetaFieldValueWS;
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Builds the order changes that turn one version of an order hierarchy into another, for {@code updateOrder()}.
+ *
+ * The lines of both versions, including the lines of all child orders, are matched by id. Lines without changes
+ * get no order change at all. A changed line gets one change carrying the quantity difference together with its
+ * current price, assets, description and meta fields. New lines are added with their full quantity, and lines that
+ * are deleted or missing from the new version, also when their whole child order is gone, are removed. On large
+ * orders where few lines change this keeps the request, and the work the server does to apply it, small.
+ *
+ * Changes are returned for the lines of the new version in hierarchy order, followed by the removals of lines that
+ * are missing from it.
+ */
+public final class OrderDiff {
+
+    private OrderDiff() {
+    }
+
+    public static OrderChangeWS[] diff(OrderWS before, OrderWS after, Integer statusId, Date startDate) {
+
+        Lines previous = new Lines(before);
+        Lines current = new Lines(after);
+        Map<Integer, Integer> previousIndex = new HashMap<>(previous.size * 2);
+        for (int i = 0; i < previous.size; i++) {
+            Integer id = previous.lines[i].getId();
+            if (id != null && id > 0 && previous.lines[i].getDeleted() == 0) {
+                previousIndex.put(id, i);
+            }
+        }
+        boolean[] matched = new boolean[previous.size];
+
+        List<OrderChangeWS> changes = new ArrayList<>();
+        Map<OrderLineWS, OrderChangeWS> newLineChanges = new IdentityHashMap<>();
+        List<OrderLineWS> newLines = new ArrayList<>();
+        for (int i = 0; i < current.size; i++) {
+            OrderLineWS line = current.lines[i];
+            OrderWS order = current.orders[i];
+            Integer id = line.getId();
+            if (id == null || id <= 0) {
+                // A new line, unless it was deleted before it was ever saved.
+                if (line.getDeleted() == 0) {
+                    OrderChangeWS change = Ch8PurchaseOrders.buildChangeFromLine(order, line, statusId, startDate);
+                    changes.add(change);
+                    newLineChanges.put(line, change);
+                    newLines.add(line);
+                }
+                continue;
+            }
+            Integer index = previousIndex.get(id);
+            if (index != null) {
+                matched[index] = true;
+            }
+            if (line.getDeleted() != 0) {
+                if (index != null) {
+                    // The line is removed with the quantity it had, the deleted line may carry another one.
+                    OrderChangeWS removal = Ch8PurchaseOrders.buildChangeFromLine(order, line, statusId, startDate);
+                    removal.setQuantity(decimal(previous.lines[index].getQuantity()).negate());
+                    changes.add(removal);
+                }
+                continue;
+            }
+            OrderLineWS previousLine = index != null ? previous.lines[index] : null;
+            if (previousLine != null && !changed(previousLine, line)) {
+                continue;
+            }
+            OrderChangeWS change = Ch8PurchaseOrders.buildChangeFromLine(order, line, statusId, startDate);
+            if (previousLine != null) {
+                // Quantities of order changes are added to the quantity of the line.
+                change.setQuantity(decimal(line.getQuantity()).subtract(decimal(previousLine.getQuantity())));
+            }
+            changes.add(change);
+        }
+
+        // New lines under other new lines are linked by their changes, saved parents are linked by id already.
+        for (OrderLineWS line : newLines) {
+            OrderLineWS parentLine = line.getParentLine();
+            if (parentLine != null && (parentLine.getId() == null || parentLine.getId() <= 0)) {
+                newLineChanges.get(line).setParentOrderChange(newLineChanges.get(parentLine));
+            }
+        }
+
+        for (int i = 0; i < previous.size; i++) {
+            OrderLineWS line = previous.lines[i];
+            if (!matched[i] && previousIndex.containsKey(line.getId())) {
+                OrderChangeWS removal = Ch8PurchaseOrders.buildChangeFromLine(previous.orders[i], line, statusId,
+                        startDate);
+                removal.setQuantity(decimal(line.getQuantity()).negate());
+                removal.setRemoval(1);
+                changes.add(removal);
+            }
+        }
+        return changes.toArray(new OrderChangeWS[changes.size()]);
+    }
+
+    private static boolean changed(OrderLineWS before, OrderLineWS after) {
+
+        return decimal(before.getQuantity()).compareTo(decimal(after.getQuantity())) != 0
+                || decimal(before.getPrice()).compareTo(decimal(after.getPrice())) != 0
+                || !Objects.equals(before.getItemId(), after.getItemId())
+                || !Objects.equals(before.getDescription(), after.getDescription())
+                || !sameAssets(before.getAssetIds(), after.getAssetIds())
+                || !sameMetaFields(before.getMetaFields(), after.getMetaFields());
+    }
+
+    private static BigDecimal decimal(Object value) {
+        return value != null ? new BigDecimal(String.valueOf(value)) : BigDecimal.ZERO;
+    }
+
+    // Assets are compared as sets, the order they are listed in does not matter.
+    private static boolean sameAssets(Integer[] before, Integer[] after) {
+
+        Integer[] sortedBefore = before != null ? before.clone() : new Integer[0];
+        Integer[] sortedAfter = after != null ? after.clone() : new Integer[0];
+        if (sortedBefore.length != sortedAfter.length) {
+            return false;
+        }
+        Arrays.sort(sortedBefore);
+        Arrays.sort(sortedAfter);
+        return Arrays.equals(sortedBefore, sortedAfter);
+    }
+
+    private static boolean sameMetaFields(MetaFieldValueWS[] before, MetaFieldValueWS[] after) {
+
+        Map<String, Object> values = new HashMap<>();
+        if (before != null) {
+            for (MetaFieldValueWS value : before) {
+                values.put(value.getFieldName(), value.getValue());
+            }
+        }
+        int count = 0;
+        if (after != null) {
+            for (MetaFieldValueWS value : after) {
+                if (!values.containsKey(value.getFieldName())
+                        || !Objects.deepEquals(values.get(value.getFieldName()), value.getValue())) {
+                    return false;
+                }
+                count++;
+            }
+        }
+        return count == values.size();
+    }
+
+    // The lines of an order hierarchy with the order of every line, root order first.
+    private static final class Lines {
+
+        private OrderLineWS[] lines = new OrderLineWS[16];
+        private OrderWS[] orders = new OrderWS[16];
+        private int size;
+
+        Lines(OrderWS order) {
+
+            OrderWS root = OrderChangeBuilder.findRoot(order);
+            add(root);
+            for (OrderWS childOrder : OrderChangeBuilder.findChildOrders(root)) {
+                add(childOrder);
+            }
+        }
+
+        private void add(OrderWS order) {
+
+            if (order.getOrderLines() == null) {
+                return;
+            }
+            for (OrderLineWS line : order.getOrderLines()) {
+                if (size == lines.length) {
+                    lines = Arrays.copyOf(lines, size * 2);
+                    orders = Arrays.copyOf(orders, size * 2);
+                }
+                lines[size] = line;
+                orders[size++] = order;
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.invoice.InvoiceWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Reactive Streams publisher over a paged API call such as {@code getUserInvoicesPage()} or
+ * {@code getLastPaymentsPage()}.
+ *
+ * Pages are only fetched when the subscriber has outstanding demand, and at most one page is held per
+ * subscription, so a slow subscriber slows down the paging instead of filling up memory. Pages are fetched and
+ * emitted on the publisher's executor. Every subscriber pages through the results from the first page.
+ *
+ * @param <T> type of the paged elements
+ */
+public class PagedPublisher<T> implements Publisher<T> {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+    private static final ExecutorService PAGING = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "paged-publisher-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Fetches one page. A page shorter than the limit is the last one.
+     */
+    public interface PageFetcher<T> {
+        T[] fetch(Integer limit, Integer offset) throws Exception;
+    }
+
+    private final PageFetcher<T> fetcher;
+    private final int pageSize;
+    private final Executor executor;
+
+    public PagedPublisher(PageFetcher<T> fetcher, int pageSize) {
+        this(fetcher, pageSize, PAGING);
+    }
+
+    public PagedPublisher(PageFetcher<T> fetcher, int pageSize, Executor executor) {
+        this.fetcher = fetcher;
+        this.pageSize = pageSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Invoices of a user, newest first, paged with {@code getUserInvoicesPage()}.
+     */
+    public static PagedPublisher<InvoiceWS> invoices(JbillingAPI api, Integer userId, int pageSize) {
+        return new PagedPublisher<>((limit, offset) -> api.getUserInvoicesPage(userId, limit, offset), pageSize);
+    }
+
+    /**
+     * Ids of the payments of a user, newest first, paged with {@code getLastPaymentsPage()}.
+     */
+    public static PagedPublisher<Integer> paymentIds(JbillingAPI api, Integer userId, int pageSize) {
+        return new PagedPublisher<>((limit, offset) -> api.getLastPaymentsPage(userId, limit, offset), pageSize);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        PageSubscription subscription = new PageSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * Consumes a publisher on the calling thread, requesting {@code batch} elements at a time, and returns when
+     * the publisher completes. An error of the publisher is rethrown.
+     */
+    public static <T> void forEach(Publisher<T> publisher, int batch, Consumer<? super T> consumer)
+            throws InterruptedException {
+
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        publisher.subscribe(new Subscriber<T>() {
+
+            private Subscription subscription;
+            private int received;
+
+            @Override
+            public void onSubscribe(Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(batch);
+            }
+
+            @Override
+            public void onNext(T item) {
+
+                try {
+                    consumer.accept(item);
+                } catch (RuntimeException e) {
+                    subscription.cancel();
+                    onError(e);
+                    return;
+                }
+                if (++received == batch) {
+                    received = 0;
+                    subscription.request(batch);
+                }
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                failure.compareAndSet(null, error);
+                done.countDown();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        done.await();
+        Throwable error = failure.get();
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        }
+        if (error != null) {
+            throw new IllegalStateException("Publisher failed", error);
+        }
+    }
+
+    private final class PageSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        // Number of pending drain requests, only the thread that moves it from zero runs the drain loop.
+        private final AtomicInteger wip = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        // Error of an invalid request, signalled by the drain loop so it never overlaps with onNext.
+        private final AtomicReference<Throwable> requestError = new AtomicReference<>();
+
+        private T[] page;
+        private int position;
+        private int offset;
+        private boolean lastPage;
+
+        PageSubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+
+            if (n <= 0) {
+                if (requestError.compareAndSet(null,
+                        new IllegalArgumentException("Requested " + n + " elements, must be positive"))) {
+                    schedule();
+                }
+                return;
+            }
+            long current;
+            long next;
+            do {
+                current = requested.get();
+                next = current + n < 0 ? Long.MAX_VALUE : current + n;
+            } while (!requested.compareAndSet(current, next));
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled.set(true);
+        }
+
+        private void schedule() {
+
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+
+            int missed = 1;
+            do {
+                if (!drain()) {
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        // Emits while there is demand, fetching the next page when the current one is used up.
+        // Returns false once the subscription is terminated.
+        private boolean drain() {
+
+            long emitted = 0;
+            long demand = requested.get();
+            while (!cancelled.get()) {
+                Throwable error = requestError.get();
+                if (error != null) {
+                    cancelled.set(true);
+                    subscriber.onError(error);
+                    return false;
+                }
+                if (page == null || position == page.length) {
+                    if (lastPage) {
+                        cancelled.set(true);
+                        subscriber.onComplete();
+                        return false;
+                    }
+                    if (emitted == demand) {
+                        break;
+                    }
+                    try {
+                        page = fetcher.fetch(pageSize, offset);
+                    } catch (Throwable e) {
+                        cancelled.set(true);
+                        subscriber.onError(e);
+                        return false;
+                    }
+                    if (page == null) {
+                        lastPage = true;
+                        continue;
+                    }
+                    position = 0;
+                    offset += page.length;
+                    lastPage = page.length < pageSize;
+                    continue;
+                }
+                if (emitted == demand) {
+                    break;
+                }
+                T item = page[position];
+                page[position++] = null;
+                if (item != null) {
+                    subscriber.onNext(item);
+                    emitted++;
+                }
+            }
+            if (cancelled.get()) {
+                page = null;
+                return false;
+            }
+            if (emitted > 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.jbilling.sample;
+
+import com.caucho.hessian.client.HessianConnection;
+import com.caucho.hessian.client.HessianConnectionFactory;
+import com.caucho.hessian.client.HessianProxyFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hessian connection factory backed by a pooled Apache HttpClient.
+ *
+ * The default factory used by the Hessian proxy opens a new {@link java.net.HttpURLConnection} per call, which
+ * gives no control over pool sizing or idle eviction. This factory keeps persistent connections to the jBilling
+ * server and can be plugged into the {@code apiClient} bean through its {@code connectionFactory} property,
+ * see resources/jbilling-remote-beans.xml.
+ */
+public class PooledHessianConnectionFactory implements HessianConnectionFactory {
+
+    private static final ContentType HESSIAN_CONTENT_TYPE = ContentType.create("x-application/hessian");
+
+    private int maxConnections = 50;
+    private int maxConnectionsPerRoute = 50;
+    private int connectTimeout = 5000;
+    private int readTimeout = 60000;
+    private int connectionRequestTimeout = 5000;
+    private long keepAlive = 30000;
+    private long maxIdleTime = 30000;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+    private volatile CloseableHttpClient httpClient;
+
+    public void setHessianProxyFactory(HessianProxyFactory factory) {
+
+        // Timeouts are configured on this factory, the proxy factory settings are not used.
+    }
+
+    public HessianConnection open(URL url) throws IOException {
+
+        HttpPost post = new HttpPost(url.toString());
+        return new PooledHessianConnection(getHttpClient(), post);
+    }
+
+    private CloseableHttpClient getHttpClient() {
+
+        CloseableHttpClient client = httpClient;
+        if (client == null) {
+            synchronized (this) {
+                client = httpClient;
+                if (client == null) {
+                    client = buildHttpClient();
+                    httpClient = client;
+                }
+            }
+        }
+        return client;
+    }
+
+    private CloseableHttpClient buildHttpClient() {
+
+        // The connection manager keeps a bounded pool of persistent connections per server (route).
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(
+                keepAlive, TimeUnit.MILLISECONDS);
+        manager.setMaxTotal(maxConnections);
+        manager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        // Re-validate connections that were idle for a while before they are handed out again.
+        manager.setValidateAfterInactivity(2000);
+        connectionManager = manager;
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(manager)
+                .setDefaultRequestConfig(requestConfig)
+                // Server keep-alive headers are honoured, otherwise connections are kept for the configured time.
+                .setKeepAliveStrategy((response, context) -> {
+                    long serverKeepAlive = keepAliveFromHeader(response);
+                    return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAlive) : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(maxIdleTime, TimeUnit.MILLISECONDS)
+                .disableCookieManagement()
+                .build();
+    }
+
+    private static long keepAliveFromHeader(HttpResponse response) {
+
+        if (response.getFirstHeader("Keep-Alive") == null) {
+            return -1;
+        }
+        for (String element : response.getFirstHeader("Keep-Alive").getValue().split(",")) {
+            String[] pair = element.trim().split("=");
+            if (pair.length == 2 && "timeout".equalsIgnoreCase(pair[0].trim())) {
+                try {
+                    return Long.parseLong(pair[1].trim()) * 1000;
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Releases all pooled connections. Used as the destroy method of the Spring bean.
+     */
+    public void shutdown() throws IOException {
+
+        CloseableHttpClient client = httpClient;
+        if (client != null) {
+            client.close();
+            httpClient = null;
+            connectionManager = null;
+        }
+    }
+
+    /**
+     * Snapshot of the connection pool: leased, available, pending and maximum connections.
+     */
+    public PoolStats getPoolStats() {
+
+        PoolingHttpClientConnectionManager manager = connectionManager;
+        return manager != null ? manager.getTotalStats() : new PoolStats(0, 0, 0, maxConnections);
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getFailureCount() {
+        return failures.get();
+    }
+
+    @Override
+    public String toString() {
+
+        PoolStats stats = getPoolStats();
+        return "PooledHessianConnectionFactory{requests=" + requests.get() + ", failures=" + failures.get()
+                + ", leased=" + stats.getLeased() + ", available=" + stats.getAvailable()
+                + ", pending=" + stats.getPending() + ", max=" + stats.getMax() + "}";
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public void setKeepAlive(long keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * A single Hessian call. The request body is buffered and sent on {@link #sendRequest()}, the response
+     * entity is consumed when its input stream or the connection is closed, so that the underlying connection goes
+     * back to the pool. Only errors, such as I/O failures and other statuses than 200, count as failures.
+     */
+    private class PooledHessianConnection implements HessianConnection {
+
+        private final CloseableHttpClient client;
+        private final HttpPost post;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream(256);
+        private CloseableHttpResponse response;
+        private boolean failed;
+
+        PooledHessianConnection(CloseableHttpClient client, HttpPost post) {
+            this.client = client;
+            this.post = post;
+        }
+
+        public void addHeader(String key, String value) {
+            post.addHeader(key, value);
+        }
+
+        public OutputStream getOutputStream() {
+            return body;
+        }
+
+        public void sendRequest() throws IOException {
+
+            requests.incrementAndGet();
+            post.setEntity(new ByteArrayEntity(body.toByteArray(), HESSIAN_CONTENT_TYPE));
+            try {
+                response = client.execute(post);
+            } catch (IOException e) {
+                fail();
+                throw e;
+            }
+            if (response.getStatusLine().getStatusCode() != 200) {
+                fail();
+            }
+        }
+
+        // Counts the call as failed once, whichever step failed first.
+        private void fail() {
+
+            if (!failed) {
+                failed = true;
+                failures.incrementAndGet();
+            }
+        }
+
+        public int getStatusCode() {
+            return response != null ? response.getStatusLine().getStatusCode() : -1;
+        }
+
+        public String getStatusMessage() {
+            return response != null ? response.getStatusLine().getReasonPhrase() : null;
+        }
+
+        public InputStream getInputStream() throws IOException {
+
+            if (response == null || response.getEntity() == null) {
+                fail();
+                throw new IOException("No response entity for " + post.getURI());
+            }
+            // A response cut off while it is read counts as a failure.
+            return new FilterInputStream(response.getEntity().getContent()) {
+
+                @Override
+                public int read() throws IOException {
+                    try {
+                        return super.read();
+                    } catch (IOException e) {
+                        fail();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    try {
+                        return super.read(buffer, offset, length);
+                    } catch (IOException e) {
+                        fail();
+                        throw e;
+                    }
+                }
+            };
+        }
+
+        public void close() throws IOException {
+
+            // Consuming the rest of the entity releases the connection back to the pool.
+            if (response != null) {
+                try {
+                    EntityUtils.consume(response.getEntity());
+                } finally {
+                    response.close();
+                    response = null;
+                }
+            }
+        }
+
+        public void destroy() throws IOException {
+
+            // Hessian calls destroy() after every call. After a complete call the closed input stream has already
+            // released the connection to the pool and the abort does nothing, otherwise the connection is dropped.
+            post.abort();
+            if (response != null) {
+                response.close();
+                response = null;
+            }
+        }
+    }
+}
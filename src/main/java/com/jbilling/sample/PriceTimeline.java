@@ -0,0 +1,271 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Effective-dated prices of a whole catalogue, indexed by item id, as a compact replacement for one
+ * {@code SortedMap<Date, PriceModelWS>} per item.
+ *
+ * All the prices live in parallel arrays sorted by key and start time: the start times as epoch milliseconds in a
+ * {@code long[]} and the models in an array of references, with the distinct keys and the offset of their first
+ * price in two {@code int[]}s. A price takes twelve bytes plus eight for every key, instead of a tree map entry with
+ * its {@link Date} and a tree map per item. Finding the price of an item at a date is two binary searches that
+ * create no objects. The timeline is immutable and can be shared between threads. It is built in bulk with a
+ * {@link Builder}.
+ *
+ * The price in effect at a time is the one with the latest start not after it, times before the first start use the
+ * first price, like {@link InvoiceEstimator} and {@link RatingEngine}. The models can be {@link PriceModelWS}es or
+ * anything derived from them, such as compiled {@link RatingEngine.Rate}s. Keys are usually item ids, for plan
+ * items ({@code PlanItemWS.getModels()}) they can be the plan item ids.
+ */
+public final class PriceTimeline<T> {
+
+    private final int[] keys;
+    private final int[] offsets;
+    private final long[] starts;
+    private final Object[] models;
+
+    private PriceTimeline(int[] keys, int[] offsets, long[] starts, Object[] models) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.starts = starts;
+        this.models = models;
+    }
+
+    public static <T> Builder<T> builder(int expectedPrices) {
+        return new Builder<>(expectedPrices);
+    }
+
+    /**
+     * Timeline of the default prices of the items.
+     */
+    public static PriceTimeline<PriceModelWS> ofItems(Iterable<ItemDTOEx> items) {
+
+        Builder<PriceModelWS> builder = builder(1024);
+        for (ItemDTOEx item : items) {
+            if (item.getId() != null && item.getDefaultPrices() != null) {
+                builder.addAll(item.getId(), item.getDefaultPrices());
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Model in effect for a key at a time, or null if the key has no prices.
+     */
+    @SuppressWarnings("unchecked")
+    public T at(int key, long time) {
+
+        int index = Arrays.binarySearch(keys, key);
+        if (index < 0) {
+            return null;
+        }
+        int low = offsets[index];
+        int high = offsets[index + 1] - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= time) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return (T) models[low];
+    }
+
+    public T at(int key, Date date) {
+        return at(key, date.getTime());
+    }
+
+    public boolean contains(int key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+
+    /**
+     * Number of keys with prices.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * Number of prices of all keys.
+     */
+    public int priceCount() {
+        return starts.length;
+    }
+
+    /**
+     * The prices of a key as a new sorted map, as the API expects them, or an empty map if the key has no prices.
+     */
+    @SuppressWarnings("unchecked")
+    public SortedMap<Date, T> toSortedMap(int key) {
+
+        SortedMap<Date, T> prices = new TreeMap<>();
+        int index = Arrays.binarySearch(keys, key);
+        if (index >= 0) {
+            for (int i = offsets[index]; i < offsets[index + 1]; i++) {
+                prices.put(new Date(starts[i]), (T) models[i]);
+            }
+        }
+        return prices;
+    }
+
+    /**
+     * Collects prices in any order. When a key has two prices with the same start, the one added last is kept, like
+     * {@link SortedMap#put(Object, Object)}.
+     */
+    public static final class Builder<T> {
+
+        private int[] keys;
+        private long[] starts;
+        private Object[] models;
+        private int size;
+        private boolean sorted = true;
+
+        private Builder(int expectedPrices) {
+
+            int capacity = Math.max(expectedPrices, 16);
+            keys = new int[capacity];
+            starts = new long[capacity];
+            models = new Object[capacity];
+        }
+
+        public Builder<T> add(int key, long start, T model) {
+
+            if (model == null) {
+                throw new IllegalArgumentException("No model for key " + key);
+            }
+            if (size == keys.length) {
+                int capacity = size * 2;
+                keys = Arrays.copyOf(keys, capacity);
+                starts = Arrays.copyOf(starts, capacity);
+                models = Arrays.copyOf(models, capacity);
+            }
+            if (size > 0 && (key < keys[size - 1] || key == keys[size - 1] && start < starts[size - 1])) {
+                sorted = false;
+            }
+            keys[size] = key;
+            starts[size] = start;
+            models[size++] = model;
+            return this;
+        }
+
+        public Builder<T> add(int key, Date start, T model) {
+            return add(key, start.getTime(), model);
+        }
+
+        public Builder<T> addAll(int key, SortedMap<Date, ? extends T> prices) {
+
+            for (Map.Entry<Date, ? extends T> price : prices.entrySet()) {
+                add(key, price.getKey().getTime(), price.getValue());
+            }
+            return this;
+        }
+
+        public PriceTimeline<T> build() {
+
+            if (!sorted) {
+                sort();
+            }
+            // Drops all but the last of the prices with the same key and start, and records where every key starts.
+            int count = 0;
+            int distinctKeys = 0;
+            int[] keyOffsets = new int[16];
+            int[] distinct = new int[16];
+            for (int i = 0; i < size; i++) {
+                if (i + 1 < size && keys[i + 1] == keys[i] && starts[i + 1] == starts[i]) {
+                    continue;
+                }
+                if (distinctKeys == 0 || distinct[distinctKeys - 1] != keys[i]) {
+                    if (distinctKeys + 1 == distinct.length) {
+                        distinct = Arrays.copyOf(distinct, distinct.length * 2);
+                        keyOffsets = Arrays.copyOf(keyOffsets, keyOffsets.length * 2);
+                    }
+                    distinct[distinctKeys] = keys[i];
+                    keyOffsets[distinctKeys++] = count;
+                }
+                starts[count] = starts[i];
+                models[count++] = models[i];
+            }
+            keyOffsets[distinctKeys] = count;
+            PriceTimeline<T> timeline = new PriceTimeline<>(Arrays.copyOf(distinct, distinctKeys),
+                    Arrays.copyOf(keyOffsets, distinctKeys + 1), Arrays.copyOf(starts, count),
+                    Arrays.copyOf(models, count));
+            // The builder is used up, its arrays were compacted in place.
+            size = 0;
+            sorted = true;
+            return timeline;
+        }
+
+        // Sorts by key, with the positions in the low bits keeping prices of a key in the order they were added,
+        // then sorts the prices of every key by start time.
+        private void sort() {
+
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = (long) keys[i] << 32 | i;
+            }
+            Arrays.sort(order);
+            int[] sortedKeys = new int[size];
+            long[] sortedStarts = new long[size];
+            Object[] sortedModels = new Object[size];
+            for (int i = 0; i < size; i++) {
+                int from = (int) order[i];
+                sortedKeys[i] = keys[from];
+                sortedStarts[i] = starts[from];
+                sortedModels[i] = models[from];
+            }
+            for (int groupStart = 0, i = 1; i <= size; i++) {
+                if (i == size || sortedKeys[i] != sortedKeys[groupStart]) {
+                    sortByStart(sortedStarts, sortedModels, groupStart, i);
+                    groupStart = i;
+                }
+            }
+            keys = sortedKeys;
+            starts = sortedStarts;
+            models = sortedModels;
+        }
+
+        // Stable, so prices with the same start stay in the order they were added. Keys usually have a handful of
+        // prices, only keys with many prices are sorted through an index.
+        private static void sortByStart(long[] starts, Object[] models, int from, int to) {
+
+            if (to - from > 64) {
+                Integer[] index = new Integer[to - from];
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = from + i;
+                }
+                Arrays.sort(index, (a, b) -> Long.compare(starts[a], starts[b]));
+                long[] groupStarts = new long[index.length];
+                Object[] groupModels = new Object[index.length];
+                for (int i = 0; i < index.length; i++) {
+                    groupStarts[i] = starts[index[i]];
+                    groupModels[i] = models[index[i]];
+                }
+                System.arraycopy(groupStarts, 0, starts, from, index.length);
+                System.arraycopy(groupModels, 0, models, from, index.length);
+                return;
+            }
+            for (int i = from + 1; i < to; i++) {
+                long start = starts[i];
+                Object model = models[i];
+                int j = i - 1;
+                while (j >= from && starts[j] > start) {
+                    starts[j + 1] = starts[j];
+                    models[j + 1] = models[j];
+                    j--;
+                }
+                starts[j + 1] = start;
+                models[j + 1] = model;
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.util.Constants;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Prorates the amounts of large batches of order lines on the client, for quotes and reconciliation.
+ *
+ * A line is billed for one period of {@code value} months or days starting on its period start. When the line is
+ * active for only part of the period, its amount is multiplied by the number of active days over the number of days
+ * in the period, rounded half up, which is how the billing process prorates with {@code PRORATING_AUTO_ON}.
+ *
+ * A {@link Batch} keeps the lines in parallel primitive arrays: dates as epoch days and amounts as {@code long}s
+ * scaled to {@link #SCALE} decimals. Month arithmetic works directly on epoch days, so no date or {@link BigDecimal}
+ * objects are created per line. Amounts too large for exact {@code long} arithmetic fall back to {@link BigDecimal}.
+ * {@link #prorateReference(Batch)} computes the same results with {@link LocalDate} and {@link BigDecimal} and is
+ * used to check the fast path.
+ */
+public final class ProrationCalculator {
+
+    public static final int SCALE = 4;
+    public static final int NO_END = Integer.MAX_VALUE;
+
+    private static final byte UNIT_DAY = 0;
+    private static final byte UNIT_MONTH = 1;
+    // Amounts below this bound can be multiplied by any day count of a period without overflowing.
+    private static final long FAST_PATH_LIMIT = 1L << 40;
+    private static final int PARALLEL_CHUNK = 1 << 14;
+
+    private ProrationCalculator() {
+    }
+
+    /**
+     * Order lines to prorate, in parallel arrays indexed by line.
+     */
+    public static final class Batch {
+
+        private int size;
+        int[] periodStart;
+        int[] activeSince;
+        int[] activeUntil;
+        byte[] unit;
+        int[] value;
+        long[] amount;
+        long[] prorated;
+
+        public Batch(int capacity) {
+
+            capacity = Math.max(capacity, 16);
+            periodStart = new int[capacity];
+            activeSince = new int[capacity];
+            activeUntil = new int[capacity];
+            unit = new byte[capacity];
+            value = new int[capacity];
+            amount = new long[capacity];
+            prorated = new long[capacity];
+        }
+
+        /**
+         * Adds a line. Dates are epoch days, {@code activeUntil} is the last active day or {@link #NO_END}.
+         *
+         * @param periodUnitId {@code Constants.PERIOD_UNIT_MONTH} or {@code Constants.PERIOD_UNIT_DAY}
+         * @param scaledAmount amount of a whole period, scaled to {@link #SCALE} decimals
+         * @return the index of the line
+         */
+        public int add(int periodStart, int activeSince, int activeUntil, Integer periodUnitId, int periodValue,
+                       long scaledAmount) {
+
+            if (periodValue < 1) {
+                throw new IllegalArgumentException("Period value must be positive: " + periodValue);
+            }
+            byte periodUnit;
+            if (Constants.PERIOD_UNIT_MONTH.equals(periodUnitId)) {
+                periodUnit = UNIT_MONTH;
+            } else if (Constants.PERIOD_UNIT_DAY.equals(periodUnitId)) {
+                periodUnit = UNIT_DAY;
+            } else {
+                throw new IllegalArgumentException("Only monthly and daily periods are supported: " + periodUnitId);
+            }
+            if (size == this.periodStart.length) {
+                grow();
+            }
+            int index = size++;
+            this.periodStart[index] = periodStart;
+            this.activeSince[index] = activeSince;
+            this.activeUntil[index] = activeUntil;
+            this.unit[index] = periodUnit;
+            this.value[index] = periodValue;
+            this.amount[index] = scaledAmount;
+            return index;
+        }
+
+        public int add(LocalDate periodStart, LocalDate activeSince, LocalDate activeUntil, Integer periodUnitId,
+                       int periodValue, BigDecimal amount) {
+            return add((int) periodStart.toEpochDay(), (int) activeSince.toEpochDay(),
+                    activeUntil != null ? (int) activeUntil.toEpochDay() : NO_END, periodUnitId, periodValue,
+                    toScaled(amount));
+        }
+
+        private void grow() {
+
+            int capacity = periodStart.length * 2;
+            periodStart = Arrays.copyOf(periodStart, capacity);
+            activeSince = Arrays.copyOf(activeSince, capacity);
+            activeUntil = Arrays.copyOf(activeUntil, capacity);
+            unit = Arrays.copyOf(unit, capacity);
+            value = Arrays.copyOf(value, capacity);
+            amount = Arrays.copyOf(amount, capacity);
+            prorated = Arrays.copyOf(prorated, capacity);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * Prorated amount of a line, scaled to {@link #SCALE} decimals, once the batch is prorated.
+         */
+        public long getProrated(int index) {
+            return prorated[index];
+        }
+
+        public BigDecimal getProratedAmount(int index) {
+            return BigDecimal.valueOf(prorated[index], SCALE);
+        }
+    }
+
+    public static long toScaled(BigDecimal amount) {
+        return amount.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Prorates all the lines of the batch on the calling thread.
+     */
+    public static void prorate(Batch batch) {
+        prorate(batch, 0, batch.size);
+    }
+
+    /**
+     * Prorates the batch in chunks on the common fork/join pool.
+     */
+    public static void prorateParallel(Batch batch) {
+
+        int chunks = (batch.size + PARALLEL_CHUNK - 1) / PARALLEL_CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(chunk ->
+                prorate(batch, chunk * PARALLEL_CHUNK, Math.min(batch.size, (chunk + 1) * PARALLEL_CHUNK)));
+    }
+
+    private static void prorate(Batch batch, int from, int to) {
+
+        int[] periodStart = batch.periodStart;
+        int[] activeSince = batch.activeSince;
+        int[] activeUntil = batch.activeUntil;
+        byte[] unit = batch.unit;
+        int[] value = batch.value;
+        long[] amount = batch.amount;
+        long[] prorated = batch.prorated;
+        for (int i = from; i < to; i++) {
+            int start = periodStart[i];
+            int end = unit[i] == UNIT_MONTH ? plusMonths(start, value[i]) : start + value[i];
+            int first = Math.max(start, activeSince[i]);
+            int last = activeUntil[i] == NO_END ? end : Math.min(end, activeUntil[i] + 1);
+            int activeDays = Math.max(0, last - first);
+            int periodDays = end - start;
+            long full = amount[i];
+            if (activeDays == periodDays) {
+                prorated[i] = full;
+            } else if (full > -FAST_PATH_LIMIT && full < FAST_PATH_LIMIT) {
+                prorated[i] = divideHalfUp(full * activeDays, periodDays);
+            } else {
+                prorated[i] = BigDecimal.valueOf(full).multiply(BigDecimal.valueOf(activeDays))
+                        .divide(BigDecimal.valueOf(periodDays), 0, RoundingMode.HALF_UP).longValueExact();
+            }
+        }
+    }
+
+    // Rounds half away from zero, like RoundingMode.HALF_UP. The divisor is positive.
+    static long divideHalfUp(long dividend, long divisor) {
+
+        long quotient = dividend / divisor;
+        long remainder = dividend % divisor;
+        if (Math.abs(remainder) * 2 >= divisor) {
+            quotient += dividend < 0 ? -1 : 1;
+        }
+        return quotient;
+    }
+
+    /**
+     * Adds months to an epoch day, keeping the day of month or using the last day of shorter months, like
+     * {@link LocalDate#plusMonths(long)}.
+     */
+    static int plusMonths(int epochDay, int months) {
+
+        // Civil date from days, after Howard Hinnant's algorithms, with the year starting in March.
+        int z = epochDay + 719468;
+        int era = (z >= 0 ? z : z - 146096) / 146097;
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        int monthIndex = year * 12 + (month - 1) + months;
+        year = Math.floorDiv(monthIndex, 12);
+        month = Math.floorMod(monthIndex, 12) + 1;
+        day = Math.min(day, lengthOfMonth(year, month));
+        return epochDay(year, month, day);
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static int epochDay(int year, int month, int day) {
+
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    /**
+     * Reference implementation with {@link LocalDate} and {@link BigDecimal}, returning the prorated amounts scaled
+     * to {@link #SCALE} decimals.
+     */
+    public static long[] prorateReference(Batch batch) {
+
+        long[] result = new long[batch.size];
+        for (int i = 0; i < batch.size; i++) {
+            LocalDate start = LocalDate.ofEpochDay(batch.periodStart[i]);
+            LocalDate end = batch.unit[i] == UNIT_MONTH ? start.plusMonths(batch.value[i]) : start.plusDays(batch.value[i]);
+            LocalDate first = LocalDate.ofEpochDay(Math.max(batch.periodStart[i], batch.activeSince[i]));
+            LocalDate last = batch.activeUntil[i] == NO_END || !LocalDate.ofEpochDay(batch.activeUntil[i]).isBefore(end)
+                    ? end : LocalDate.ofEpochDay(batch.activeUntil[i]).plusDays(1);
+            long activeDays = Math.max(0, ChronoUnit.DAYS.between(first, last));
+            long periodDays = ChronoUnit.DAYS.between(start, end);
+            BigDecimal amount = BigDecimal.valueOf(batch.amount[i], SCALE);
+            BigDecimal prorated = amount.multiply(BigDecimal.valueOf(activeDays))
+                    .divide(BigDecimal.valueOf(periodDays), SCALE, RoundingMode.HALF_UP);
+            result[i] = prorated.unscaledValue().longValueExact();
+        }
+        return result;
+    }
+
+    /**
+     * Compares the prorated amounts of the batch with the reference implementation and returns the index of the first
+     * line that differs, or -1.
+     */
+    public static int verify(Batch batch) {
+
+        long[] reference = prorateReference(batch);
+        for (int i = 0; i < batch.size; i++) {
+            if (reference[i] != batch.prorated[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,328 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.order.ApplyToOrder;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+import com.sapienter.jbilling.server.util.Constants;
+import com.sapienter.jbilling.server.util.IWebServicesSessionBean;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Rates quantities with the FLAT, GRADUATED and ZERO price models on the client, for quotes and usage rating
+ * without a round trip to the server.
+ *
+ * {@link #compile(PriceModelWS)} turns a price model and its attributes into an immutable {@link Rate}, and
+ * {@link #compile(SortedMap)} turns the effective-dated prices of an item into a {@link Schedule}. An engine keeps
+ * the compiled default prices of a catalogue in a {@link PriceTimeline}. Rates and quantities are {@code long}s
+ * scaled to {@link #SCALE} decimals and amounts are rounded half up to the same scale, so rating a quantity creates
+ * no objects. Products too large for exact {@code long} arithmetic fall back to
+ * {@link BigDecimal}.
+ *
+ * A GRADUATED model charges its rate only for the quantity above its {@code included} attribute. The server applies
+ * the included quantity to the usage of the whole period, here it applies to the quantity that is rated, which is
+ * the same for a single order line.
+ *
+ * The {@code main} method creates items and orders on a {@link StandInApiServer} and checks the quotes against the
+ * order totals the server calculated.
+ */
+public final class RatingEngine {
+
+    public static final int SCALE = ProrationCalculator.SCALE;
+    public static final String ATTRIBUTE_INCLUDED = "included";
+
+    private static final long ONE = 10000L;
+    // Scaled values below this bound can be multiplied with each other without overflowing.
+    private static final long FAST_PATH_LIMIT = 1L << 31;
+
+    private final PriceTimeline<Rate> rates;
+
+    /**
+     * Compiles the default prices of the items.
+     */
+    public RatingEngine(Iterable<ItemDTOEx> items) {
+
+        PriceTimeline.Builder<Rate> builder = PriceTimeline.builder(1024);
+        for (ItemDTOEx item : items) {
+            if (item.getId() != null && item.getDefaultPrices() != null) {
+                for (Map.Entry<Date, PriceModelWS> price : item.getDefaultPrices().entrySet()) {
+                    builder.add(item.getId(), price.getKey(), compile(price.getValue()));
+                }
+            }
+        }
+        rates = builder.build();
+    }
+
+    /**
+     * Compiled default price of an item in effect at a time, or null if the item has no default prices.
+     */
+    public Rate rate(int itemId, long time) {
+        return rates.at(itemId, time);
+    }
+
+    /**
+     * Quotes the lines of an order at the prices in effect on its active since date, or today when it has none.
+     * Lines that do not use the item price are charged their own price. Deleted lines and lines of items without
+     * prices are left out.
+     *
+     * @return the total scaled to {@link #SCALE} decimals
+     */
+    public BigDecimal quote(OrderWS order) {
+
+        long time = order.getActiveSince() != null ? order.getActiveSince().getTime() : System.currentTimeMillis();
+        long total = 0;
+        if (order.getOrderLines() != null) {
+            for (OrderLineWS line : order.getOrderLines()) {
+                if (line.getDeleted() != 0) {
+                    continue;
+                }
+                long quantity = line.getQuantity() != null ? toScaled(line.getQuantity()) : ONE;
+                if (Boolean.TRUE.equals(line.getUseItem())) {
+                    Rate rate = line.getItemId() != null ? rates.at(line.getItemId(), time) : null;
+                    if (rate != null) {
+                        total = Math.addExact(total, rate.amount(quantity));
+                    }
+                } else if (line.getPrice() != null) {
+                    total = Math.addExact(total, multiply(quantity, toScaled(line.getPrice())));
+                }
+            }
+        }
+        return BigDecimal.valueOf(total, SCALE);
+    }
+
+    /**
+     * Compiles a price model.
+     *
+     * @throws IllegalArgumentException if the model is not a FLAT, GRADUATED or ZERO price, is chained to another
+     *                                  model, or its rate or included quantity has more than {@link #SCALE} decimals
+     */
+    public static Rate compile(PriceModelWS model) {
+
+        if (model.getNext() != null) {
+            throw new IllegalArgumentException("Chained price models are not supported");
+        }
+        String type = model.getType();
+        if (Ch3ProductAndPricing.PRICE_ZERO.equals(type)) {
+            return new Rate(type, 0, 0, false);
+        }
+        long rate = exact(model.getRate(), "rate");
+        if (Ch3ProductAndPricing.PRICE_FLAT.equals(type)) {
+            return new Rate(type, rate, 0, false);
+        }
+        if (Ch3ProductAndPricing.PRICE_GRADUATED.equals(type)) {
+            Object included = model.getAttributes() != null ? model.getAttributes().get(ATTRIBUTE_INCLUDED) : null;
+            return new Rate(type, rate, exact(included, ATTRIBUTE_INCLUDED), true);
+        }
+        throw new IllegalArgumentException("Unsupported price model type: " + type);
+    }
+
+    /**
+     * Compiles effective-dated prices, such as the default prices of an item.
+     */
+    public static Schedule compile(SortedMap<Date, PriceModelWS> prices) {
+
+        if (prices.isEmpty()) {
+            throw new IllegalArgumentException("No prices");
+        }
+        PriceTimeline.Builder<Rate> builder = PriceTimeline.builder(prices.size());
+        for (Map.Entry<Date, PriceModelWS> price : prices.entrySet()) {
+            builder.add(0, price.getKey(), compile(price.getValue()));
+        }
+        return new Schedule(builder.build());
+    }
+
+    public static long toScaled(Object value) {
+        return ProrationCalculator.toScaled(new BigDecimal(String.valueOf(value)));
+    }
+
+    // Scales without rounding, so the rates of the compiled model are the rates of the server.
+    private static long exact(Object value, String name) {
+
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return new BigDecimal(String.valueOf(value)).setScale(SCALE, RoundingMode.UNNECESSARY)
+                    .unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("The " + name + " " + value + " has more than " + SCALE + " decimals", e);
+        }
+    }
+
+    // Multiplies two scaled values and rounds the product back to SCALE decimals.
+    static long multiply(long quantity, long rate) {
+
+        if (quantity > -FAST_PATH_LIMIT && quantity < FAST_PATH_LIMIT && rate > -FAST_PATH_LIMIT
+                && rate < FAST_PATH_LIMIT) {
+            return ProrationCalculator.divideHalfUp(quantity * rate, ONE);
+        }
+        return BigDecimal.valueOf(quantity, SCALE).multiply(BigDecimal.valueOf(rate, SCALE))
+                .setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    /**
+     * A compiled price model.
+     */
+    public static final class Rate {
+
+        private final String type;
+        private final long rate;
+        private final long included;
+        private final boolean graduated;
+
+        private Rate(String type, long rate, long included, boolean graduated) {
+            this.type = type;
+            this.rate = rate;
+            this.included = included;
+            this.graduated = graduated;
+        }
+
+        /**
+         * Amount for a quantity, both scaled to {@link #SCALE} decimals.
+         */
+        public long amount(long quantity) {
+
+            long charged = graduated ? Math.max(0, quantity - included) : quantity;
+            return multiply(charged, rate);
+        }
+
+        public BigDecimal amount(BigDecimal quantity) {
+            return BigDecimal.valueOf(amount(ProrationCalculator.toScaled(quantity)), SCALE);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public BigDecimal getRate() {
+            return BigDecimal.valueOf(rate, SCALE);
+        }
+
+        public BigDecimal getIncluded() {
+            return BigDecimal.valueOf(included, SCALE);
+        }
+    }
+
+    /**
+     * Compiled effective-dated prices. The price in effect at a time is the one with the latest start not after it,
+     * times before the first start use the first price.
+     */
+    public static final class Schedule {
+
+        private final PriceTimeline<Rate> rates;
+
+        private Schedule(PriceTimeline<Rate> rates) {
+            this.rates = rates;
+        }
+
+        public Rate at(long time) {
+            return rates.at(0, time);
+        }
+
+        public Rate at(Date date) {
+            return at(date.getTime());
+        }
+
+        /**
+         * Amount for a quantity at a time, the quantity and the amount scaled to {@link #SCALE} decimals.
+         */
+        public long amount(long quantity, long time) {
+            return at(time).amount(quantity);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int orderCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Random random = new Random(42);
+
+        try (StandInApiServer server = new StandInApiServer(0).start()) {
+            IWebServicesSessionBean api = HessianTransportBenchmark.buildClient(server.getServiceUrl(), null);
+            Integer companyId = api.getCallerCompanyId();
+            Integer itemTypeId = api.createItemCategory(Ch3ProductAndPricing.buildItemType(companyId));
+            Integer statusId = api.createOrderChangeStatus(Ch7OrderConfiguration.buildOrderChangeStatus(
+                    companyId, ApplyToOrder.YES, Integer.valueOf(1)));
+
+            // Items with up to three prices of random types, starting in 2010, 2011 and 2012.
+            ItemDTOEx[] items = new ItemDTOEx[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                SortedMap<Date, PriceModelWS> prices = new TreeMap<>();
+                int years = 1 + random.nextInt(3);
+                for (int year = 2010; year < 2010 + years; year++) {
+                    prices.putAll(randomPrice(random, new GregorianCalendar(year, 0, 1).getTime()));
+                }
+                items[i] = Ch3ProductAndPricing.buildItem(companyId, "ratingProduct_" + UniqueIds.next(), itemTypeId,
+                        Integer.valueOf(0), prices);
+                items[i].setId(api.createItem(items[i]));
+            }
+            RatingEngine engine = new RatingEngine(Arrays.asList(items));
+
+            // Orders with a few lines, active from dates before, between and after the price changes.
+            int mismatches = 0;
+            for (int i = 0; i < orderCount; i++) {
+                Integer[] itemIds = new Integer[1 + random.nextInt(5)];
+                for (int j = 0; j < itemIds.length; j++) {
+                    itemIds[j] = items[random.nextInt(itemCount)].getId();
+                }
+                Date activeSince = new GregorianCalendar(2009 + random.nextInt(5), random.nextInt(12), 1).getTime();
+                OrderWS order = Ch8PurchaseOrders.buildOrder(Integer.valueOf(1), activeSince, null,
+                        Constants.PERIOD_UNIT_MONTH, Constants.ORDER_BILLING_POST_PAID, false, itemIds);
+                for (OrderLineWS line : order.getOrderLines()) {
+                    line.setQuantity(Integer.valueOf(1 + random.nextInt(200)));
+                }
+                Integer orderId = api.createOrder(order, Ch8PurchaseOrders.buildChangesFromOrder(order, statusId));
+                OrderWS saved = api.getOrder(orderId);
+                BigDecimal total = new BigDecimal(String.valueOf(saved.getTotal()));
+                if (engine.quote(saved).compareTo(total) != 0) {
+                    mismatches++;
+                    System.out.println("Order " + orderId + ": quoted " + engine.quote(saved) + ", server " + total);
+                }
+            }
+            System.out.printf("%d orders checked against the server, %d mismatches%n", orderCount, mismatches);
+
+            // Local rating speed, one rate per item lookup, quantity and date.
+            int count = 10000000;
+            long[] times = new long[1024];
+            long[] quantities = new long[1024];
+            int[] itemIds = new int[1024];
+            for (int i = 0; i < 1024; i++) {
+                times[i] = new GregorianCalendar(2009 + random.nextInt(5), random.nextInt(12), 1).getTimeInMillis();
+                quantities[i] = random.nextInt(1000000) * ONE / 100;
+                itemIds[i] = items[random.nextInt(itemCount)].getId();
+            }
+            long sum = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                int k = i & 1023;
+                sum += engine.rate(itemIds[k], times[k]).amount(quantities[k]);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%d rates in %.2f s, %.1f million rates/s (checksum %d)%n", count, seconds,
+                    count / seconds / 1e6, sum);
+        }
+    }
+
+    private static SortedMap<Date, PriceModelWS> randomPrice(Random random, Date from) {
+
+        String price = BigDecimal.valueOf(random.nextInt(100000), 2).toPlainString();
+        switch (random.nextInt(3)) {
+            case 0:
+                return Ch3ProductAndPricing.withZeroPrice(from);
+            case 1:
+                return Ch3ProductAndPricing.withFlatPrice(from, price);
+            default:
+                return Ch3ProductAndPricing.withGraduatedPrice(from, price, String.valueOf(random.nextInt(100)));
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.invoice.InvoiceWS;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the invoices of a review billing run with the invoices of the previous real run, customer by customer,
+ * to decide whether the review run can be approved with {@code setReviewApproval()}.
+ *
+ * The invoices of both runs are loaded in parallel and reduced to one total and line count per customer. A customer
+ * is flagged when the total changed by more than the allowed percentage and amount, when the number of invoice lines
+ * changed by more than the allowed number, or when the customer is new or missing in the review run. Without a
+ * previous run no customer counts as new. The run is recommended for approval when few enough customers are
+ * flagged, for manual review when more are, and for rejection when the run total or the number of missing customers
+ * is far off.
+ */
+public class ReviewRunAnalyzer {
+
+    public enum Recommendation {
+        APPROVE, MANUAL_REVIEW, REJECT
+    }
+
+    public enum FindingType {
+        AMOUNT_CHANGE, LINE_COUNT_CHANGE, NEW_CUSTOMER, MISSING_CUSTOMER
+    }
+
+    private final JbillingAPI api;
+    private final int parallelism;
+
+    private BigDecimal maxAmountChangePercent = new BigDecimal("20");
+    private BigDecimal minAmountChange = new BigDecimal("10");
+    private int maxLineCountChange = 5;
+    private BigDecimal maxFlaggedPercent = new BigDecimal("2");
+    private BigDecimal maxMissingPercent = new BigDecimal("5");
+    private BigDecimal maxRunTotalChangePercent = new BigDecimal("30");
+
+    public ReviewRunAnalyzer(JbillingAPI api, int parallelism) {
+        this.api = api;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * A customer total is flagged when it changed by more than {@code percent} and by more than {@code minimum}.
+     */
+    public ReviewRunAnalyzer setAmountThreshold(BigDecimal percent, BigDecimal minimum) {
+        this.maxAmountChangePercent = percent;
+        this.minAmountChange = minimum;
+        return this;
+    }
+
+    public ReviewRunAnalyzer setMaxLineCountChange(int lines) {
+        this.maxLineCountChange = lines;
+        return this;
+    }
+
+    /**
+     * Limits for the recommendation: the share of flagged customers allowed for approval, and the share of missing
+     * customers and the change of the run total above which the run is rejected.
+     */
+    public ReviewRunAnalyzer setRecommendationThresholds(BigDecimal flaggedPercent, BigDecimal missingPercent,
+                                                         BigDecimal runTotalChangePercent) {
+        this.maxFlaggedPercent = flaggedPercent;
+        this.maxMissingPercent = missingPercent;
+        this.maxRunTotalChangePercent = runTotalChangePercent;
+        return this;
+    }
+
+    /**
+     * Compares the review run with the previous real run. The previous run may be null, for the first run of a
+     * company.
+     */
+    public Report analyze(Integer reviewRunId, Integer previousRunId) throws InterruptedException {
+
+        long start = System.nanoTime();
+        Map<Integer, CustomerTotal> review = load(api.getBillingProcessGeneratedInvoices(reviewRunId));
+        Map<Integer, CustomerTotal> previous = previousRunId != null
+                ? load(api.getBillingProcessGeneratedInvoices(previousRunId)) : new HashMap<>();
+
+        List<Finding> findings = new ArrayList<>();
+        Set<Integer> flagged = new HashSet<>();
+        long reviewTotal = 0;
+        long previousTotal = 0;
+        int missing = 0;
+        long minChange = InvoiceAggregator.toScaled(minAmountChange);
+        for (CustomerTotal current : review.values()) {
+            reviewTotal += current.amount;
+            CustomerTotal before = previous.get(current.userId);
+            if (before == null) {
+                if (previousRunId == null) {
+                    // The first run of a company has nothing to compare with.
+                    continue;
+                }
+                findings.add(new Finding(current.userId, FindingType.NEW_CUSTOMER, null, current));
+                flagged.add(current.userId);
+                continue;
+            }
+            long change = Math.abs(current.amount - before.amount);
+            if (change > minChange && exceedsPercent(change, before.amount, maxAmountChangePercent)) {
+                findings.add(new Finding(current.userId, FindingType.AMOUNT_CHANGE, before, current));
+                flagged.add(current.userId);
+            }
+            if (Math.abs(current.lines - before.lines) > maxLineCountChange) {
+                findings.add(new Finding(current.userId, FindingType.LINE_COUNT_CHANGE, before, current));
+                flagged.add(current.userId);
+            }
+        }
+        for (CustomerTotal before : previous.values()) {
+            previousTotal += before.amount;
+            if (!review.containsKey(before.userId)) {
+                findings.add(new Finding(before.userId, FindingType.MISSING_CUSTOMER, before, null));
+                flagged.add(before.userId);
+                missing++;
+            }
+        }
+        findings.sort(Comparator.comparingLong(Finding::getImpact).reversed());
+
+        List<String> reasons = new ArrayList<>();
+        Recommendation recommendation = Recommendation.APPROVE;
+        int customers = Math.max(1, Math.max(review.size(), previous.size()));
+        if (!previous.isEmpty() && exceedsPercent(missing, previous.size(), maxMissingPercent)) {
+            recommendation = Recommendation.REJECT;
+            reasons.add(missing + " of " + previous.size() + " customers are missing");
+        }
+        if (previousTotal != 0 && exceedsPercent(Math.abs(reviewTotal - previousTotal), previousTotal,
+                maxRunTotalChangePercent)) {
+            recommendation = Recommendation.REJECT;
+            reasons.add("run total changed from " + InvoiceAggregator.fromScaled(previousTotal) + " to "
+                    + InvoiceAggregator.fromScaled(reviewTotal));
+        }
+        if (recommendation == Recommendation.APPROVE && exceedsPercent(flagged.size(), customers, maxFlaggedPercent)) {
+            recommendation = Recommendation.MANUAL_REVIEW;
+            reasons.add(flagged.size() + " of " + customers + " customers are flagged");
+        }
+        return new Report(recommendation, reasons, findings, review.size(), previous.size(),
+                InvoiceAggregator.fromScaled(reviewTotal), InvoiceAggregator.fromScaled(previousTotal),
+                System.nanoTime() - start);
+    }
+
+    private static boolean exceedsPercent(long change, long base, BigDecimal percent) {
+
+        if (base == 0) {
+            return change != 0;
+        }
+        return BigDecimal.valueOf(change).multiply(BigDecimal.valueOf(100))
+                .compareTo(percent.multiply(BigDecimal.valueOf(Math.abs(base)))) > 0;
+    }
+
+    // Loads the invoices in parallel chunks and sums them up per customer.
+    private Map<Integer, CustomerTotal> load(Integer[] invoiceIds) throws InterruptedException {
+
+        Map<Integer, CustomerTotal> totals = new HashMap<>();
+        if (invoiceIds == null || invoiceIds.length == 0) {
+            return totals;
+        }
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "review-analyzer-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Callable<Map<Integer, CustomerTotal>>> chunks = new ArrayList<>();
+            int chunkSize = Math.max(1, Math.min(InvoiceAggregator.DEFAULT_CHUNK_SIZE, invoiceIds.length / parallelism));
+            for (int from = 0; from < invoiceIds.length; from += chunkSize) {
+                Integer[] chunk = Arrays.copyOfRange(invoiceIds, from, Math.min(from + chunkSize, invoiceIds.length));
+                chunks.add(() -> {
+                    Map<Integer, CustomerTotal> chunkTotals = new HashMap<>();
+                    for (Integer invoiceId : chunk) {
+                        InvoiceWS invoice = api.getInvoiceWS(invoiceId);
+                        chunkTotals.computeIfAbsent(invoice.getUserId(), CustomerTotal::new).add(invoice);
+                    }
+                    return chunkTotals;
+                });
+            }
+            for (Future<Map<Integer, CustomerTotal>> chunk : executor.invokeAll(chunks)) {
+                try {
+                    chunk.get().forEach((userId, total) -> totals.merge(userId, total, CustomerTotal::merge));
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Loading the invoices of the run failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return totals;
+    }
+
+    /**
+     * Invoice total, scaled to four decimals, and number of invoice lines of one customer in one run.
+     */
+    public static final class CustomerTotal {
+
+        private final Integer userId;
+        private long amount;
+        private int lines;
+        private int invoices;
+
+        CustomerTotal(Integer userId) {
+            this.userId = userId;
+        }
+
+        void add(InvoiceWS invoice) {
+
+            amount += InvoiceAggregator.toScaled(invoice.getTotal());
+            lines += invoice.getInvoiceLines() != null ? invoice.getInvoiceLines().length : 0;
+            invoices++;
+        }
+
+        CustomerTotal merge(CustomerTotal other) {
+
+            amount += other.amount;
+            lines += other.lines;
+            invoices += other.invoices;
+            return this;
+        }
+
+        public BigDecimal getAmount() {
+            return InvoiceAggregator.fromScaled(amount);
+        }
+
+        public int getLines() {
+            return lines;
+        }
+
+        public int getInvoices() {
+            return invoices;
+        }
+    }
+
+    public static final class Finding {
+
+        private final Integer userId;
+        private final FindingType type;
+        private final CustomerTotal previous;
+        private final CustomerTotal review;
+
+        Finding(Integer userId, FindingType type, CustomerTotal previous, CustomerTotal review) {
+            this.userId = userId;
+            this.type = type;
+            this.previous = previous;
+            this.review = review;
+        }
+
+        public Integer getUserId() {
+            return userId;
+        }
+
+        public FindingType getType() {
+            return type;
+        }
+
+        public CustomerTotal getPrevious() {
+            return previous;
+        }
+
+        public CustomerTotal getReview() {
+            return review;
+        }
+
+        // Absolute amount change, used to list the largest findings first.
+        long getImpact() {
+            return Math.abs((review != null ? review.amount : 0) - (previous != null ? previous.amount : 0));
+        }
+
+        @Override
+        public String toString() {
+            return type + " customer " + userId + ": "
+                    + (previous != null ? previous.getAmount() + " (" + previous.lines + " lines)" : "-") + " -> "
+                    + (review != null ? review.getAmount() + " (" + review.lines + " lines)" : "-");
+        }
+    }
+
+    public static final class Report {
+
+        private final Recommendation recommendation;
+        private final List<String> reasons;
+        private final List<Finding> findings;
+        private final int reviewCustomers;
+        private final int previousCustomers;
+        private final BigDecimal reviewTotal;
+        private final BigDecimal previousTotal;
+        private final long elapsedNanos;
+
+        Report(Recommendation recommendation, List<String> reasons, List<Finding> findings, int reviewCustomers,
+               int previousCustomers, BigDecimal reviewTotal, BigDecimal previousTotal, long elapsedNanos) {
+            this.recommendation = recommendation;
+            this.reasons = reasons;
+            this.findings = findings;
+            this.reviewCustomers = reviewCustomers;
+            this.previousCustomers = previousCustomers;
+            this.reviewTotal = reviewTotal;
+            this.previousTotal = previousTotal;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public Recommendation getRecommendation() {
+            return recommendation;
+        }
+
+        public List<String> getReasons() {
+            return reasons;
+        }
+
+        /**
+         * Flagged customers, largest amount changes first.
+         */
+        public List<Finding> getFindings() {
+            return findings;
+        }
+
+        @Override
+        public String toString() {
+
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("Recommendation: %s %s%n", recommendation, reasons));
+            report.append(String.format("Review run: %d customers, total %s. Previous run: %d customers, total %s. "
+                    + "Analyzed in %.1f s%n", reviewCustomers, reviewTotal, previousCustomers, previousTotal,
+                    elapsedNanos / 1e9));
+            findings.stream().limit(20).forEach(finding -> report.append("  ").append(finding).append('\n'));
+            if (findings.size() > 20) {
+                report.append("  ... ").append(findings.size() - 20).append(" more findings\n");
+            }
+            return report.toString();
+        }
+    }
+}
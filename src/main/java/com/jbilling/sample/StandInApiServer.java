@@ -0,0 +1,426 @@
+package com.jbilling.sample;
+
+import com.caucho.hessian.server.HessianSkeleton;
+import com.sapienter.jbilling.server.invoice.InvoiceWS;
+import com.sapienter.jbilling.server.item.AssetWS;
+import com.sapienter.jbilling.server.item.ItemDTOEx;
+import com.sapienter.jbilling.server.item.ItemTypeWS;
+import com.sapienter.jbilling.server.item.PlanWS;
+import com.sapienter.jbilling.server.order.OrderChangeStatusWS;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderPeriodWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.pricing.PriceModelWS;
+import com.sapienter.jbilling.server.user.AccountTypeWS;
+import com.sapienter.jbilling.server.user.UserWS;
+import com.sapienter.jbilling.server.util.Constants;
+import com.sapienter.jbilling.server.util.CurrencyWS;
+import com.sapienter.jbilling.server.util.IWebServicesSessionBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the jBilling Hessian API service.
+ *
+ * Implements the subset of {@link IWebServicesSessionBean} used by the samples on top of an in-memory store and
+ * serves it over the JDK HTTP server, so client throughput and latency can be measured without a jBilling
+ * installation. Latency, jitter and error injection are configurable. Methods outside of the subset fail with
+ * an {@link UnsupportedOperationException}.
+ *
+ * Saved orders are priced: lines using the item price get the FLAT, GRADUATED or ZERO default price of the item in
+ * effect on the order's active since date, and the order total is the sum of the line amounts.
+ *
+ * Usage: {@code StandInApiServer [port] [latencyMillis] [jitterMillis] [errorRate]}
+ */
+public class StandInApiServer implements AutoCloseable {
+
+    public static final String SERVICE_PATH = "/jbilling/hessian/ApiService";
+    public static final Integer COMPANY_ID = Integer.valueOf(1);
+    public static final Integer MONTHLY_PERIOD_ID = Integer.valueOf(2);
+
+    private final int port;
+    private final int threads;
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double errorRate;
+
+    private final Map<Class<?>, Map<Integer, Object>> store = new ConcurrentHashMap<>();
+    private final AtomicInteger ids = new AtomicInteger(1000);
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final Map<String, Handler> handlers = new HashMap<>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private interface Handler {
+        Object handle(Object[] args) throws Exception;
+    }
+
+    public StandInApiServer(int port) {
+        this(port, 64);
+    }
+
+    /**
+     * @param port    port to listen on, zero picks a free port
+     * @param threads number of threads serving requests
+     */
+    public StandInApiServer(int port, int threads) {
+
+        this.port = port;
+        this.threads = threads;
+        registerHandlers();
+        seedReferenceData();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        StandInApiServer server = new StandInApiServer(args.length > 0 ? Integer.parseInt(args[0]) : 8080);
+        server.setLatency(args.length > 1 ? Long.parseLong(args[1]) : 0, args.length > 2 ? Long.parseLong(args[2]) : 0);
+        server.setErrorRate(args.length > 3 ? Double.parseDouble(args[3]) : 0);
+        server.start();
+        System.out.println("Stand-in API service running at " + server.getServiceUrl());
+    }
+
+    public synchronized StandInApiServer start() throws IOException {
+
+        IWebServicesSessionBean service = (IWebServicesSessionBean) Proxy.newProxyInstance(
+                IWebServicesSessionBean.class.getClassLoader(),
+                new Class<?>[] {IWebServicesSessionBean.class}, new ServiceHandler());
+        HessianSkeleton skeleton = new HessianSkeleton(service, IWebServicesSessionBean.class);
+
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        server.createContext(SERVICE_PATH, exchange -> serve(skeleton, exchange));
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.start();
+        return this;
+    }
+
+    @Override
+    public synchronized void close() {
+
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    public String getServiceUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + SERVICE_PATH;
+    }
+
+    /**
+     * Every call is delayed by the latency plus a uniformly distributed random jitter.
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Fraction of calls, between 0 and 1, that fail with an injected server error.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getCallCount() {
+        return calls.get();
+    }
+
+    public long getInjectedErrorCount() {
+        return injectedErrors.get();
+    }
+
+    private void serve(HessianSkeleton skeleton, HttpExchange exchange) throws IOException {
+
+        try (InputStream in = exchange.getRequestBody()) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                byte[] message = "Hessian requires POST".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(405, message.length);
+                exchange.getResponseBody().write(message);
+                return;
+            }
+            ByteArrayOutputStream reply = new ByteArrayOutputStream(512);
+            skeleton.invoke(in, reply);
+            exchange.getResponseHeaders().set("Content-Type", "x-application/hessian");
+            exchange.sendResponseHeaders(200, reply.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                reply.writeTo(out);
+            }
+        } catch (Exception e) {
+            byte[] message = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(500, message.length);
+            exchange.getResponseBody().write(message);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private class ServiceHandler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            if (method.getDeclaringClass() == Object.class) {
+                return method.invoke(StandInApiServer.this, args);
+            }
+            calls.incrementAndGet();
+            simulateLatency();
+            if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                injectedErrors.incrementAndGet();
+                throw new IllegalStateException("Injected error in " + method.getName());
+            }
+            Handler handler = handlers.get(method.getName());
+            if (handler == null) {
+                throw new UnsupportedOperationException(method.getName() + " is not supported by the stand-in server");
+            }
+            return handler.handle(args != null ? args : new Object[0]);
+        }
+    }
+
+    private void simulateLatency() throws InterruptedException {
+
+        long delay = latencyMillis;
+        if (jitterMillis > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitterMillis + 1);
+        }
+        if (delay > 0) {
+            TimeUnit.MILLISECONDS.sleep(delay);
+        }
+    }
+
+    /*
+        IN-MEMORY STORE
+     */
+
+    private void registerHandlers() {
+
+        handlers.put("getCallerCompanyId", args -> COMPANY_ID);
+        handlers.put("getCallerCurrencyId", args -> Constants.PRIMARY_CURRENCY_ID);
+
+        registerEntity(AccountTypeWS.class, "createAccountType", "getAccountType", "updateAccountType",
+                "deleteAccountType", "getAllAccountTypes");
+        registerEntity(UserWS.class, "createUser", "getUserWS", "updateUser", "deleteUser", null);
+        registerEntity(ItemTypeWS.class, "createItemCategory", "getItemCategoryById", "updateItemCategory",
+                "deleteItemCategory", "getAllItemCategories");
+        registerEntity(ItemDTOEx.class, "createItem", "getItem", "updateItem", "deleteItem", "getAllItems");
+        registerEntity(OrderChangeStatusWS.class, "createOrderChangeStatus", null, "updateOrderChangeStatus",
+                "deleteOrderChangeStatus", "getOrderChangeStatusesForCompany");
+        registerEntity(OrderPeriodWS.class, "createOrderPeriod", null, null, "deleteOrderPeriod", "getOrderPeriods");
+        registerEntity(CurrencyWS.class, "createCurrency", null, "updateCurrency", null, "getCurrencies");
+        registerEntity(AssetWS.class, "createAsset", "getAsset", "updateAsset", "deleteAsset", null);
+        registerEntity(PlanWS.class, "createPlan", "getPlanWS", "updatePlan", "deletePlan", "getAllPlans");
+        registerEntity(InvoiceWS.class, null, "getInvoiceWS", null, "deleteInvoice", null);
+
+        handlers.put("createOrder", args -> saveOrder((OrderWS) args[0]));
+        handlers.put("updateOrder", args -> {
+            saveOrder((OrderWS) args[0]);
+            return null;
+        });
+        handlers.put("getOrder", args -> find(OrderWS.class, args[0]));
+        handlers.put("deleteOrder", args -> {
+            entities(OrderWS.class).remove(args[0]);
+            return null;
+        });
+        handlers.put("getAssetsForItem", args -> entities(AssetWS.class).values().stream()
+                .map(AssetWS.class::cast)
+                .filter(asset -> Objects.equals(asset.getItemId(), args[0]))
+                .map(AssetWS::getId)
+                .toArray(Integer[]::new));
+        handlers.put("getPaperInvoicePDF", args -> {
+            // Not a real PDF, but a payload of a realistic size for transfer measurements.
+            byte[] pdf = new byte[64 * 1024];
+            byte[] header = ("%PDF-1.4 stand-in invoice " + args[0] + "\n").getBytes(StandardCharsets.US_ASCII);
+            System.arraycopy(header, 0, pdf, 0, header.length);
+            return pdf;
+        });
+        handlers.put("isBillingRunning", args -> Boolean.FALSE);
+    }
+
+    private void registerEntity(Class<?> type, String create, String get, String update, String delete, String all) {
+
+        if (create != null) {
+            handlers.put(create, args -> save(type, args[0], true));
+        }
+        if (get != null) {
+            handlers.put(get, args -> find(type, args[0]));
+        }
+        if (update != null) {
+            handlers.put(update, args -> {
+                save(type, args[0], false);
+                return null;
+            });
+        }
+        if (delete != null) {
+            handlers.put(delete, args -> entities(type).remove(args[0]) != null);
+        }
+        if (all != null) {
+            handlers.put(all, args -> {
+                Object[] result = (Object[]) java.lang.reflect.Array.newInstance(type, 0);
+                return entities(type).values().toArray(result);
+            });
+        }
+    }
+
+    private void seedReferenceData() {
+
+        OrderPeriodWS monthly = Ch7OrderConfiguration.buildOrderPeriod(COMPANY_ID, Constants.PERIOD_UNIT_MONTH,
+                Integer.valueOf(1));
+        monthly.setId(MONTHLY_PERIOD_ID);
+        entities(OrderPeriodWS.class).put(MONTHLY_PERIOD_ID, monthly);
+
+        CurrencyWS usd = Ch14Currencies.buildCurrency("US Dollar", "US$", "USD", "US", BigDecimal.ONE, BigDecimal.ONE);
+        usd.setId(Constants.PRIMARY_CURRENCY_ID);
+        entities(CurrencyWS.class).put(Constants.PRIMARY_CURRENCY_ID, usd);
+    }
+
+    private Integer saveOrder(OrderWS order) throws ReflectiveOperationException {
+
+        Integer existingId = order.getId();
+        Integer orderId = save(OrderWS.class, order, existingId == null || existingId <= 0);
+        List<OrderLineWS> lines = new ArrayList<>();
+        if (order.getOrderLines() != null) {
+            lines.addAll(Arrays.asList(order.getOrderLines()));
+        }
+        for (OrderLineWS line : lines) {
+            if (line.getId() <= 0) {
+                line.setId(ids.incrementAndGet());
+            }
+            line.setOrderId(orderId);
+        }
+        priceOrder(order, lines);
+        return orderId;
+    }
+
+    private void priceOrder(OrderWS order, List<OrderLineWS> lines) {
+
+        Date date = order.getActiveSince() != null ? order.getActiveSince() : new Date();
+        BigDecimal total = BigDecimal.ZERO;
+        for (OrderLineWS line : lines) {
+            if (line.getDeleted() != 0) {
+                continue;
+            }
+            BigDecimal quantity = line.getQuantity() != null ? decimal(line.getQuantity()) : BigDecimal.ONE;
+            if (Boolean.TRUE.equals(line.getUseItem())) {
+                ItemDTOEx item = (ItemDTOEx) find(ItemDTOEx.class, line.getItemId());
+                PriceModelWS model = item != null ? priceAt(item.getDefaultPrices(), date) : null;
+                if (model == null) {
+                    continue;
+                }
+                line.setPrice(decimal(model.getRate()));
+                line.setAmount(amount(model, quantity));
+            } else if (line.getPrice() != null) {
+                line.setAmount(decimal(line.getPrice()).multiply(quantity));
+            } else {
+                continue;
+            }
+            total = total.add(decimal(line.getAmount()));
+        }
+        order.setTotal(total);
+    }
+
+    // The price with the latest start date not after the date, or the first price.
+    private static PriceModelWS priceAt(SortedMap<Date, PriceModelWS> prices, Date date) {
+
+        if (prices == null || prices.isEmpty()) {
+            return null;
+        }
+        PriceModelWS model = prices.get(prices.firstKey());
+        for (Map.Entry<Date, PriceModelWS> price : prices.entrySet()) {
+            if (price.getKey().after(date)) {
+                break;
+            }
+            model = price.getValue();
+        }
+        return model;
+    }
+
+    private static BigDecimal amount(PriceModelWS model, BigDecimal quantity) {
+
+        String type = model.getType();
+        if (Ch3ProductAndPricing.PRICE_ZERO.equals(type)) {
+            return BigDecimal.ZERO;
+        }
+        if (Ch3ProductAndPricing.PRICE_FLAT.equals(type)) {
+            return decimal(model.getRate()).multiply(quantity);
+        }
+        if (Ch3ProductAndPricing.PRICE_GRADUATED.equals(type)) {
+            // The included quantity is free, the rest is charged at the rate.
+            Object included = model.getAttributes() != null ? model.getAttributes().get("included") : null;
+            BigDecimal charged = quantity.subtract(included != null ? decimal(included) : BigDecimal.ZERO);
+            return decimal(model.getRate()).multiply(charged.max(BigDecimal.ZERO));
+        }
+        throw new UnsupportedOperationException("Price model " + type);
+    }
+
+    private static BigDecimal decimal(Object value) {
+        return new BigDecimal(String.valueOf(value));
+    }
+
+    private Map<Integer, Object> entities(Class<?> type) {
+        return store.computeIfAbsent(type, key -> new ConcurrentHashMap<>());
+    }
+
+    private Object find(Class<?> type, Object id) {
+        return entities(type).get(id);
+    }
+
+    private Integer save(Class<?> type, Object entity, boolean create) throws ReflectiveOperationException {
+
+        Integer id = create ? Integer.valueOf(ids.incrementAndGet()) : idOf(entity);
+        if (create) {
+            assignId(entity, id);
+        }
+        entities(type).put(id, entity);
+        return id;
+    }
+
+    // UserWS uses userId instead of id, the rest of the WS objects use id.
+    private static Integer idOf(Object entity) throws ReflectiveOperationException {
+
+        Method getter = entity instanceof UserWS
+                ? entity.getClass().getMethod("getUserId")
+                : entity.getClass().getMethod("getId");
+        return (Integer) getter.invoke(entity);
+    }
+
+    private static void assignId(Object entity, Integer id) throws ReflectiveOperationException {
+
+        String setter = entity instanceof UserWS ? "setUserId" : "setId";
+        for (Method method : entity.getClass().getMethods()) {
+            if (method.getName().equals(setter) && method.getParameterCount() == 1) {
+                method.invoke(entity, id);
+                return;
+            }
+        }
+        throw new NoSuchMethodException(entity.getClass().getName() + "." + setter);
+    }
+}
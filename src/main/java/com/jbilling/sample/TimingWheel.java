@@ -0,0 +1,159 @@
+package com.jbilling.sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hierarchical timing wheel holding items due at a point in time.
+ *
+ * Time is divided into ticks. The first level has one slot for each of the next 64 ticks, every following level
+ * has 64 slots that each cover a whole turn of the level below it, so six levels cover 2^36 ticks. Adding and
+ * removing items take constant time, whatever the number of items and how far ahead they are due. When the
+ * wheel advances into a slot of a higher level, the items of that slot are moved down to the level below.
+ *
+ * Not thread-safe, the owner calls all the methods from a single thread.
+ *
+ * @param <T> type of the scheduled items
+ */
+public class TimingWheel<T> {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 6;
+
+    private final long tickMillis;
+    private final List<List<Entry<T>>> slots = new ArrayList<>(LEVELS * SLOTS);
+    private long currentTick;
+    private int size;
+
+    /**
+     * Handle of a scheduled item, used to cancel it.
+     */
+    public static final class Entry<T> {
+
+        private final T item;
+        private final long dueTick;
+        private List<Entry<T>> slot;
+
+        Entry(T item, long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+    }
+
+    public TimingWheel(long tickMillis, long startMillis) {
+
+        this.tickMillis = tickMillis;
+        this.currentTick = startMillis / tickMillis;
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Schedules an item. Items due before the next tick are passed to {@code expired} right away.
+     */
+    public Entry<T> add(T item, long dueMillis, Consumer<? super T> expired) {
+
+        Entry<T> entry = new Entry<>(item, dueMillis / tickMillis);
+        if (!place(entry)) {
+            expired.accept(item);
+            return entry;
+        }
+        size++;
+        return entry;
+    }
+
+    public boolean cancel(Entry<T> entry) {
+
+        if (entry.slot == null) {
+            return false;
+        }
+        entry.slot.remove(entry);
+        entry.slot = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * Advances the wheel up to the given time and passes all the items that are due to {@code expired}, in the
+     * order of their due tick.
+     */
+    public void advance(long nowMillis, Consumer<? super T> expired) {
+
+        long targetTick = nowMillis / tickMillis;
+        while (currentTick < targetTick && size > 0) {
+            currentTick++;
+            // Moves the items of the higher levels down when the lower level starts a new turn.
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level);
+            }
+            List<Entry<T>> due = slots.get((int) (currentTick & SLOT_MASK));
+            if (!due.isEmpty()) {
+                List<Entry<T>> items = new ArrayList<>(due);
+                due.clear();
+                for (Entry<T> entry : items) {
+                    entry.slot = null;
+                    size--;
+                    expired.accept(entry.item);
+                }
+            }
+        }
+        if (currentTick < targetTick) {
+            // Nothing is scheduled, the wheel can jump ahead.
+            currentTick = targetTick;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void cascade(int level) {
+
+        int index = level * SLOTS + (int) ((currentTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        List<Entry<T>> slot = slots.get(index);
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Entry<T>> entries = new ArrayList<>(slot);
+        slot.clear();
+        for (Entry<T> entry : entries) {
+            entry.slot = null;
+            if (!place(entry)) {
+                // Due in the current tick, kept in the first level slot that is processed next.
+                List<Entry<T>> current = slots.get((int) (currentTick & SLOT_MASK));
+                current.add(entry);
+                entry.slot = current;
+            }
+        }
+    }
+
+    // Puts the entry in the level that covers its distance from the current tick.
+    // Returns false if the entry is already due.
+    private boolean place(Entry<T> entry) {
+
+        long delta = entry.dueTick - currentTick;
+        if (delta <= 0) {
+            return false;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int index = level * SLOTS + (int) ((entry.dueTick >>> (SLOT_BITS * level)) & SLOT_MASK);
+        List<Entry<T>> slot = slots.get(index);
+        slot.add(entry);
+        entry.slot = slot;
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+package com.jbilling.sample;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free generator of unique ids used by the builders for names, codes and identifiers.
+ *
+ * Ids are Snowflake-style 63 bit numbers made of a millisecond timestamp (41 bits, since 2016-01-01), a node id
+ * (10 bits) and a per-millisecond sequence (12 bits), so ids generated in parallel threads or on different nodes
+ * do not collide. The timestamp and the sequence are kept in a single {@link AtomicLong} that is advanced with
+ * compare-and-set. When the sequence of a millisecond is used up, or the clock moves backwards, the generator
+ * borrows the following millisecond instead of waiting.
+ *
+ * The node id is read from the {@code jbilling.sample.nodeId} system property or the {@code JBILLING_NODE_ID}
+ * environment variable, and is derived from the host name and the process id otherwise.
+ */
+public final class UniqueIds {
+
+    public static final long EPOCH = 1451606400000L;
+    public static final int NODE_BITS = 10;
+    public static final int SEQUENCE_BITS = 12;
+    public static final long MAX_NODE_ID = (1L << NODE_BITS) - 1;
+    public static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+
+    private static final UniqueIds INSTANCE = new UniqueIds(defaultNodeId());
+
+    private final long nodeId;
+    // Timestamp relative to the epoch, shifted left by SEQUENCE_BITS, plus the sequence.
+    private final AtomicLong state = new AtomicLong();
+
+    public UniqueIds(long nodeId) {
+
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("Node id must be between 0 and " + MAX_NODE_ID + ": " + nodeId);
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Next unique id of this JVM's default generator.
+     */
+    public static long next() {
+        return INSTANCE.nextId();
+    }
+
+    public long nextId() {
+
+        long now = (System.currentTimeMillis() - EPOCH) << SEQUENCE_BITS;
+        while (true) {
+            long current = state.get();
+            // A new millisecond starts a new sequence, otherwise the sequence is incremented. If the sequence
+            // overflows, the increment carries into the timestamp, which borrows the next millisecond.
+            long next = now > current ? now : current + 1;
+            if (state.compareAndSet(current, next)) {
+                long timestamp = next >>> SEQUENCE_BITS;
+                long sequence = next & MAX_SEQUENCE;
+                return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+            }
+        }
+    }
+
+    public long getNodeId() {
+        return nodeId;
+    }
+
+    public static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    public static long nodeIdOf(long id) {
+        return (id >>> SEQUENCE_BITS) & MAX_NODE_ID;
+    }
+
+    private static long defaultNodeId() {
+
+        String configured = System.getProperty("jbilling.sample.nodeId", System.getenv("JBILLING_NODE_ID"));
+        if (configured != null && !configured.trim().isEmpty()) {
+            return Long.parseLong(configured.trim());
+        }
+        // The runtime name is usually pid@host, which differs between processes and machines.
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            name = name + "/" + InetAddress.getLocalHost().getHostName();
+        } catch (Exception e) {
+            // The runtime name alone is used.
+        }
+        return (name.hashCode() & Integer.MAX_VALUE) % (MAX_NODE_ID + 1);
+    }
+}
@@ -0,0 +1,869 @@
+package com.jbilling.sample;
+
+import com.sapienter.jbilling.server.order.OrderChangeWS;
+import com.sapienter.jbilling.server.order.OrderLineWS;
+import com.sapienter.jbilling.server.order.OrderWS;
+import com.sapienter.jbilling.server.util.Constants;
+import com.sapienter.jbilling.server.util.api.JbillingAPI;
+import com.sapienter.jbilling.server.util.api.JbillingAPIFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Collects metered usage and sends it to jBilling as a few coalesced order updates instead of one update per event.
+ *
+ * Usage events add a quantity of a product to a user in a billing period, which is a calendar month in UTC. The
+ * quantities are summed per user, product and period in a striped hash map with primitive keys, so adding an event
+ * creates no objects. When the map holds {@code flushThreshold} keys, or every {@code flushInterval}, the sums are
+ * flushed: for every order one {@code updateOrder()} call with one order change per product, carrying the quantity
+ * added since the last flush. Products the order has no line for get a new line.
+ *
+ * Every event is also appended to a journal segment in the journal directory. A flush starts a new segment, and the
+ * segment is deleted when its sums are sent. The keys of orders that were updated are written next to the segment
+ * after each update, so after a crash the unsent sums are read back from the journal. Sums whose update returned
+ * just before a crash are sent again, so usage is sent at least once. Sums carried over to a newer segment, after a
+ * failed update or on recovery, are written there in one block naming the segment they come from, and a segment
+ * named by a complete block is ignored, so a sum is never read back from both. Events passed to {@code add()} are
+ * buffered before they are written to the journal; they are safe from a crash of the process once {@link #sync()}
+ * returns.
+ *
+ * Usage files are CSV files with {@code userId,itemId,timestamp,quantity} lines, the timestamp in epoch milliseconds
+ * or as an ISO date. A header line is skipped. Files are read in blocks of a megabyte, and each block is written to
+ * the journal in one piece together with the read position after it, which is also saved in {@value #PROGRESS}. A
+ * file ingested again after a crash continues after the last complete block.
+ *
+ * Usage: {@code UsageAggregator journalDir orderChangeStatusId usageFile...}
+ */
+public class UsageAggregator implements AutoCloseable {
+
+    public static final int SCALE = 4;
+    public static final String PROGRESS = "ingested.properties";
+
+    private static final int RECORD_SIZE = 20;
+    private static final int KEY_SIZE = 12;
+    private static final int STRIPES = 64;
+    private static final int INGEST_BLOCK = 1 << 20;
+    // User id of the journal record in front of the events of an ingested block, holding the number of events and
+    // the read position of the usage file after the block.
+    private static final int BLOCK_HEADER = -1;
+    // User id of the journal record in front of sums carried over from an older segment, holding the number of sums
+    // and the number of that segment, which is superseded once the whole block is written.
+    private static final int MOVED_HEADER = -2;
+
+    private final JbillingAPI api;
+    private final Path journalDir;
+    private final Integer statusId;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+
+    // Adding events holds the read lock, starting a flush holds the write lock to switch segments.
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final ByteBuffer journalBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private FileChannel journal;
+    private long segment;
+
+    private int flushThreshold = 100000;
+    private BiFunction<Integer, Integer, OrderWS> orderResolver;
+
+    private final LongAdder events = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    private final LongAdder failedUpdates = new LongAdder();
+
+    /**
+     * Opens the journal directory and reads back the sums that were not flushed before.
+     */
+    public UsageAggregator(JbillingAPI api, Path journalDir, Integer statusId) throws IOException {
+
+        this.api = api;
+        this.journalDir = journalDir;
+        this.statusId = statusId;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.orderResolver = (userId, period) -> api.getLatestOrder(userId);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "usage-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Files.createDirectories(journalDir);
+        recover();
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        Path journalDir = Paths.get(args[0]);
+        Integer statusId = Integer.valueOf(args[1]);
+        try (UsageAggregator aggregator = new UsageAggregator(JbillingAPIFactory.getAPI(), journalDir, statusId)
+                .setFlushThreshold(50000)
+                .setFlushInterval(30, TimeUnit.SECONDS)) {
+            for (int i = 2; i < args.length; i++) {
+                long start = System.nanoTime();
+                long count = aggregator.ingest(Paths.get(args[i]));
+                System.out.printf("%s: %d events in %.1f s%n", args[i], count, (System.nanoTime() - start) / 1e9);
+            }
+            System.out.println(aggregator.flush());
+            System.out.println(aggregator);
+        }
+    }
+
+    /**
+     * Flushes as soon as the sums of this many users, products and periods are held.
+     */
+    public UsageAggregator setFlushThreshold(int keys) {
+        this.flushThreshold = keys;
+        return this;
+    }
+
+    public UsageAggregator setFlushInterval(long interval, TimeUnit unit) {
+        flusher.scheduleWithFixedDelay(this::flushQuietly, interval, interval, unit);
+        return this;
+    }
+
+    /**
+     * Finds the order to update with the usage of a user in a period. By default the latest order of the user.
+     */
+    public UsageAggregator setOrderResolver(BiFunction<Integer, Integer, OrderWS> resolver) {
+        this.orderResolver = resolver;
+        return this;
+    }
+
+    public void add(int userId, int itemId, long epochMillis, BigDecimal quantity) throws IOException {
+        add(userId, itemId, periodOf(epochMillis), toScaled(quantity));
+    }
+
+    /**
+     * Adds a quantity, scaled to {@link #SCALE} decimals, of a product to a user in a period.
+     */
+    public void add(int userId, int itemId, int period, long scaledQuantity) throws IOException {
+
+        if (userId <= 0) {
+            throw new IllegalArgumentException("Invalid user id " + userId);
+        }
+        append(userId, itemId, period, scaledQuantity);
+        events.increment();
+        flushIfFull();
+    }
+
+    private void flushIfFull() {
+
+        if (size() >= flushThreshold && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+    }
+
+    // Journals a record and adds it to the sums.
+    private void append(int userId, int itemId, int period, long value) throws IOException {
+
+        segmentLock.readLock().lock();
+        try {
+            synchronized (journalBuffer) {
+                if (journalBuffer.remaining() < RECORD_SIZE) {
+                    writeJournalBuffer();
+                }
+                journalBuffer.putInt(userId).putInt(itemId).putInt(period).putLong(value);
+            }
+            aggregate(userId, itemId, period, value);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private void aggregate(int userId, int itemId, int period, long scaledQuantity) {
+
+        long userItem = ((long) userId << 32) | (itemId & 0xFFFFFFFFL);
+        Stripe stripe = stripes[Stripe.hash(userItem, period) >>> 26];
+        synchronized (stripe) {
+            stripe.add(userItem, period, scaledQuantity);
+        }
+    }
+
+    /**
+     * Number of users, products and periods with unflushed usage.
+     */
+    public int size() {
+
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the buffered events to the journal.
+     */
+    public void sync() throws IOException {
+
+        segmentLock.readLock().lock();
+        try {
+            synchronized (journalBuffer) {
+                writeJournalBuffer();
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private void writeJournalBuffer() throws IOException {
+
+        journalBuffer.flip();
+        while (journalBuffer.hasRemaining()) {
+            journal.write(journalBuffer);
+        }
+        journalBuffer.clear();
+    }
+
+    /**
+     * Reads a usage file with NIO and adds its events, continuing after the events added by an earlier call.
+     *
+     * @return the number of events added
+     */
+    public long ingest(Path file) throws IOException {
+
+        Path progressFile = journalDir.resolve(PROGRESS);
+        Properties progress = new Properties();
+        if (Files.exists(progressFile)) {
+            try (Reader reader = Files.newBufferedReader(progressFile, StandardCharsets.UTF_8)) {
+                progress.load(reader);
+            }
+        }
+        String key = file.toAbsolutePath().toString();
+        long position = Long.parseLong(progress.getProperty(key, "0"));
+        if (!progress.containsKey(key)) {
+            progress.setProperty(key, "0");
+            saveProgress(progress, progressFile);
+        }
+        long count = 0;
+        int[] fields = new int[4];
+        ByteBuffer records = ByteBuffer.allocate(INGEST_BLOCK);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(INGEST_BLOCK);
+            channel.position(position);
+            while (channel.read(buffer) > 0 || buffer.position() > 0) {
+                buffer.flip();
+                boolean endOfFile = channel.position() == channel.size();
+                records.clear();
+                records.position(RECORD_SIZE);
+                int consumed = 0;
+                while (buffer.hasRemaining()) {
+                    int start = buffer.position();
+                    int end = lineEnd(buffer, start);
+                    if (end < 0) {
+                        if (!endOfFile) {
+                            break;
+                        }
+                        end = buffer.limit();
+                    }
+                    if (records.remaining() < RECORD_SIZE) {
+                        records = grow(records);
+                    }
+                    parseLine(buffer, start, end, fields, records);
+                    buffer.position(Math.min(end + 1, buffer.limit()));
+                    consumed = buffer.position();
+                }
+                if (consumed == 0 && !endOfFile) {
+                    throw new IOException("Line longer than " + INGEST_BLOCK + " bytes in " + file);
+                }
+                position += consumed;
+                buffer.position(consumed);
+                buffer.compact();
+                int events = (records.position() - RECORD_SIZE) / RECORD_SIZE;
+                records.putInt(0, BLOCK_HEADER).putInt(4, key.hashCode()).putInt(8, events).putLong(12, position);
+                records.flip();
+                // Flushes wait until the progress file is saved, so they do not delete the block from the journal
+                // before.
+                synchronized (this) {
+                    appendBlock(records);
+                    progress.setProperty(key, String.valueOf(position));
+                    saveProgress(progress, progressFile);
+                }
+                this.events.add(events);
+                count += events;
+                flushIfFull();
+                if (endOfFile && buffer.position() == 0) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static ByteBuffer grow(ByteBuffer records) {
+
+        ByteBuffer larger = ByteBuffer.allocate(records.capacity() * 2);
+        records.flip();
+        return larger.put(records);
+    }
+
+    // Writes the header and the events of a block to the journal in one piece, then adds the events to the sums.
+    // A block cut off by a crash is ignored on recovery and read again from the usage file.
+    private void appendBlock(ByteBuffer records) throws IOException {
+
+        segmentLock.readLock().lock();
+        try {
+            synchronized (journalBuffer) {
+                writeJournalBuffer();
+                ByteBuffer block = records.duplicate();
+                while (block.hasRemaining()) {
+                    journal.write(block);
+                }
+            }
+            for (int i = records.position() + RECORD_SIZE; i < records.limit(); i += RECORD_SIZE) {
+                aggregate(records.getInt(i), records.getInt(i + 4), records.getInt(i + 8), records.getLong(i + 12));
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    // Carries the sums of an older segment over to the current one, as userItem, period, quantity triples.
+    private void appendMoved(long fromSegment, long[] sums) throws IOException {
+
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * (sums.length / 3 + 1));
+        records.putInt(MOVED_HEADER).putInt(0).putInt(sums.length / 3).putLong(fromSegment);
+        for (int i = 0; i < sums.length; i += 3) {
+            records.putInt((int) (sums[i] >>> 32)).putInt((int) sums[i]).putInt((int) sums[i + 1]).putLong(sums[i + 2]);
+        }
+        records.flip();
+        appendBlock(records);
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from) {
+
+        for (int i = from; i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Parses "userId,itemId,timestamp,quantity" from the bytes without creating objects, and puts the event as a
+    // journal record. The header and blank lines are skipped.
+    private static void parseLine(ByteBuffer buffer, int start, int end, int[] fields, ByteBuffer records)
+            throws IOException {
+
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end == start || buffer.get(start) < '0' || buffer.get(start) > '9') {
+            return;
+        }
+        int count = 0;
+        fields[count++] = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == ',') {
+                if (count == fields.length) {
+                    count++;
+                    break;
+                }
+                fields[count++] = i + 1;
+            }
+        }
+        if (count != 4) {
+            throw new IOException("Expected userId,itemId,timestamp,quantity: "
+                    + StandardCharsets.UTF_8.decode((ByteBuffer) buffer.duplicate().position(start).limit(end)));
+        }
+        int userId = (int) parseLong(buffer, fields[0], fields[1] - 1);
+        int itemId = (int) parseLong(buffer, fields[1], fields[2] - 1);
+        int period;
+        if (fields[3] - 1 - fields[2] >= 10 && buffer.get(fields[2] + 4) == '-') {
+            int year = (int) parseLong(buffer, fields[2], fields[2] + 4);
+            int month = (int) parseLong(buffer, fields[2] + 5, fields[2] + 7);
+            period = year * 12 + month - 1;
+        } else {
+            period = periodOf(parseLong(buffer, fields[2], fields[3] - 1));
+        }
+        if (userId <= 0) {
+            throw new IOException("Invalid user id " + userId);
+        }
+        records.putInt(userId).putInt(itemId).putInt(period).putLong(parseScaled(buffer, fields[3], end));
+    }
+
+    private static long parseLong(ByteBuffer buffer, int from, int to) throws IOException {
+
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new IOException("Not a number at byte " + i);
+            }
+            value = value * 10 + (b - '0');
+        }
+        return value;
+    }
+
+    // Parses a decimal with an optional sign into a long scaled to SCALE decimals, rounding half up.
+    private static long parseScaled(ByteBuffer buffer, int from, int to) throws IOException {
+
+        boolean negative = from < to && buffer.get(from) == '-';
+        long value = 0;
+        int decimals = -1;
+        boolean roundUp = false;
+        for (int i = negative ? from + 1 : from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if (b >= '0' && b <= '9') {
+                if (decimals < SCALE) {
+                    value = value * 10 + (b - '0');
+                    if (decimals >= 0) {
+                        decimals++;
+                    }
+                } else if (decimals == SCALE) {
+                    roundUp = b >= '5';
+                    decimals++;
+                }
+            } else {
+                throw new IOException("Not a quantity at byte " + i);
+            }
+        }
+        for (int d = Math.max(decimals, 0); d < SCALE; d++) {
+            value *= 10;
+        }
+        value += roundUp ? 1 : 0;
+        return negative ? -value : value;
+    }
+
+    private static void saveProgress(Properties progress, Path progressFile) throws IOException {
+
+        Path temporary = progressFile.resolveSibling(PROGRESS + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            progress.store(writer, "Ingested bytes per usage file");
+        }
+        Files.move(temporary, progressFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Period of a timestamp: months since January of year 0, in UTC.
+     */
+    public static int periodOf(long epochMillis) {
+
+        LocalDate date = LocalDate.ofEpochDay(Math.floorDiv(epochMillis, TimeUnit.DAYS.toMillis(1)));
+        return date.getYear() * 12 + date.getMonthValue() - 1;
+    }
+
+    public static Date periodStart(int period) {
+        return Date.from(LocalDate.of(period / 12, period % 12 + 1, 1).atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+
+    public static long toScaled(BigDecimal quantity) {
+        return quantity.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    private void flushQuietly() {
+
+        try {
+            flush();
+        } catch (Exception e) {
+            // A periodic task that throws is not run again.
+            System.err.println("Usage flush failed, the usage is kept for the next flush: " + e);
+        }
+    }
+
+    /**
+     * Sends the usage collected since the last flush. Usage of orders that could not be updated is kept for the
+     * next flush.
+     */
+    public synchronized FlushResult flush() throws IOException {
+
+        flushQueued.set(false);
+        long start = System.nanoTime();
+        long flushedSegment;
+        List<long[]> drained = new ArrayList<>();
+        segmentLock.writeLock().lock();
+        try {
+            writeJournalBuffer();
+            if (size() == 0) {
+                return new FlushResult(0, 0, 0, System.nanoTime() - start);
+            }
+            for (Stripe stripe : stripes) {
+                drained.add(stripe.drain());
+            }
+            flushedSegment = segment;
+            openSegment(segment + 1);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        flushes.increment();
+
+        // Sums per order, keyed by user and period.
+        Map<Long, List<long[]>> byUserPeriod = new HashMap<>();
+        for (long[] entries : drained) {
+            for (int i = 0; i < entries.length; i += 3) {
+                long userPeriod = (entries[i] & 0xFFFFFFFF00000000L) | (entries[i + 1] & 0xFFFFFFFFL);
+                byUserPeriod.computeIfAbsent(userPeriod, key -> new ArrayList<>())
+                        .add(new long[] {entries[i], entries[i + 1], entries[i + 2]});
+            }
+        }
+
+        int changes = 0;
+        int failed = 0;
+        List<long[]> retry = new ArrayList<>();
+        try (FileChannel done = FileChannel.open(doneFile(flushedSegment), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (List<long[]> sums : byUserPeriod.values()) {
+                int userId = (int) (sums.get(0)[0] >>> 32);
+                int period = (int) sums.get(0)[1];
+                try {
+                    OrderWS order = orderResolver.apply(userId, period);
+                    if (order == null) {
+                        throw new IllegalStateException("No order for user " + userId);
+                    }
+                    OrderChangeWS[] orderChanges = buildChanges(order, period, sums);
+                    if (orderChanges.length > 0) {
+                        api.updateOrder(order, orderChanges);
+                        updates.increment();
+                        changes += orderChanges.length;
+                    }
+                } catch (RuntimeException e) {
+                    failed++;
+                    failedUpdates.increment();
+                    System.err.println("Usage of user " + userId + " could not be sent, kept for the next flush: " + e);
+                    retry.addAll(sums);
+                    continue;
+                }
+                writeKeys(done, sums);
+            }
+        }
+        // The failed sums move to the current segment in a block that supersedes the flushed one, the flushed segment
+        // is only read back if the block is incomplete.
+        long[] moved = new long[retry.size() * 3];
+        for (int i = 0; i < retry.size(); i++) {
+            System.arraycopy(retry.get(i), 0, moved, i * 3, 3);
+        }
+        appendMoved(flushedSegment, moved);
+        Files.deleteIfExists(doneFile(flushedSegment));
+        Files.deleteIfExists(segmentFile(flushedSegment));
+        return new FlushResult(byUserPeriod.size() - failed, changes, failed, System.nanoTime() - start);
+    }
+
+    private static void writeKeys(FileChannel done, List<long[]> sums) throws IOException {
+
+        ByteBuffer keys = ByteBuffer.allocate(KEY_SIZE * sums.size());
+        for (long[] sum : sums) {
+            keys.putLong(sum[0]).putInt((int) sum[1]);
+        }
+        keys.flip();
+        while (keys.hasRemaining()) {
+            done.write(keys);
+        }
+    }
+
+    private OrderChangeWS[] buildChanges(OrderWS order, int period, List<long[]> sums) {
+
+        Map<Integer, OrderLineWS> lines = new HashMap<>();
+        if (order.getOrderLines() != null) {
+            for (OrderLineWS line : order.getOrderLines()) {
+                if (line.getDeleted() == 0 && line.getItemId() != null) {
+                    lines.putIfAbsent(line.getItemId(), line);
+                }
+            }
+        }
+        Date startDate = periodStart(period);
+        if (order.getActiveSince() != null && order.getActiveSince().after(startDate)) {
+            startDate = order.getActiveSince();
+        }
+        List<OrderChangeWS> changes = new ArrayList<>(sums.size());
+        for (long[] sum : sums) {
+            if (sum[2] == 0) {
+                continue;
+            }
+            Integer itemId = (int) sum[0];
+            OrderLineWS line = lines.get(itemId);
+            if (line == null) {
+                line = new OrderLineWS();
+                // New usage line, priced from the product.
+                line.setOrderId(order.getId());
+                line.setTypeId(Constants.ORDER_LINE_TYPE_ITEM);
+                line.setItemId(itemId);
+                line.setDescription("Usage of product id: " + itemId);
+                line.setQuantity(Integer.valueOf(1));
+                line.setUseItem(Boolean.TRUE);
+                line.setPrice(BigDecimal.ZERO);
+                line.setAmount(BigDecimal.ZERO);
+            }
+            OrderChangeWS change = Ch8PurchaseOrders.buildChangeFromLine(order, line, statusId, startDate);
+            // The change adds the usage to the quantity of the line.
+            change.setQuantity(BigDecimal.valueOf(sum[2], SCALE));
+            changes.add(change);
+        }
+        return changes.toArray(new OrderChangeWS[changes.size()]);
+    }
+
+    // Reads back the segments left by an earlier run, skipping the sums that were sent and the segments that were
+    // carried over to a newer one, and moves the rest to a new segment, one block per segment.
+    private void recover() throws IOException {
+
+        List<Long> segments;
+        try (Stream<Path> files = Files.list(journalDir)) {
+            segments = files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.matches("segment-\\d+\\.journal"))
+                    .map(name -> Long.valueOf(name.substring(8, name.length() - 8)))
+                    .sorted().collect(Collectors.toList());
+        }
+        long last = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        openSegment(last + 1);
+        Set<Long> superseded = new HashSet<>();
+        for (Long old : segments) {
+            ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(segmentFile(old)));
+            while (records.remaining() >= RECORD_SIZE) {
+                int userId = records.getInt();
+                records.getInt();
+                int count = records.getInt();
+                long value = records.getLong();
+                if (userId == MOVED_HEADER && records.remaining() >= count * RECORD_SIZE) {
+                    superseded.add(value);
+                }
+            }
+        }
+        Map<Integer, Long> positions = new HashMap<>();
+        for (Long old : segments) {
+            Set<String> sent = new HashSet<>();
+            if (Files.exists(doneFile(old))) {
+                ByteBuffer keys = ByteBuffer.wrap(Files.readAllBytes(doneFile(old)));
+                while (keys.remaining() >= KEY_SIZE) {
+                    sent.add(keys.getLong() + ":" + keys.getInt());
+                }
+            }
+            ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(segmentFile(old)));
+            Stripe unsent = new Stripe();
+            // A record or block cut off by a crash was never acknowledged.
+            while (records.remaining() >= RECORD_SIZE) {
+                int userId = records.getInt();
+                int itemId = records.getInt();
+                int period = records.getInt();
+                long quantity = records.getLong();
+                if (userId == BLOCK_HEADER || userId == MOVED_HEADER) {
+                    if (records.remaining() < period * RECORD_SIZE) {
+                        break;
+                    }
+                    if (userId == BLOCK_HEADER) {
+                        positions.merge(itemId, quantity, Math::max);
+                    }
+                    continue;
+                }
+                long userItem = ((long) userId << 32) | (itemId & 0xFFFFFFFFL);
+                if (!superseded.contains(old) && !sent.contains(userItem + ":" + period)) {
+                    unsent.add(userItem, period, quantity);
+                }
+            }
+            if (!superseded.contains(old)) {
+                appendMoved(old, unsent.drain());
+            }
+        }
+        sync();
+        recoverProgress(positions);
+        for (Long old : segments) {
+            Files.deleteIfExists(doneFile(old));
+            Files.deleteIfExists(segmentFile(old));
+        }
+    }
+
+    // Moves the progress file up to the positions journaled after it was last saved.
+    private void recoverProgress(Map<Integer, Long> positions) throws IOException {
+
+        Path progressFile = journalDir.resolve(PROGRESS);
+        if (positions.isEmpty() || !Files.exists(progressFile)) {
+            return;
+        }
+        Properties progress = new Properties();
+        try (Reader reader = Files.newBufferedReader(progressFile, StandardCharsets.UTF_8)) {
+            progress.load(reader);
+        }
+        for (String file : progress.stringPropertyNames()) {
+            Long position = positions.get(file.hashCode());
+            if (position != null && position > Long.parseLong(progress.getProperty(file))) {
+                progress.setProperty(file, String.valueOf(position));
+            }
+        }
+        saveProgress(progress, progressFile);
+    }
+
+    private void openSegment(long number) throws IOException {
+
+        if (journal != null) {
+            journal.close();
+        }
+        segment = number;
+        journal = FileChannel.open(segmentFile(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+
+    private Path segmentFile(long number) {
+        return journalDir.resolve(String.format("segment-%08d.journal", number));
+    }
+
+    private Path doneFile(long number) {
+        return journalDir.resolve(String.format("segment-%08d.done", number));
+    }
+
+    @Override
+    public String toString() {
+        return "UsageAggregator{events=" + events.sum() + ", pending=" + size() + ", flushes=" + flushes.sum()
+                + ", updates=" + updates.sum() + ", failedUpdates=" + failedUpdates.sum() + "}";
+    }
+
+    /**
+     * Stops the periodic flushes and writes the buffered events to the journal. Usage that was not flushed is sent
+     * by the next aggregator opened on the same journal directory.
+     */
+    @Override
+    public void close() throws IOException {
+
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            sync();
+            journal.close();
+        }
+    }
+
+    /**
+     * Open addressing hash map from user, product and period to a scaled quantity, in primitive arrays.
+     */
+    private static final class Stripe {
+
+        private long[] userItems = new long[64];
+        private int[] periods = new int[64];
+        private long[] quantities = new long[64];
+        private boolean[] used = new boolean[64];
+        private volatile int size;
+
+        static int hash(long userItem, int period) {
+            long hash = (userItem ^ ((long) period << 16)) * 0x9E3779B97F4A7C15L;
+            return (int) (hash >>> 32);
+        }
+
+        void add(long userItem, int period, long quantity) {
+
+            if ((size + 1) * 4 > userItems.length * 3) {
+                resize(userItems.length * 2);
+            }
+            int mask = userItems.length - 1;
+            int index = hash(userItem, period) & mask;
+            while (used[index]) {
+                if (userItems[index] == userItem && periods[index] == period) {
+                    quantities[index] += quantity;
+                    return;
+                }
+                index = (index + 1) & mask;
+            }
+            used[index] = true;
+            userItems[index] = userItem;
+            periods[index] = period;
+            quantities[index] = quantity;
+            size++;
+        }
+
+        private void resize(int capacity) {
+
+            long[] oldUserItems = userItems;
+            int[] oldPeriods = periods;
+            long[] oldQuantities = quantities;
+            boolean[] oldUsed = used;
+            userItems = new long[capacity];
+            periods = new int[capacity];
+            quantities = new long[capacity];
+            used = new boolean[capacity];
+            size = 0;
+            for (int i = 0; i < oldUsed.length; i++) {
+                if (oldUsed[i]) {
+                    add(oldUserItems[i], oldPeriods[i], oldQuantities[i]);
+                }
+            }
+        }
+
+        // Returns userItem, period, quantity triples and empties the stripe.
+        synchronized long[] drain() {
+
+            long[] entries = new long[size * 3];
+            int next = 0;
+            for (int i = 0; i < used.length; i++) {
+                if (used[i]) {
+                    entries[next++] = userItems[i];
+                    entries[next++] = periods[i];
+                    entries[next++] = quantities[i];
+                }
+            }
+            userItems = new long[64];
+            periods = new int[64];
+            quantities = new long[64];
+            used = new boolean[64];
+            size = 0;
+            return entries;
+        }
+    }
+
+    public static final class FlushResult {
+
+        private final int orders;
+        private final int changes;
+        private final int failed;
+        private final long elapsedNanos;
+
+        FlushResult(int orders, int changes, int failed, long elapsedNanos) {
+            this.orders = orders;
+            this.changes = changes;
+            this.failed = failed;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getOrders() {
+            return orders;
+        }
+
+        public int getChanges() {
+            return changes;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Flushed %d changes to %d orders in %.1f s, %d orders failed", changes, orders,
+                    elapsedNanos / 1e9, failed);
+        }
+    }
+}